@@ -7,7 +7,12 @@ import java.util.Hashtable;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.net.UnknownHostException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -42,8 +47,25 @@ public class TartanHouseSimulator implements Runnable {
     private BufferedWriter out = null;
     private BufferedReader in = null;
 
+    /** the byte streams the house side of the link is served on */
+    private DataInputStream houseIn = null;
+    private DataOutputStream houseOut = null;
+
     private Boolean isConnected = false;
 
+    /** push mode: state changes are sent to a subscribed platform without being asked for */
+    private boolean pushEnabled = false;
+    private volatile boolean subscribed = false;
+
+    /** true once the platform agreed to binary frames */
+    private volatile boolean binaryLink = false;
+
+    /** the state the platform last saw, so only real changes are pushed */
+    private String lastSeenState = "";
+
+    /** guards the house state and the output stream, which the push threads share with the server */
+    private final Object lock = new Object();
+
     // state readings
     private final String TEMP_READING = "TR";
     private final String HUMIDITY_READING = "HR";
@@ -113,6 +135,30 @@ public class TartanHouseSimulator implements Runnable {
     private final String SET_STATE = "SS";
     private final String STATE_UPDATE = "SU";
 
+    // binary framing, agreed through the capability handshake: "GS:CAP=1." is answered with
+    // "SU:CAP=1;..." and both sides switch to frames of u16 length | u8 type | u16 sequence | body
+    private final String CAPABILITY = "CAP";
+    private final String SEQ_TAG = "#";
+    private final int BINARY_VERSION = 1;
+
+    private final byte MSG_GET_STATE = 0x01;
+    private final byte MSG_STATE_UPDATE = 0x02;
+    private final byte MSG_SET_STATE = 0x03;
+    private final byte MSG_OK = 0x04;
+    private final byte MSG_SUBSCRIBE = 0x05;
+    private final byte MSG_REFUSED = 0x06;
+    private final byte MSG_PUSH_UPDATE = 0x07;
+
+    // push mode: "GS:SUB=1." subscribes and is answered with "SU:SUB=1;..."; pushed states are
+    // "PU:..." lines, or PUSH_UPDATE frames with sequence number 0
+    private final String SUBSCRIBE = "SUB";
+    private final String PUSH_UPDATE = "PU";
+
+    // the device bits on the wire, in protocol order; the bit after the last is the HVAC mode
+    private final String[] WIRE_DEVICES = { DOOR_STATE, LIGHT_STATE, PROXIMITY_STATE, ALARM_STATE, ALARM_ACTIVE,
+            HEATER_STATE, CHILLER_STATE, HUMIDIFIER_STATE, INTRUDER_STATE, PHONE_PROXIMITY, DOOR_LOCK_STATE };
+    private final int HVAC_BIT = 1 << WIRE_DEVICES.length;
+
     /**
      * Get connection state
      * 
@@ -129,7 +175,47 @@ public class TartanHouseSimulator implements Runnable {
      */
     public TartanHouseSimulator(Integer port) {
         this.port = port;
-    }    
+
+        // the same starting state as the python simulator
+        tempReading = 65;
+        humidityReading = 90;
+        doorState = true;
+        lightState = true;
+        proximityState = true;
+        alarmState = false;
+        humidifierState = false;
+        heaterOnState = false;
+        chillerOnState = false;
+        alarmActiveState = false;
+        intruderState = false;
+        phoneProximityState = false;
+        hvacMode = "Heater";
+        doorLockState = false;
+    }
+
+    /**
+     * Create a house that can push its state
+     * @param port the port to listen on
+     * @param push true to push state changes to a platform that subscribes
+     */
+    public TartanHouseSimulator(Integer port, boolean push) {
+        this(port);
+        this.pushEnabled = push;
+    }
+
+    /**
+     * Run a house on the given port (5050 by default) and serve one platform connection. With
+     * "push" as the second argument the house pushes its state to a subscribed platform, the
+     * simulation runs once a second, and the door (d), light (l), proximity (p) and intruder (i)
+     * can be toggled from the console
+     * @param args the port, and optionally "push"
+     */
+    public static void main(String[] args) {
+        Integer port = args.length > 0 ? Integer.parseInt(args[0]) : 5050;
+        boolean push = args.length > 1 && args[1].equalsIgnoreCase("push");
+        System.out.println("Starting house simulator on port " + port + (push ? " in push mode" : ""));
+        new TartanHouseSimulator(port, push).runSimulator();
+    }
 
     public void runSimulator() {
         ServerSocket serverSocket = null;
@@ -138,15 +224,21 @@ public class TartanHouseSimulator implements Runnable {
             houseSocket = serverSocket.accept();
             out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
             in = new BufferedReader(new InputStreamReader(houseSocket.getInputStream()));
+            houseIn = new DataInputStream(new BufferedInputStream(houseSocket.getInputStream()));
+            houseOut = new DataOutputStream(new BufferedOutputStream(houseSocket.getOutputStream()));
         }
         catch(Exception x) { 
             try {
                 serverSocket.close();
             } catch (IOException e) {  }
         }
+        isConnected = houseSocket != null;
         new Thread( this). start();
 
-        isConnected = true;
+        if (isConnected && pushEnabled) {
+            startPushThreads();
+        }
+
     }
 
     /**
@@ -451,8 +543,356 @@ public class TartanHouseSimulator implements Runnable {
             return state;
         }
 
+    /**
+     * Serve the platform: answer each request until the platform hangs up. The link starts on text
+     * and switches to binary frames if the platform offers them
+     */
     @Override
     public void run() {
-        // TODO: read and write 
+        if (!isConnected) {
+            return;
+        }
+        try {
+            while (true) {
+                if (binaryLink) {
+                    int length = houseIn.readUnsignedShort();
+                    byte[] frame = new byte[length];
+                    houseIn.readFully(frame);
+                    synchronized (lock) {
+                        handleFrame(frame);
+                        houseOut.flush();
+                    }
+                } else {
+                    String request = readRequest();
+                    if (request == null) {
+                        break;
+                    }
+                    synchronized (lock) {
+                        binaryLink = handleRequest(request);
+                        houseOut.flush();
+                    }
+                }
+                if (!pushEnabled) {
+                    // in push mode the simulation runs on its own clock
+                    synchronized (lock) {
+                        updateSimulation();
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // the platform hung up
+        } finally {
+            isConnected = false;
+            try {
+                houseSocket.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Read one '.'-terminated text request
+     * @return the request, or null at end of stream
+     */
+    private String readRequest() throws IOException {
+        StringBuilder request = new StringBuilder();
+        int c;
+        while ((c = houseIn.read()) >= 0) {
+            request.append((char) c);
+            if (MSG_END.equals(String.valueOf((char) c))) {
+                return request.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answer a text request. A sequence tag after the command ("GS#7.") is echoed in the response
+     * @param request the request
+     * @return true if the platform was offered binary framing and the link switches to it
+     */
+    private boolean handleRequest(String request) throws IOException {
+        String body = request.substring(0, request.length() - 1);
+        String cmd = body;
+        String params = "";
+        int delim = body.indexOf(MSG_DELIM);
+        if (delim >= 0) {
+            cmd = body.substring(0, delim);
+            params = body.substring(delim + 1);
+        }
+        String tag = "";
+        int tagStart = cmd.indexOf(SEQ_TAG);
+        if (tagStart >= 0) {
+            tag = cmd.substring(tagStart);
+            cmd = cmd.substring(0, tagStart);
+        }
+
+        if (cmd.equals(GET_STATE)) {
+            String capability = CAPABILITY + PARAM_EQ + BINARY_VERSION;
+            String subscription = SUBSCRIBE + PARAM_EQ + "1";
+            boolean offered = false;
+            boolean subscribing = false;
+            for (String param : params.split(PARAM_DELIM)) {
+                if (param.equals(capability)) {
+                    offered = true;
+                } else if (param.equals(subscription) && pushEnabled) {
+                    subscribing = true;
+                }
+            }
+            String accepted = (offered ? capability + PARAM_DELIM : "") + (subscribing ? subscription + PARAM_DELIM : "");
+            lastSeenState = getStateText();
+            String reply = STATE_UPDATE + tag + MSG_DELIM + accepted + lastSeenState + MSG_END + "\n";
+            houseOut.write(reply.getBytes("US-ASCII"));
+            if (subscribing) {
+                subscribed = true;
+            }
+            return offered;
+        } else if (cmd.equals(SET_STATE)) {
+            for (String param : params.split(PARAM_DELIM)) {
+                String[] kv = param.split(PARAM_EQ);
+                if (kv.length == 2) {
+                    setDevice(kv[0], kv[1].equals("1"));
+                }
+            }
+            // the platform made this change, so there is nothing to push back
+            lastSeenState = getStateText();
+            houseOut.write((OK + tag + "\n").getBytes("US-ASCII"));
+        } else {
+            System.out.println("Error, unknown request: " + request);
+        }
+        return false;
+    }
+
+    /**
+     * Answer a binary frame: the message type, the sequence number and the body
+     * @param frame the frame after its length
+     */
+    private void handleFrame(byte[] frame) throws IOException {
+        if (frame.length < 3) {
+            return;
+        }
+        byte type = frame[0];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte replyType;
+        if (type == MSG_GET_STATE) {
+            replyType = MSG_STATE_UPDATE;
+            writeStateBody(body);
+            lastSeenState = getStateText();
+        } else if (type == MSG_SET_STATE) {
+            replyType = MSG_OK;
+            readStateBody(frame, 3);
+            lastSeenState = getStateText();
+        } else if (type == MSG_SUBSCRIBE && pushEnabled) {
+            replyType = MSG_OK;
+            subscribed = true;
+        } else {
+            // unknown requests are refused so the platform is not left waiting
+            replyType = MSG_REFUSED;
+        }
+        houseOut.writeShort(body.size() + 3);
+        houseOut.writeByte(replyType);
+        houseOut.write(frame, 1, 2);
+        body.writeTo(houseOut);
+    }
+
+    /**
+     * Start the threads that change the house on their own in push mode: the simulation clock and
+     * the console
+     */
+    private void startPushThreads() {
+        Thread clock = new Thread(() -> {
+            while (isConnected) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                synchronized (lock) {
+                    updateSimulation();
+                    pushIfChanged();
+                }
+            }
+        });
+        clock.setDaemon(true);
+        clock.start();
+
+        Thread console = new Thread(() -> {
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String cmd;
+                while (isConnected && (cmd = commands.readLine()) != null) {
+                    synchronized (lock) {
+                        if (cmd.equals("d")) {
+                            doorState = !doorState;
+                        } else if (cmd.equals("l")) {
+                            lightState = !lightState;
+                        } else if (cmd.equals("p")) {
+                            proximityState = !proximityState;
+                        } else if (cmd.equals("i")) {
+                            intruderState = !intruderState;
+                        } else {
+                            System.out.println("Current state: " + getStateText());
+                            continue;
+                        }
+                        pushIfChanged();
+                    }
+                }
+            } catch (IOException ioe) {
+                // no console
+            }
+        });
+        console.setDaemon(true);
+        console.start();
+    }
+
+    /**
+     * Push the house state to a subscribed platform if it changed since the platform last saw it.
+     * Called with the lock held
+     */
+    private void pushIfChanged() {
+        String state = getStateText();
+        if (!subscribed || state.equals(lastSeenState)) {
+            return;
+        }
+        lastSeenState = state;
+        try {
+            if (binaryLink) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                writeStateBody(body);
+                houseOut.writeShort(body.size() + 3);
+                houseOut.writeByte(MSG_PUSH_UPDATE);
+                houseOut.writeShort(0);
+                body.writeTo(houseOut);
+            } else {
+                houseOut.write((PUSH_UPDATE + MSG_DELIM + state + MSG_END + "\n").getBytes("US-ASCII"));
+            }
+            houseOut.flush();
+        } catch (IOException ioe) {
+            isConnected = false;
+        }
+    }
+
+    private void writeStateBody(ByteArrayOutputStream body) {
+        int present = (1 << WIRE_DEVICES.length) - 1 | HVAC_BIT;
+        int values = 0;
+        for (int i = 0; i < WIRE_DEVICES.length; i++) {
+            if (getDevice(WIRE_DEVICES[i])) {
+                values |= 1 << i;
+            }
+        }
+        if (hvacMode.equals("Heater")) {
+            values |= HVAC_BIT;
+        }
+        writeVarint(body, present);
+        writeVarint(body, values);
+        // both readings follow
+        body.write(0x03);
+        writeVarint(body, (tempReading << 1) ^ (tempReading >> 31));
+        writeVarint(body, (humidityReading << 1) ^ (humidityReading >> 31));
+    }
+
+    private void readStateBody(byte[] frame, int pos) {
+        int[] at = { pos };
+        int present = readVarint(frame, at);
+        int values = readVarint(frame, at);
+        for (int i = 0; i < WIRE_DEVICES.length; i++) {
+            if ((present & (1 << i)) != 0) {
+                setDevice(WIRE_DEVICES[i], (values & (1 << i)) != 0);
+            }
+        }
+        if ((present & HVAC_BIT) != 0) {
+            hvacMode = (values & HVAC_BIT) != 0 ? "Heater" : "Chiller";
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] in, int[] at) {
+        int value = 0;
+        for (int shift = 0; shift < 35 && at[0] < in.length; shift += 7) {
+            byte b = in[at[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private String getStateText() {
+        return TEMP_READING + PARAM_EQ + tempReading + PARAM_DELIM
+                + HUMIDITY_READING + PARAM_EQ + humidityReading + PARAM_DELIM
+                + DOOR_STATE + PARAM_EQ + bit(doorState) + PARAM_DELIM
+                + LIGHT_STATE + PARAM_EQ + bit(lightState) + PARAM_DELIM
+                + PROXIMITY_STATE + PARAM_EQ + bit(proximityState) + PARAM_DELIM
+                + ALARM_STATE + PARAM_EQ + bit(alarmState) + PARAM_DELIM
+                + ALARM_ACTIVE + PARAM_EQ + bit(alarmActiveState) + PARAM_DELIM
+                + HEATER_STATE + PARAM_EQ + bit(heaterOnState) + PARAM_DELIM
+                + CHILLER_STATE + PARAM_EQ + bit(chillerOnState) + PARAM_DELIM
+                + HVAC_MODE + PARAM_EQ + bit(hvacMode.equals("Heater")) + PARAM_DELIM
+                + HUMIDIFIER_STATE + PARAM_EQ + bit(humidifierState) + PARAM_DELIM
+                + INTRUDER_STATE + PARAM_EQ + bit(intruderState) + PARAM_DELIM
+                + PHONE_PROXIMITY + PARAM_EQ + bit(phoneProximityState) + PARAM_DELIM
+                + DOOR_LOCK_STATE + PARAM_EQ + bit(doorLockState);
+    }
+
+    private static String bit(Boolean on) {
+        return on ? "1" : "0";
+    }
+
+    private Boolean getDevice(String key) {
+        switch (key) {
+            case DOOR_STATE: return doorState;
+            case LIGHT_STATE: return lightState;
+            case PROXIMITY_STATE: return proximityState;
+            case ALARM_STATE: return alarmState;
+            case ALARM_ACTIVE: return alarmActiveState;
+            case HEATER_STATE: return heaterOnState;
+            case CHILLER_STATE: return chillerOnState;
+            case HUMIDIFIER_STATE: return humidifierState;
+            case INTRUDER_STATE: return intruderState;
+            case PHONE_PROXIMITY: return phoneProximityState;
+            case DOOR_LOCK_STATE: return doorLockState;
+            default: return false;
+        }
+    }
+
+    private void setDevice(String key, boolean on) {
+        switch (key) {
+            case DOOR_STATE: doorState = on; break;
+            case LIGHT_STATE: lightState = on; break;
+            case PROXIMITY_STATE: proximityState = on; break;
+            case ALARM_STATE: alarmState = on; break;
+            case ALARM_ACTIVE: alarmActiveState = on; break;
+            case HEATER_STATE: heaterOnState = on; break;
+            case CHILLER_STATE: chillerOnState = on; break;
+            case HUMIDIFIER_STATE: humidifierState = on; break;
+            case INTRUDER_STATE: intruderState = on; break;
+            case PHONE_PROXIMITY: phoneProximityState = on; break;
+            case DOOR_LOCK_STATE: doorLockState = on; break;
+            case HVAC_MODE: hvacMode = on ? "Heater" : "Chiller"; break;
+            default: break;
+        }
+    }
+
+    /**
+     * Update the house simulation. This is really very simple
+     */
+    private void updateSimulation() {
+        if (heaterOnState) tempReading++;
+        if (chillerOnState) tempReading--;
+
+        if (humidityReading < 100 && humidityReading > 0) {
+            if (humidifierState) {
+                humidityReading--;
+            } else {
+                humidityReading++;
+            }
+        }
     }
 }
@@ -0,0 +1,103 @@
+package tartan.smarthome.resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalTime;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Measures {@link TartanBatchEvaluator} on a fleet of random house states, against evaluating each
+ * house in turn with {@link CompiledTartanStateEvaluator}. Run with {@code ./gradlew jmh}; the
+ * threads parameter sets the pool size, so the scores show how a batch scales with cores. Sizes
+ * above the machine's core count only add contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TartanBatchEvaluatorBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"100000"})
+    public int houses;
+
+    private static final LocalTime MIDNIGHT = LocalTime.of(0, 1);
+
+    private HouseState[] states;
+    private IoTEvents[] events;
+    private ForkJoinPool pool;
+    private TartanBatchEvaluator batch;
+    private final CompiledTartanStateEvaluator single = new CompiledTartanStateEvaluator();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        HouseState.Device[] devices = HouseState.Device.values();
+        states = new HouseState[houses];
+        events = new IoTEvents[houses];
+        for (int i = 0; i < houses; i++) {
+            HouseState.Builder state = HouseState.builder()
+                    .set(HouseState.Reading.TEMPERATURE, 60 + random.nextInt(20))
+                    .set(HouseState.Reading.TARGET_TEMP, 70)
+                    .set(HouseState.Reading.NIGHT_START, 2200)
+                    .set(HouseState.Reading.NIGHT_END, 700)
+                    .set(HouseState.Text.ALARM_PASSCODE, "stop")
+                    .set(HouseState.Text.GIVEN_PASSCODE, "");
+            for (HouseState.Device device : devices) {
+                state.set(device, random.nextBoolean());
+            }
+            states[i] = state.build();
+            events[i] = new IoTEvents();
+        }
+        pool = new ForkJoinPool(threads);
+        batch = new TartanBatchEvaluator(pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] batch() {
+        return batch.evaluate(states, MIDNIGHT).getChanges();
+    }
+
+    @Benchmark
+    public int[] batchWithEvents() {
+        for (IoTEvents recorder : events) {
+            recorder.reset();
+        }
+        return batch.evaluate(states, events, MIDNIGHT).getChanges();
+    }
+
+    @Benchmark
+    public HouseState[] oneAtATime() {
+        HouseState[] out = new HouseState[houses];
+        for (int i = 0; i < houses; i++) {
+            events[i].reset();
+            out[i] = single.evaluateState(states[i], events[i], MIDNIGHT);
+        }
+        return out;
+    }
+}
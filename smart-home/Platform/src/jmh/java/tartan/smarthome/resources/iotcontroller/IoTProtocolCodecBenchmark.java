@@ -0,0 +1,150 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IoTProtocolCodec} with the String-based decoding and encoding it replaced. Run
+ * with {@code ./gradlew jmh}; add {@code -Pjmh.profilers=gc} to see allocation per operation.
+ *
+ * The legacy methods below reproduce what IoTConnectManager did per poll: build a String from the
+ * response line, split it, tokenize the body, split each parameter and box the values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IoTProtocolCodecBenchmark {
+
+    private static final String[] BOOLEAN_KEYS = {
+            IoTValues.LIGHT_STATE, IoTValues.ALARM_STATE, IoTValues.DOOR_LOCK_STATE, IoTValues.DOOR_STATE,
+            IoTValues.HUMIDIFIER_STATE, IoTValues.INTRUDER_STATE, IoTValues.PROXIMITY_STATE,
+            IoTValues.PHONE_PROXIMITY, IoTValues.ALARM_ACTIVE, IoTValues.HEATER_STATE, IoTValues.CHILLER_STATE
+    };
+
+    private static final String[] SET_KEYS = {
+            IoTValues.DOOR_STATE, IoTValues.PHONE_PROXIMITY, IoTValues.INTRUDER_STATE, IoTValues.DOOR_LOCK_STATE,
+            IoTValues.LIGHT_STATE, IoTValues.ALARM_STATE, IoTValues.ALARM_ACTIVE, IoTValues.HUMIDIFIER_STATE,
+            IoTValues.CHILLER_STATE, IoTValues.HEATER_STATE
+    };
+
+    private byte[] responseLine;
+    private ByteBuffer response;
+    private Map<String, Object> newState;
+    private ByteBuffer request;
+
+    @Setup
+    public void setUp() {
+        responseLine = "SU:TR=65;HR=45;DS=1;LS=0;PS=1;AS=0;AA=0;HES=0;CHS=1;HM=1;HUS=0;IS=0;PP=1;DLS=1."
+                .getBytes(StandardCharsets.US_ASCII);
+        response = ByteBuffer.wrap(responseLine);
+
+        // an evaluated state carries readings and settings as well as the device states
+        newState = new Hashtable<>(IoTProtocolCodec.decodeStateUpdate(response));
+        newState.put(IoTValues.TARGET_TEMP, 70);
+        newState.put(IoTValues.ALARM_DELAY, 30);
+        newState.put(IoTValues.ALARM_PASSCODE, "stop");
+        newState.put(IoTValues.AWAY_TIMER, false);
+
+        request = ByteBuffer.allocate(IoTProtocolCodec.MAX_SET_STATE_SIZE);
+    }
+
+    @Benchmark
+    public Map<String, Object> decodeLegacy() {
+        return legacyDecode(new String(responseLine, StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public Map<String, Object> decodeCodec() {
+        return IoTProtocolCodec.decodeStateUpdate(response);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return legacyEncode(newState).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCodec() {
+        request.clear();
+        IoTProtocolCodec.encodeSetState(newState, request);
+        return request.flip();
+    }
+
+    private static Map<String, Object> legacyDecode(String stateUpdateMsg) {
+        Hashtable<String, Object> state = new Hashtable<String, Object>();
+        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
+        if (req.length != 2 || !req[0].equals(IoTValues.STATE_UPDATE)) {
+            return null;
+        }
+        String body = req[1];
+        if (String.valueOf(body.charAt(body.length() - 1)).equals(IoTValues.MSG_END)) {
+            body = body.substring(0, body.length() - 1);
+        }
+        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
+        while (pt.hasMoreTokens()) {
+            String param = pt.nextToken();
+            String data[] = param.split(IoTValues.PARAM_EQ);
+            Integer val = Integer.parseInt(data[1]);
+
+            boolean matched = false;
+            for (String key : BOOLEAN_KEYS) {
+                if (data[0].equals(key)) {
+                    state.put(key, val == 1);
+                    matched = true;
+                    break;
+                }
+            }
+            if (matched) {
+                continue;
+            }
+            if (data[0].equals(IoTValues.TEMP_READING)) {
+                state.put(IoTValues.TEMP_READING, val);
+            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
+                state.put(IoTValues.HUMIDITY_READING, val);
+            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
+                state.put(IoTValues.HVAC_MODE, val == 1 ? "Heater" : "Chiller");
+            }
+        }
+        return state;
+    }
+
+    private static String legacyEncode(Map<String, Object> state) {
+        StringBuffer newState = new StringBuffer();
+        int count = 0;
+        for (String key : state.keySet()) {
+            for (String setKey : SET_KEYS) {
+                if (key.equals(setKey)) {
+                    Boolean on = (Boolean) state.get(key);
+                    newState.append(key);
+                    newState.append(IoTValues.PARAM_EQ);
+                    newState.append(on ? "1" : "0");
+                    count++;
+                    if (count < state.size()) {
+                        newState.append(IoTValues.PARAM_DELIM);
+                    }
+                    break;
+                }
+            }
+        }
+        return IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END;
+    }
+}
@@ -6,14 +6,22 @@ import io.dropwizard.auth.AuthValueFactoryProvider;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
 import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.hibernate.HibernateBundle;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.core.setup.Bootstrap;
 import io.dropwizard.core.setup.Environment;
 import io.dropwizard.views.common.ViewBundle;
+import org.slf4j.LoggerFactory;
 import tartan.smarthome.auth.TartanAuthenticator;
 import tartan.smarthome.auth.TartanUser;
 import tartan.smarthome.core.TartanHomeData;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.Slf4jEvaluationListener;
+import tartan.smarthome.resources.TartanEvaluationCache;
 import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.EvaluationListeners;
+import tartan.smarthome.resources.iotcontroller.IoTTimingWheel;
+import tartan.smarthome.resources.iotcontroller.IoTUpdateScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
 
 /**
  * This is the driver for the program.
@@ -71,10 +79,37 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
         TartanAuthenticator auth = new TartanAuthenticator();
         auth.setValidUsers(configuration);
 
+        // what the shared house machinery does goes to the server log
+        EvaluationListeners.setDefault(new Slf4jEvaluationListener(LoggerFactory.getLogger(IoTUpdateScheduler.class)));
+
+        // every house is updated on one shared scheduler, set up before the houses connect
+        String updateExecutor = configuration.getUpdateExecutor() != null
+                ? configuration.getUpdateExecutor() : IoTValues.UPDATES_VIRTUAL;
+        int updatePoolSize = configuration.getUpdatePoolSize() != null
+                ? configuration.getUpdatePoolSize() : Runtime.getRuntime().availableProcessors();
+        final IoTUpdateScheduler scheduler = IoTUpdateScheduler.configureDefault(updateExecutor, updatePoolSize);
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() {
+                scheduler.start();
+            }
+
+            @Override
+            public void stop() {
+                scheduler.stop();
+                IoTTimingWheel.getDefault().stop();
+            }
+        });
+
+        // houses presenting a state any house already presented share its evaluation
+        TartanEvaluationCache.configureDefault(configuration.getEvaluationCacheSize() != null
+                ? configuration.getEvaluationCacheSize() : TartanEvaluationCache.DEFAULT_CAPACITY);
+
         final TartanResource resource = new TartanResource(configuration.getHouses(),
                 dao, Integer.parseInt(configuration.getHistoryTimer()));
 
         environment.jersey().register(resource);
+        resource.registerMetrics(environment.metrics());
         environment.jersey().register(new AuthDynamicFeature(new BasicCredentialAuthFilter.Builder<TartanUser>()
                 .setAuthenticator(auth)
                 .buildAuthFilter()));
@@ -23,6 +23,15 @@ public class TartanHomeConfiguration extends Configuration {
     @JsonProperty
     private String historyTimer;
 
+    @JsonProperty
+    private String updateExecutor;
+
+    @JsonProperty
+    private Integer updatePoolSize;
+
+    @JsonProperty
+    private Integer evaluationCacheSize;
+
     @Valid
     @NotNull
     private DataSourceFactory database = new DataSourceFactory();
@@ -51,4 +60,19 @@ public class TartanHomeConfiguration extends Configuration {
     public String getHistoryTimer() {
         return historyTimer;
     }
+
+    @JsonProperty
+    public String getUpdateExecutor() {
+        return updateExecutor;
+    }
+
+    @JsonProperty
+    public Integer getUpdatePoolSize() {
+        return updatePoolSize;
+    }
+
+    @JsonProperty
+    public Integer getEvaluationCacheSize() {
+        return evaluationCacheSize;
+    }
 }
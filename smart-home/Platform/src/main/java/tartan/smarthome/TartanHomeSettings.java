@@ -57,6 +57,69 @@ public class TartanHomeSettings {
     @JsonProperty
     private String groupExperiment;
 
+    @JsonProperty
+    private String transport;
+
+    @JsonProperty
+    private String evaluator;
+
+    @JsonProperty
+    private Boolean evaluationCache;
+
+    @JsonProperty
+    private String diagnostics;
+
+    @JsonProperty
+    private String pipelining;
+
+    @JsonProperty
+    private String framing;
+
+    @JsonProperty
+    private Integer requestTimeout;
+
+    @JsonProperty
+    private Integer reconnectMaxDelay;
+
+    @JsonProperty
+    private Boolean push;
+
+    @JsonProperty
+    private Integer heartbeatInterval;
+
+    @JsonProperty
+    private Integer pollInterval;
+
+    @JsonProperty
+    private Integer pollActiveInterval;
+
+    @JsonProperty
+    private Integer pollMaxInterval;
+
+    @JsonProperty
+    private Integer eventLogCapacity;
+
+    @JsonProperty
+    private Integer updateWindow;
+
+    @JsonProperty
+    private Integer updateTimeout;
+
+    @JsonProperty
+    private Integer stateMaxAge;
+
+    @JsonProperty
+    private Integer breakerThreshold;
+
+    @JsonProperty
+    private Integer breakerOpenTime;
+
+    @JsonProperty
+    private Integer routineWriteBurst;
+
+    @JsonProperty
+    private Integer routineWriteRate;
+
     public String getTargetTemp() {
         return targetTemp;
     }
@@ -142,4 +205,172 @@ public class TartanHomeSettings {
     public void setGroupExperiment(String groupExperiment){
         this.groupExperiment = groupExperiment;
     }
+
+    public String getTransport() {
+        return transport == null ? "nio" : transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public String getEvaluator() {
+        return evaluator == null ? "incremental" : evaluator;
+    }
+
+    public void setEvaluator(String evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    public Boolean getEvaluationCache() {
+        return evaluationCache == null ? true : evaluationCache;
+    }
+
+    public void setEvaluationCache(Boolean evaluationCache) {
+        this.evaluationCache = evaluationCache;
+    }
+
+    public String getDiagnostics() {
+        return diagnostics == null ? "log" : diagnostics;
+    }
+
+    public void setDiagnostics(String diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    public String getPipelining() {
+        return pipelining == null ? "off" : pipelining;
+    }
+
+    public void setPipelining(String pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public String getFraming() {
+        return framing == null ? "auto" : framing;
+    }
+
+    public void setFraming(String framing) {
+        this.framing = framing;
+    }
+
+    public Integer getRequestTimeout() {
+        return requestTimeout == null ? 5000 : requestTimeout;
+    }
+
+    public void setRequestTimeout(Integer requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public Integer getReconnectMaxDelay() {
+        return reconnectMaxDelay == null ? 60000 : reconnectMaxDelay;
+    }
+
+    public void setReconnectMaxDelay(Integer reconnectMaxDelay) {
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    public Boolean getPush() {
+        return push == null ? true : push;
+    }
+
+    public void setPush(Boolean push) {
+        this.push = push;
+    }
+
+    public Integer getHeartbeatInterval() {
+        return heartbeatInterval == null ? 30000 : heartbeatInterval;
+    }
+
+    public void setHeartbeatInterval(Integer heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public Integer getPollInterval() {
+        return pollInterval == null ? 5000 : pollInterval;
+    }
+
+    public void setPollInterval(Integer pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public Integer getPollActiveInterval() {
+        return pollActiveInterval == null ? 1000 : pollActiveInterval;
+    }
+
+    public void setPollActiveInterval(Integer pollActiveInterval) {
+        this.pollActiveInterval = pollActiveInterval;
+    }
+
+    public Integer getPollMaxInterval() {
+        return pollMaxInterval == null ? 60000 : pollMaxInterval;
+    }
+
+    public void setPollMaxInterval(Integer pollMaxInterval) {
+        this.pollMaxInterval = pollMaxInterval;
+    }
+
+    public Integer getEventLogCapacity() {
+        return eventLogCapacity == null ? 256 : eventLogCapacity;
+    }
+
+    public void setEventLogCapacity(Integer eventLogCapacity) {
+        this.eventLogCapacity = eventLogCapacity;
+    }
+
+    public Integer getUpdateWindow() {
+        return updateWindow == null ? 100 : updateWindow;
+    }
+
+    public void setUpdateWindow(Integer updateWindow) {
+        this.updateWindow = updateWindow;
+    }
+
+    public Integer getUpdateTimeout() {
+        return updateTimeout == null ? 15000 : updateTimeout;
+    }
+
+    public void setUpdateTimeout(Integer updateTimeout) {
+        this.updateTimeout = updateTimeout;
+    }
+
+    public Integer getStateMaxAge() {
+        return stateMaxAge == null ? 1000 : stateMaxAge;
+    }
+
+    public void setStateMaxAge(Integer stateMaxAge) {
+        this.stateMaxAge = stateMaxAge;
+    }
+
+    public Integer getBreakerThreshold() {
+        return breakerThreshold == null ? 3 : breakerThreshold;
+    }
+
+    public void setBreakerThreshold(Integer breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    public Integer getBreakerOpenTime() {
+        return breakerOpenTime == null ? 10000 : breakerOpenTime;
+    }
+
+    public void setBreakerOpenTime(Integer breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+    }
+
+    public Integer getRoutineWriteBurst() {
+        return routineWriteBurst == null ? 5 : routineWriteBurst;
+    }
+
+    public void setRoutineWriteBurst(Integer routineWriteBurst) {
+        this.routineWriteBurst = routineWriteBurst;
+    }
+
+    public Integer getRoutineWriteRate() {
+        return routineWriteRate == null ? 2 : routineWriteRate;
+    }
+
+    public void setRoutineWriteRate(Integer routineWriteRate) {
+        this.routineWriteRate = routineWriteRate;
+    }
 }
@@ -0,0 +1,110 @@
+package tartan.smarthome.resources;
+
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tartan.smarthome.resources.iotcontroller.EvaluationListener;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Evaluates one house's states through a {@link TartanEvaluationCache}: a state that this or any
+ * other house already presented, with the night lock in the same position, gives what it gave then,
+ * and its events are recorded again as happening now. Other states go to the evaluator it wraps and
+ * are kept. Only states evaluated with events are cached; the text log forms always evaluate.
+ */
+public class CachingTartanStateEvaluator implements TartanStateEvaluator {
+
+    private final StaticTartanStateEvaluator evaluator;
+    private final TartanEvaluationCache cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a caching evaluator for a house
+     * @param evaluator evaluates the states the cache does not have
+     * @param cache the cache, usually shared by the houses
+     */
+    public CachingTartanStateEvaluator(StaticTartanStateEvaluator evaluator, TartanEvaluationCache cache) {
+        this.evaluator = evaluator;
+        this.cache = cache;
+    }
+
+    @Override
+    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log) {
+        return evaluator.evaluateState(inState, log);
+    }
+
+    @Override
+    public HouseState evaluateState(HouseState inState, StringBuffer log) {
+        return evaluator.evaluateState(inState, log);
+    }
+
+    @Override
+    public HouseState evaluateState(HouseState inState, IoTEvents events) {
+        return evaluateState(inState, events, LocalTime.now());
+    }
+
+    /**
+     * Evaluate a state at a given time of day, from the cache if it has it
+     * @param inState the state to evaluate
+     * @param events records what the evaluation did
+     * @param currentTime the time now
+     * @return the evaluated state
+     */
+    public HouseState evaluateState(HouseState inState, IoTEvents events, LocalTime currentTime) {
+        int clock = 0;
+        if (inState.has(HouseState.Reading.NIGHT_START) && inState.has(HouseState.Reading.NIGHT_END)) {
+            clock = CompiledTartanStateEvaluator.night(inState.get(HouseState.Reading.NIGHT_START),
+                    inState.get(HouseState.Reading.NIGHT_END), currentTime);
+        }
+        TartanEvaluationCache.Outcome outcome = cache.get(inState, clock);
+        if (outcome != null) {
+            hits.incrementAndGet();
+            events.recordAll(outcome.events);
+            return outcome.state;
+        }
+        misses.incrementAndGet();
+        int from = events.size();
+        HouseState outState = evaluator.evaluateState(inState, events, currentTime);
+        cache.put(inState, clock, new TartanEvaluationCache.Outcome(outState, events.copy(from)));
+        return outState;
+    }
+
+    @Override
+    public void setListener(EvaluationListener listener) {
+        evaluator.setListener(listener);
+    }
+
+    @Override
+    public long getTimeToNextChange(HouseState state, LocalTime currentTime) {
+        return evaluator.getTimeToNextChange(state, currentTime);
+    }
+
+    /**
+     * Get the number of this house's states found in the cache
+     * @return the count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of this house's states evaluated because the cache did not have them
+     * @return the count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the share of this house's states found in the cache
+     * @return the hit rate, from 0 to 1; 0 before any evaluation
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long lookups = h + misses.get();
+        return lookups == 0 ? 0 : (double) h / lookups;
+    }
+}
@@ -0,0 +1,247 @@
+package tartan.smarthome.resources;
+
+import java.time.LocalTime;
+import java.util.List;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Evaluates the house rules of {@link StaticTartanStateEvaluator} as declared rules compiled into
+ * lookup tables (see {@link TartanRuleEngine}). The state is packed into an int: the device flags as
+ * {@link HouseState} keeps them, plus one bit for each comparison the rules make (a passcode
+ * matches, the temperature is below target, it is night, and so on). The outcome and the events are
+ * the same as the static evaluator's.
+ */
+public class CompiledTartanStateEvaluator extends StaticTartanStateEvaluator {
+
+    // the devices, as HouseState packs them
+    private static final int DOOR = HouseState.Device.DOOR.getBit();
+    private static final int DOOR_LOCK = HouseState.Device.DOOR_LOCK.getBit();
+    private static final int LIGHT = HouseState.Device.LIGHT.getBit();
+    private static final int PROXIMITY = HouseState.Device.PROXIMITY.getBit();
+    private static final int ALARM = HouseState.Device.ALARM.getBit();
+    private static final int ALARM_ACTIVE = HouseState.Device.ALARM_ACTIVE.getBit();
+    private static final int HUMIDIFIER = HouseState.Device.HUMIDIFIER.getBit();
+    private static final int HEATER = HouseState.Device.HEATER.getBit();
+    private static final int CHILLER = HouseState.Device.CHILLER.getBit();
+    private static final int INTRUDER = HouseState.Device.INTRUDER.getBit();
+    private static final int PHONE_PROXIMITY = HouseState.Device.PHONE_PROXIMITY.getBit();
+    private static final int AWAY_TIMER = HouseState.Device.AWAY_TIMER.getBit();
+    static final int DEVICES = (1 << HouseState.Device.values().length) - 1;
+
+    // the comparisons, above the devices
+    private static final int DOOR_LOCK_PASSCODE_GIVEN = DEVICES + 1;
+    private static final int ALARM_PASSCODE_WRONG = DOOR_LOCK_PASSCODE_GIVEN << 1;
+    private static final int BELOW_TARGET = ALARM_PASSCODE_WRONG << 1;
+    private static final int ABOVE_TARGET = BELOW_TARGET << 1;
+    private static final int HAS_CHILLER = ABOVE_TARGET << 1;
+    private static final int MODE_HEATER = HAS_CHILLER << 1;
+    private static final int MODE_CHILLER = MODE_HEATER << 1;
+    private static final int NIGHT = MODE_CHILLER << 1;
+    private static final int NIGHT_INVALID = NIGHT << 1;
+    /** the bits that depend on the clock */
+    static final int CLOCK_BITS = NIGHT | NIGHT_INVALID;
+
+    /** the house rules, in the order the static evaluator applies them */
+    static final List<TartanRule> RULES = List.of(
+            TartanRule.named("light-requires-occupancy")
+                    .when(LIGHT).unless(PROXIMITY).clear(LIGHT).emit(IoTEventType.LIGHT_BLOCKED)
+                    .when(LIGHT).emit(IoTEventType.LIGHT_ON)
+                    .otherwise().emit(IoTEventType.LIGHT_OFF)
+                    .build(),
+            TartanRule.named("phone-opens-door")
+                    .when(PHONE_PROXIMITY).unless(INTRUDER).set(DOOR).clear(DOOR_LOCK)
+                    .emit(IoTEventType.PHONE_DETECTED)
+                    .build(),
+            TartanRule.named("intruder-lockdown")
+                    .when(INTRUDER).set(DOOR_LOCK).clear(DOOR).emit(IoTEventType.INTRUDER)
+                    .otherwise().emit(IoTEventType.ALL_CLEAR)
+                    .build(),
+            TartanRule.named("door")
+                    .when(DOOR | ALARM).unless(PROXIMITY).set(ALARM_ACTIVE).emit(IoTEventType.BREAK_IN)
+                    .when(DOOR).unless(PROXIMITY).clear(DOOR).emit(IoTEventType.DOOR_CLOSED_VACANT)
+                    .when(DOOR | DOOR_LOCK).clear(DOOR)
+                    .when(DOOR).emit(IoTEventType.DOOR_OPEN)
+                    .when(ALARM | PROXIMITY).set(ALARM_ACTIVE).emit(IoTEventType.DOOR_CLOSED, IoTEventType.BREAK_IN)
+                    .otherwise().emit(IoTEventType.DOOR_CLOSED)
+                    .build(),
+            TartanRule.named("door-lock-passcode")
+                    .when(DOOR_LOCK | DOOR_LOCK_PASSCODE_GIVEN).unless(INTRUDER).clear(DOOR_LOCK)
+                    .when(DOOR_LOCK).emit(IoTEventType.DOOR_LOCK_PASSCODE_INVALID)
+                    .build(),
+            TartanRule.named("away-autolock")
+                    .when(AWAY_TIMER).set(DOOR_LOCK | ALARM).clear(LIGHT | DOOR | AWAY_TIMER)
+                    .emit(IoTEventType.AWAY_LIGHTS_OFF, IoTEventType.AWAY_DOOR_CLOSED)
+                    .build(),
+            TartanRule.named("occupancy")
+                    .when(PROXIMITY).unless(LIGHT | ALARM).set(LIGHT)
+                    .emit(IoTEventType.OCCUPIED, IoTEventType.LIGHT_TURNED_ON)
+                    .when(PROXIMITY).emit(IoTEventType.OCCUPIED)
+                    .otherwise().set(AWAY_TIMER).emit(IoTEventType.AWAY_TIMER_STARTED)
+                    .build(),
+            TartanRule.named("alarm-disarm")
+                    .when(ALARM).emit(IoTEventType.ALARM_ENABLED)
+                    .when(ALARM_ACTIVE | ALARM_PASSCODE_WRONG).unless(PROXIMITY).set(ALARM)
+                    .emit(IoTEventType.ALARM_HOUSE_EMPTY, IoTEventType.ALARM_PASSCODE_INVALID)
+                    .when(ALARM_ACTIVE).unless(PROXIMITY).set(ALARM).clear(ALARM_ACTIVE)
+                    .emit(IoTEventType.ALARM_HOUSE_EMPTY, IoTEventType.ALARM_PASSCODE_ACCEPTED)
+                    .whenNot(PROXIMITY).set(ALARM).emit(IoTEventType.ALARM_HOUSE_EMPTY)
+                    .when(ALARM_ACTIVE | ALARM_PASSCODE_WRONG).set(ALARM).emit(IoTEventType.ALARM_PASSCODE_INVALID)
+                    .when(ALARM_ACTIVE).clear(ALARM_ACTIVE).emit(IoTEventType.ALARM_PASSCODE_ACCEPTED)
+                    .build(),
+            TartanRule.named("alarm-disabled")
+                    .whenNot(ALARM).clear(ALARM_ACTIVE).emit(IoTEventType.ALARM_DISABLED)
+                    .build(),
+            TartanRule.named("alarm-sounds")
+                    .when(ALARM | PROXIMITY).unless(DOOR).set(ALARM_ACTIVE).emit(IoTEventType.ALARM_ACTIVATED)
+                    .when(ALARM | DOOR).unless(PROXIMITY).set(ALARM_ACTIVE).emit(IoTEventType.ALARM_ACTIVATED)
+                    .otherwise().emit(IoTEventType.ALARM_NOT_ACTIVATED)
+                    .build(),
+            TartanRule.named("heater")
+                    .when(BELOW_TARGET).set(HEATER).emitReadings(IoTEventType.HEATER_ON)
+                    .otherwise().clear(HEATER)
+                    .build(),
+            TartanRule.named("chiller")
+                    .when(ABOVE_TARGET | HAS_CHILLER).unless(CHILLER).set(CHILLER).emitReadings(IoTEventType.CHILLER_ON)
+                    .when(ABOVE_TARGET)
+                    .otherwise().clear(CHILLER)
+                    .build(),
+            TartanRule.named("hvac-mode")
+                    .when(CHILLER).set(MODE_CHILLER).clear(MODE_HEATER)
+                    .when(HEATER).set(MODE_HEATER).clear(MODE_CHILLER)
+                    .build(),
+            TartanRule.named("hvac-exclusivity")
+                    .when(MODE_HEATER | CHILLER).clear(CHILLER | HUMIDIFIER).emit(IoTEventType.CHILLER_OFF)
+                    .when(MODE_HEATER).clear(CHILLER | HUMIDIFIER)
+                    .when(MODE_CHILLER | HEATER).clear(HEATER).emit(IoTEventType.HEATER_OFF)
+                    .build(),
+            TartanRule.named("dehumidifier-with-chiller")
+                    .when(HUMIDIFIER | MODE_CHILLER).emit(IoTEventType.DEHUMIDIFIER_ON)
+                    .otherwise().clear(HUMIDIFIER).emit(IoTEventType.DEHUMIDIFIER_OFF)
+                    .build(),
+            TartanRule.named("night-lock")
+                    .when(NIGHT_INVALID).emit(IoTEventType.NIGHT_LOCK_INVALID)
+                    .when(NIGHT).unless(DOOR).set(DOOR_LOCK)
+                    .build());
+
+    static final TartanRuleEngine ENGINE = TartanRuleEngine.compile(RULES);
+
+    @Override
+    public HouseState evaluateState(HouseState inState, IoTEvents events, LocalTime currentTime) {
+        int tempReading = required(inState, HouseState.Reading.TEMPERATURE);
+        int targetTempSetting = required(inState, HouseState.Reading.TARGET_TEMP);
+        int nightStart = required(inState, HouseState.Reading.NIGHT_START);
+        int nightEnd = required(inState, HouseState.Reading.NIGHT_END);
+        if (inState.get(HouseState.Text.ALARM_PASSCODE) == null
+                && orEmpty(inState.get(HouseState.Text.GIVEN_PASSCODE)).length() > 0) {
+            // a passcode given with none set fails where the static rules compare them
+            return super.evaluateState(inState, events, currentTime);
+        }
+
+        int state = pack(inState, tempReading, targetTempSetting) | night(nightStart, nightEnd, currentTime);
+        state = evaluate(state, targetTempSetting, tempReading, events);
+        return unpack(state, inState);
+    }
+
+    /**
+     * Run the rules over a packed state
+     * @param state the packed state
+     * @param targetTemp the target temperature, for the heater and chiller events
+     * @param temp the temperature, for the heater and chiller events
+     * @param events records what the rules did
+     * @return the new packed state
+     */
+    int evaluate(int state, int targetTemp, int temp, IoTEvents events) {
+        return ENGINE.evaluate(state, targetTemp, temp, events);
+    }
+
+    /**
+     * Pack the devices and the comparisons the rules make, all but the night lock's
+     * @param inState the state
+     * @param tempReading the temperature
+     * @param targetTempSetting the target temperature
+     * @return the packed state
+     */
+    static int pack(HouseState inState, int tempReading, int targetTempSetting) {
+        String alarmPassCode = inState.get(HouseState.Text.ALARM_PASSCODE);
+        String hvacSetting = inState.get(HouseState.Text.HVAC_MODE);
+        String givenPassCode = orEmpty(inState.get(HouseState.Text.GIVEN_PASSCODE));
+
+        int state = inState.getDeviceFlags() & DEVICES;
+        if (orEmpty(inState.get(HouseState.Text.DOOR_LOCK_PASSCODE))
+                .equals(orEmpty(inState.get(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE)))) {
+            state |= DOOR_LOCK_PASSCODE_GIVEN;
+        }
+        if (givenPassCode.length() > 0 && givenPassCode.compareTo(alarmPassCode) < 0) {
+            state |= ALARM_PASSCODE_WRONG;
+        }
+        if (tempReading < targetTempSetting) {
+            state |= BELOW_TARGET;
+        } else if (tempReading > targetTempSetting) {
+            state |= ABOVE_TARGET;
+        }
+        if (inState.has(HouseState.Device.CHILLER)) {
+            state |= HAS_CHILLER;
+        }
+        if (HouseState.HVAC_HEATER.equals(hvacSetting)) {
+            state |= MODE_HEATER;
+        } else if (HouseState.HVAC_CHILLER.equals(hvacSetting)) {
+            state |= MODE_CHILLER;
+        }
+        return state;
+    }
+
+    /**
+     * Build the evaluated state
+     * @param state the packed state after the rules
+     * @param inState the state that was evaluated, for the values the rules do not change
+     * @return the evaluated state
+     */
+    static HouseState unpack(int state, HouseState inState) {
+        String hvacSetting = inState.get(HouseState.Text.HVAC_MODE);
+        if ((state & MODE_CHILLER) != 0) {
+            hvacSetting = HouseState.HVAC_CHILLER;
+        } else if ((state & MODE_HEATER) != 0) {
+            hvacSetting = HouseState.HVAC_HEATER;
+        }
+        HouseState.Builder newState = HouseState.builder()
+                .set(HouseState.Reading.TEMPERATURE, inState.get(HouseState.Reading.TEMPERATURE))
+                .set(HouseState.Reading.TARGET_TEMP, inState.get(HouseState.Reading.TARGET_TEMP))
+                .set(HouseState.Reading.NIGHT_START, inState.get(HouseState.Reading.NIGHT_START))
+                .set(HouseState.Reading.NIGHT_END, inState.get(HouseState.Reading.NIGHT_END))
+                .setDevices(state, DEVICES)
+                .set(HouseState.Text.HVAC_MODE, hvacSetting)
+                .set(HouseState.Text.ALARM_PASSCODE, inState.get(HouseState.Text.ALARM_PASSCODE))
+                .set(HouseState.Text.DOOR_LOCK_PASSCODE, orEmpty(inState.get(HouseState.Text.DOOR_LOCK_PASSCODE)))
+                .set(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE,
+                        orEmpty(inState.get(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE)))
+                .set(HouseState.Text.GIVEN_PASSCODE, orEmpty(inState.get(HouseState.Text.GIVEN_PASSCODE)));
+        if (inState.has(HouseState.Reading.HUMIDITY)) {
+            newState.set(HouseState.Reading.HUMIDITY, inState.get(HouseState.Reading.HUMIDITY));
+        }
+        return newState.build();
+    }
+
+    /**
+     * Check the night lock hours
+     * @param nightStart the start of the night, as hhmm
+     * @param nightEnd the end of the night, as hhmm
+     * @param currentTime the time now
+     * @return NIGHT if it is night now, NIGHT_INVALID if the hours are not valid times, 0 otherwise
+     *         or if the night lock is off (start and end equal)
+     */
+    static int night(int nightStart, int nightEnd, LocalTime currentTime) {
+        if (nightStart == nightEnd) {
+            return 0;
+        }
+        long start = timeOfDay(nightStart);
+        long end = timeOfDay(nightEnd);
+        if (start < 0 || end < 0) {
+            return NIGHT_INVALID;
+        }
+        long now = currentTime.toNanoOfDay();
+        boolean night = (now > start && now < end) || (start > end && (now > start || now < end));
+        return night ? NIGHT : 0;
+    }}
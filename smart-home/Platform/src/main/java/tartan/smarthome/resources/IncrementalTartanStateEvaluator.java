@@ -0,0 +1,66 @@
+package tartan.smarthome.resources;
+
+import java.time.LocalTime;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Evaluates one house's states incrementally. It keeps the last state it was given and what came
+ * out of it, and re-fires only the rules whose inputs changed, plus the rules that read what those
+ * change (see {@link TartanRuleEngine.Session}). When the house reports the same state again, as an
+ * idle house does poll after poll, evaluating comes down to that check and the last events again.
+ *
+ * The night lock depends on the clock rather than the state, so the clock is checked on every
+ * evaluation, and {@link #getTimeToNextChange} tells the caller when to evaluate again for it.
+ * Keep one evaluator per house.
+ */
+public class IncrementalTartanStateEvaluator extends CompiledTartanStateEvaluator {
+
+    private final TartanRuleEngine.Session session = ENGINE.newSession();
+
+    /** guarded by this */
+    private HouseState lastIn = null;
+    private HouseState lastOut = null;
+    private int lastPacked;
+    /** true once the rules ran for the state being evaluated */
+    private boolean packed;
+
+    @Override
+    public synchronized HouseState evaluateState(HouseState inState, IoTEvents events, LocalTime currentTime) {
+        if (inState.equals(lastIn)) {
+            int state = (lastPacked & ~CLOCK_BITS) | night(inState.get(HouseState.Reading.NIGHT_START),
+                    inState.get(HouseState.Reading.NIGHT_END), currentTime);
+            if (state == lastPacked) {
+                session.evaluate(state, inState.get(HouseState.Reading.TARGET_TEMP),
+                        inState.get(HouseState.Reading.TEMPERATURE), events);
+                return lastOut;
+            }
+        }
+
+        lastIn = null;
+        packed = false;
+        HouseState outState = super.evaluateState(inState, events, currentTime);
+        if (packed) {
+            // states the static rules evaluated are not kept
+            lastIn = inState;
+            lastOut = outState;
+        }
+        return outState;
+    }
+
+    @Override
+    int evaluate(int state, int targetTemp, int temp, IoTEvents events) {
+        lastPacked = state;
+        packed = true;
+        return session.evaluate(state, targetTemp, temp, events);
+    }
+
+    /**
+     * Get the number of rule stages the last evaluation re-fired
+     * @return the count; 0 if nothing the rules read had changed
+     */
+    public synchronized int getFiredCount() {
+        return session.getFiredCount();
+    }
+}
@@ -0,0 +1,53 @@
+package tartan.smarthome.resources;
+
+import org.slf4j.Logger;
+
+import tartan.smarthome.resources.iotcontroller.EvaluationListener;
+
+/**
+ * Passes reports to an SLF4J logger, at the matching level; the logger's configuration decides
+ * which levels are heard.
+ */
+public class Slf4jEvaluationListener implements EvaluationListener {
+
+    private final Logger logger;
+
+    /**
+     * Create a listener
+     * @param logger the logger
+     */
+    public Slf4jEvaluationListener(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        switch (level) {
+            case DEBUG:
+                return logger.isDebugEnabled();
+            case INFO:
+                return logger.isInfoEnabled();
+            case WARN:
+                return logger.isWarnEnabled();
+            default:
+                return logger.isErrorEnabled();
+        }
+    }
+
+    @Override
+    public void report(Level level, String message, Throwable error) {
+        switch (level) {
+            case DEBUG:
+                logger.debug(message, error);
+                break;
+            case INFO:
+                logger.info(message, error);
+                break;
+            case WARN:
+                logger.warn(message, error);
+                break;
+            default:
+                logger.error(message, error);
+        }
+    }
+}
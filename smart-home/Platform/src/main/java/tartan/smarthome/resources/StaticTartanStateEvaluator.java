@@ -1,21 +1,31 @@
 package tartan.smarthome.resources;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.time.DateTimeException;
 import java.time.LocalTime;
-import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import tartan.smarthome.resources.iotcontroller.EvaluationListener;
+import tartan.smarthome.resources.iotcontroller.EvaluationListeners;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
 
 public class StaticTartanStateEvaluator implements TartanStateEvaluator {
 
-    private String formatLogEntry(String entry) {
-        Long timeStamp = System.currentTimeMillis();
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-        return "[" + sdf.format(new Date(timeStamp)) + "]: " + entry + "\n";
-    }
+    /** the keys this evaluator understands in the Map form of the state */
+    private static final Set<String> KNOWN_KEYS = Set.of(
+            IoTValues.TEMP_READING, IoTValues.HUMIDITY_READING, IoTValues.TARGET_TEMP, IoTValues.NIGHT_START,
+            IoTValues.NIGHT_END, IoTValues.HUMIDIFIER_STATE, IoTValues.DOOR_STATE, IoTValues.DOOR_LOCK_STATE,
+            IoTValues.LIGHT_STATE, IoTValues.PROXIMITY_STATE, IoTValues.ALARM_STATE, IoTValues.HEATER_STATE,
+            IoTValues.CHILLER_STATE, IoTValues.HVAC_MODE, IoTValues.ALARM_PASSCODE, IoTValues.GIVEN_PASSCODE,
+            IoTValues.AWAY_TIMER, IoTValues.ALARM_ACTIVE, IoTValues.INTRUDER_STATE, IoTValues.PHONE_PROXIMITY,
+            IoTValues.DOOR_LOCK_PASSCODE, IoTValues.GIVEN_DOOR_LOCK_PASSCODE);
+
+    private volatile EvaluationListener listener = EvaluationListeners.getDefault();
+
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+    private static final long NANOS_PER_DAY = 24 * 60 * NANOS_PER_MINUTE;
 
     /**
      * Ensure the requested state is permitted. This method checks each state
@@ -31,120 +41,108 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
     }
 
     public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log, LocalTime currentTime) {
+        IoTEvents events = new IoTEvents();
+        for (String key : inState.keySet()) {
+            if (!KNOWN_KEYS.contains(key)) {
+                events.record(IoTEventType.UNKNOWN_KEY, key);
+            }
+        }
+        Map<String, Object> outState = evaluateState(HouseState.fromMap(inState), events, currentTime).toMap();
+        events.appendTo(log);
+        return outState;
+    }
+
+    @Override
+    public HouseState evaluateState(HouseState inState, StringBuffer log) {
+        return evaluateState(inState, log, LocalTime.now());
+    }
+
+    /**
+     * Evaluate a state at a given time of day, logging as text
+     *
+     * @param inState The new state to evaluate
+     * @param log The log of state evaluations
+     * @param currentTime the time used for the night lock
+     * @return The evaluated state
+     */
+    public HouseState evaluateState(HouseState inState, StringBuffer log, LocalTime currentTime) {
+        IoTEvents events = new IoTEvents();
+        HouseState outState = evaluateState(inState, events, currentTime);
+        events.appendTo(log);
+        return outState;
+    }
+
+    @Override
+    public HouseState evaluateState(HouseState inState, IoTEvents events) {
+        return evaluateState(inState, events, LocalTime.now());
+    }
+
+    /**
+     * Evaluate a state at a given time of day
+     *
+     * @param inState The new state to evaluate
+     * @param events records what the evaluation did
+     * @param currentTime the time used for the night lock
+     * @return The evaluated state
+     * @throws NullPointerException if the temperature, target temperature or night times are missing
+     */
+    public HouseState evaluateState(HouseState inState, IoTEvents events, LocalTime currentTime) {
 
         // These are the state variables that reflect the current configuration of the
         // house
 
-        Integer tempReading = null; // the current temperature
-        Integer targetTempSetting = null; // the user-desired temperature setting
-        Integer nightStart = null;
-        Integer nightEnd = null;
-        Integer humidityReading = null; // the current humidity
-        Boolean doorState = null; // the state of the door (true if open, false if closed)
-        Boolean doorLockState = false; // state of the door lock (true if locked, false if unlocked)
-        Boolean lightState = null; // the state of the light (true if on, false if off)
-        Boolean proximityState = null; // the state of the proximity sensor (true of house occupied, false if vacant)
-        Boolean alarmState = null; // the alarm state (true if enabled, false if disabled)
-        Boolean humidifierState = null; // the humidifier state (true if on, false if off)
-        Boolean heaterOnState = null; // the heater state (true if on, false if off)
-        Boolean chillerOnState = null; // the chiller state (true if on, false if off)
-        Boolean alarmActiveState = null; // the alarm active state (true if alarm sounding, false if alarm not sounding)
-        Boolean awayTimerState = false; // assume that the away timer did not trigger this evaluation
-        Boolean intruderState = false; // state of the intruder threat (true if threat exists, false if no threat)
-        Boolean phoneProximityState = false; //state of reigstered phone sensor (false if not detected outside house, true if it is)
-        String alarmPassCode = null;
-        String hvacSetting = null; // the HVAC mode setting, either Heater or Chiller
-        String givenPassCode = "";
-        String doorLockPasscode = "";
-        String givenDoorLockPasscode = "";
-
-        System.out.println("Evaluating new state statically");
-
-        Set<String> keys = inState.keySet();
-        for (String key : keys) {
-            if (key.equals(IoTValues.TEMP_READING)) {
-                tempReading = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.HUMIDITY_READING)) {
-                humidityReading = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.TARGET_TEMP)) {
-                targetTempSetting = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.NIGHT_START)) {
-                nightStart = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.NIGHT_END)) {
-                nightEnd = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                humidifierState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.DOOR_STATE)) {
-                doorState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.DOOR_LOCK_STATE)) {
-                doorLockState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                lightState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.PROXIMITY_STATE)) {
-                proximityState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                alarmState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                heaterOnState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                chillerOnState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.HVAC_MODE)) {
-                hvacSetting = (String) inState.get(key);
-            } else if (key.equals(IoTValues.ALARM_PASSCODE)) {
-                alarmPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.GIVEN_PASSCODE)) {
-                givenPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.AWAY_TIMER)) {
-                // This is a hack!
-                awayTimerState = (Boolean) inState.getOrDefault(key, false);
-            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                alarmActiveState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.INTRUDER_STATE)) {
-                intruderState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.PHONE_PROXIMITY)) {
-                phoneProximityState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.DOOR_LOCK_PASSCODE)) {
-                doorLockPasscode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.GIVEN_DOOR_LOCK_PASSCODE)) {
-                givenDoorLockPasscode = (String) inState.get(key);
-            } else {
-                log.append(formatLogEntry("Warning: Unrecognized key in input state - " + key));
-            }
+        int tempReading = required(inState, HouseState.Reading.TEMPERATURE); // the current temperature
+        int targetTempSetting = required(inState, HouseState.Reading.TARGET_TEMP); // the user-desired temperature setting
+        int nightStart = required(inState, HouseState.Reading.NIGHT_START);
+        int nightEnd = required(inState, HouseState.Reading.NIGHT_END);
+        boolean doorState = inState.is(HouseState.Device.DOOR); // the state of the door (true if open, false if closed)
+        boolean doorLockState = inState.is(HouseState.Device.DOOR_LOCK); // state of the door lock (true if locked, false if unlocked)
+        boolean lightState = inState.is(HouseState.Device.LIGHT); // the state of the light (true if on, false if off)
+        boolean proximityState = inState.is(HouseState.Device.PROXIMITY); // the state of the proximity sensor (true of house occupied, false if vacant)
+        boolean alarmState = inState.is(HouseState.Device.ALARM); // the alarm state (true if enabled, false if disabled)
+        boolean humidifierState = inState.is(HouseState.Device.HUMIDIFIER); // the humidifier state (true if on, false if off)
+        boolean heaterOnState; // the heater state (true if on, false if off)
+        boolean chillerOnState = inState.is(HouseState.Device.CHILLER); // the chiller state (true if on, false if off)
+        boolean alarmActiveState = inState.is(HouseState.Device.ALARM_ACTIVE); // the alarm active state (true if alarm sounding, false if alarm not sounding)
+        boolean awayTimerState = inState.is(HouseState.Device.AWAY_TIMER); // whether the away timer triggered this evaluation
+        boolean intruderState = inState.is(HouseState.Device.INTRUDER); // state of the intruder threat (true if threat exists, false if no threat)
+        boolean phoneProximityState = inState.is(HouseState.Device.PHONE_PROXIMITY); //state of reigstered phone sensor (false if not detected outside house, true if it is)
+        String alarmPassCode = inState.get(HouseState.Text.ALARM_PASSCODE);
+        String hvacSetting = inState.get(HouseState.Text.HVAC_MODE); // the HVAC mode setting, either Heater or Chiller
+        String givenPassCode = orEmpty(inState.get(HouseState.Text.GIVEN_PASSCODE));
+        String doorLockPasscode = orEmpty(inState.get(HouseState.Text.DOOR_LOCK_PASSCODE));
+        String givenDoorLockPasscode = orEmpty(inState.get(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE));
+
+        EvaluationListener listener = this.listener;
+        if (listener.isEnabled(EvaluationListener.Level.DEBUG)) {
+            listener.report(EvaluationListener.Level.DEBUG, "Evaluating new state statically");
         }
 
-        // Ensure all boolean values are not null before using them
-        alarmState = alarmState != null ? alarmState : false;
-        doorState = doorState != null ? doorState : false;
-        proximityState = proximityState != null ? proximityState : false;
-        lightState = lightState != null ? lightState : false;
-        alarmActiveState = alarmActiveState != null ? alarmActiveState : false;
-
-
         if (lightState) {
             // The light was activated
             if (!proximityState) {
-                log.append(formatLogEntry("Cannot turn on light because user not home"));
+                events.record(IoTEventType.LIGHT_BLOCKED);
                 lightState = false;
             } else {
-                log.append(formatLogEntry("Light on"));
+                events.record(IoTEventType.LIGHT_ON);
             }
         } else {
-            log.append(formatLogEntry("Light off"));
+            events.record(IoTEventType.LIGHT_OFF);
         }
 
         // if registered phone detected open the door, and unlock door
         if (phoneProximityState && !intruderState) {
             doorLockState = false;
             doorState = true;
-            log.append(formatLogEntry("Registered phone detected, opening and unlocking door"));
+            events.record(IoTEventType.PHONE_DETECTED);
         }
 
         if (intruderState) {
             doorState = false;  // Close door
             doorLockState = true;   // Lock door
-            log.append(formatLogEntry("Possible intruder detected"));
+            events.record(IoTEventType.INTRUDER);
         } else {
-            log.append(formatLogEntry("All clear"));
+            events.record(IoTEventType.ALL_CLEAR);
         }
 
         // The door is now open
@@ -152,30 +150,30 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
             if (!proximityState && alarmState) {
 
                 // door open and no one home and the alarm is set - sound alarm
-                log.append(formatLogEntry("Break in detected: Activating alarm"));
+                events.record(IoTEventType.BREAK_IN);
                 alarmActiveState = true;
             }
             // House vacant, close the door
             else if (!proximityState) {
                 // close the door
                 doorState = false;
-                log.append(formatLogEntry("Closed door because house vacant and no registered devices are in proximity"));
+                events.record(IoTEventType.DOOR_CLOSED_VACANT);
             } else if (doorLockState) {
                 // The door is locked and should not open
                 doorState = false;
             } else {
-                log.append(formatLogEntry("Door open"));
+                events.record(IoTEventType.DOOR_OPEN);
             }
         
             // The door is open the alarm is to be set and somebody is home - this is not
             // allowed so discard the processStateUpdate
         }
             else {
-            log.append(formatLogEntry("Closed door")); // ✅ Ensure this log always happens
+            events.record(IoTEventType.DOOR_CLOSED); // ✅ Ensure this log always happens
 
             // The door is closed - if the house is suddenly occupied, this is a break-in
             if (alarmState && proximityState) {
-                log.append(formatLogEntry("Break in detected: Activating alarm"));
+                events.record(IoTEventType.BREAK_IN);
                 alarmActiveState = true;
             }
         }
@@ -184,60 +182,60 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
             if ((doorLockPasscode.compareTo(givenDoorLockPasscode)) == 0 && !intruderState) {
                 doorLockState = false;
             } else {
-                log.append(formatLogEntry("Invalid door lock passcode"));
+                events.record(IoTEventType.DOOR_LOCK_PASSCODE_INVALID);
             }
         }
 
         // Auto lock the house
         if (awayTimerState == true) {
             lightState = false;
-            log.append(formatLogEntry("Away timer expired: turning off lights"));
+            events.record(IoTEventType.AWAY_LIGHTS_OFF);
             doorState = false;
             doorLockState = true;
             alarmState = true;
-            log.append(formatLogEntry("Away timer expired: closing door"));
+            events.record(IoTEventType.AWAY_DOOR_CLOSED);
             awayTimerState = false;
         }
 
         // the user has arrived
         if (proximityState) {
-            log.append(formatLogEntry("House is occupied"));
+            events.record(IoTEventType.OCCUPIED);
             // if the alarm has been disabled, then turn on the light for the user
 
             if (!lightState && !alarmState) {
                 lightState = true;
-                log.append(formatLogEntry("Turning on light"));
+                events.record(IoTEventType.LIGHT_TURNED_ON);
             }
 
         } else {
             // The house is empty, start the away timer
             awayTimerState = true;
-            log.append(formatLogEntry("Away timer started because house is empty"));
+            events.record(IoTEventType.AWAY_TIMER_STARTED);
         }
 
         // set the alarm
         if (alarmState) {
-            log.append(formatLogEntry("Alarm enabled"));
+            events.record(IoTEventType.ALARM_ENABLED);
         } else { // attempt to disable alarm
             if (!proximityState) {
                 alarmState = true;
-                log.append(formatLogEntry("Cannot disable the alarm, house is empty"));
+                events.record(IoTEventType.ALARM_HOUSE_EMPTY);
             }
 
             if (alarmActiveState) {
                 if (givenPassCode.length() > 0 && givenPassCode.compareTo(alarmPassCode) < 0) {
-                    log.append(formatLogEntry("Cannot disable alarm, invalid passcode given"));
+                    events.record(IoTEventType.ALARM_PASSCODE_INVALID);
                     alarmState = true;
 
                 } else {
-                    log.append(formatLogEntry("Correct passcode entered, disabled alarm"));
+                    events.record(IoTEventType.ALARM_PASSCODE_ACCEPTED);
                     alarmActiveState = false;
                 }
             }
         }
 
         if (!alarmState) {
-            log.append(formatLogEntry("Alarm disabled"));
+            events.record(IoTEventType.ALARM_DISABLED);
         }
 
         if (!alarmState) { // alarm disabled
@@ -249,17 +247,16 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
         // 1. the door is opened when no one is home
         // 2. the house is suddenly occupied
         if ((alarmState && !doorState && proximityState) || (alarmState && doorState && !proximityState)) {
-            log.append(formatLogEntry("Activating alarm"));
+            events.record(IoTEventType.ALARM_ACTIVATED);
             alarmActiveState = true;
         } else {
-            log.append(formatLogEntry("Alarm not activated"));
+            events.record(IoTEventType.ALARM_NOT_ACTIVATED);
         }
 
 
         // Is the heater needed?
         if (tempReading < targetTempSetting) {
-            log.append(formatLogEntry("Turning on heater, target temperature = " + targetTempSetting
-                    + "F, current temperature = " + tempReading + "F"));
+            events.record(IoTEventType.HEATER_ON, targetTempSetting, tempReading);
             heaterOnState = true;
 
             // Heater already on
@@ -270,10 +267,9 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
 
         if (tempReading > targetTempSetting) {
             // Is the heater needed?
-            if (chillerOnState != null) {
+            if (inState.has(HouseState.Device.CHILLER)) {
                 if (!chillerOnState) {
-                    log.append(formatLogEntry("Turning on air conditioner target temperature = " + targetTempSetting
-                            + "F, current temperature = " + tempReading + "F"));
+                    events.record(IoTEventType.CHILLER_ON, targetTempSetting, tempReading);
                     chillerOnState = true;
                 } // AC already on
             }
@@ -282,35 +278,35 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
         }
 
         if (chillerOnState) {
-            hvacSetting = "Chiller";
+            hvacSetting = HouseState.HVAC_CHILLER;
         } else if (heaterOnState) {
-            hvacSetting = "Heater";
+            hvacSetting = HouseState.HVAC_HEATER;
         }
         // manage the HVAC control
 
-        if (hvacSetting.equals("Heater")) {
+        if (HouseState.HVAC_HEATER.equals(hvacSetting)) {
 
             if (chillerOnState == true) {
-                log.append(formatLogEntry("Turning off air conditioner"));
+                events.record(IoTEventType.CHILLER_OFF);
             }
 
             chillerOnState = false; // can't run AC
             humidifierState = false; // can't run dehumidifier with heater
         }
 
-        if (hvacSetting.equals("Chiller")) {
+        if (HouseState.HVAC_CHILLER.equals(hvacSetting)) {
 
             if (heaterOnState == true) {
-                log.append(formatLogEntry("Turning off heater"));
+                events.record(IoTEventType.HEATER_OFF);
             }
 
             heaterOnState = false; // can't run heater when the A/C is on
         }
 
-        if (humidifierState && hvacSetting.equals("Chiller")) {
-            log.append(formatLogEntry("Enabled Dehumidifier"));
+        if (humidifierState && HouseState.HVAC_CHILLER.equals(hvacSetting)) {
+            events.record(IoTEventType.DEHUMIDIFIER_ON);
         } else {
-            log.append(formatLogEntry("Automatically disabled dehumidifier when running heater"));
+            events.record(IoTEventType.DEHUMIDIFIER_OFF);
             humidifierState = false;
         }
 
@@ -322,41 +318,96 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
                     doorLockState = true; // Lock door
                 }
             } catch (DateTimeException e) {
-                log.append(formatLogEntry("Night lock is disabled due to invalid time specifications"));
+                events.record(IoTEventType.NIGHT_LOCK_INVALID);
             }
         }
 
         // String msg = "Door lock state is " + doorLockState;
-        // log.append(formatLogEntry(msg));
-
-        Map<String, Object> newState = new Hashtable<>();
-        newState.put(IoTValues.TEMP_READING, tempReading);
-        newState.put(IoTValues.HUMIDITY_READING, humidityReading);
-        newState.put(IoTValues.TARGET_TEMP, targetTempSetting);
-        newState.put(IoTValues.NIGHT_START, nightStart);
-        newState.put(IoTValues.NIGHT_END, nightEnd);
-        newState.put(IoTValues.HUMIDIFIER_STATE, humidifierState);
-        newState.put(IoTValues.DOOR_STATE, doorState);
-        newState.put(IoTValues.LIGHT_STATE, lightState);
-        newState.put(IoTValues.PROXIMITY_STATE, proximityState);
-        newState.put(IoTValues.ALARM_STATE, alarmState);
-        newState.put(IoTValues.HEATER_STATE, heaterOnState);
-        newState.put(IoTValues.CHILLER_STATE, chillerOnState);
-        newState.put(IoTValues.ALARM_ACTIVE, alarmActiveState);
-        newState.put(IoTValues.HVAC_MODE, hvacSetting);
-        newState.put(IoTValues.ALARM_PASSCODE, alarmPassCode);
-        newState.put(IoTValues.AWAY_TIMER, awayTimerState);
-        newState.put(IoTValues.INTRUDER_STATE, intruderState);
-        newState.put(IoTValues.PHONE_PROXIMITY, phoneProximityState);
-        newState.put(IoTValues.DOOR_LOCK_PASSCODE, doorLockPasscode);
-        newState.put(IoTValues.GIVEN_DOOR_LOCK_PASSCODE, givenDoorLockPasscode);
-        newState.put(IoTValues.DOOR_LOCK_STATE, doorLockState);
-        newState.put(IoTValues.GIVEN_PASSCODE, givenPassCode);
+        // events.record(IoTEventType.MESSAGE, msg);
+
+        HouseState.Builder newState = HouseState.builder()
+                .set(HouseState.Reading.TEMPERATURE, tempReading)
+                .set(HouseState.Reading.TARGET_TEMP, targetTempSetting)
+                .set(HouseState.Reading.NIGHT_START, nightStart)
+                .set(HouseState.Reading.NIGHT_END, nightEnd)
+                .set(HouseState.Device.HUMIDIFIER, humidifierState)
+                .set(HouseState.Device.DOOR, doorState)
+                .set(HouseState.Device.LIGHT, lightState)
+                .set(HouseState.Device.PROXIMITY, proximityState)
+                .set(HouseState.Device.ALARM, alarmState)
+                .set(HouseState.Device.HEATER, heaterOnState)
+                .set(HouseState.Device.CHILLER, chillerOnState)
+                .set(HouseState.Device.ALARM_ACTIVE, alarmActiveState)
+                .set(HouseState.Text.HVAC_MODE, hvacSetting)
+                .set(HouseState.Text.ALARM_PASSCODE, alarmPassCode)
+                .set(HouseState.Device.AWAY_TIMER, awayTimerState)
+                .set(HouseState.Device.INTRUDER, intruderState)
+                .set(HouseState.Device.PHONE_PROXIMITY, phoneProximityState)
+                .set(HouseState.Text.DOOR_LOCK_PASSCODE, doorLockPasscode)
+                .set(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE, givenDoorLockPasscode)
+                .set(HouseState.Device.DOOR_LOCK, doorLockState)
+                .set(HouseState.Text.GIVEN_PASSCODE, givenPassCode);
         // G2
-        if (humidityReading != null) {
-            newState.put(IoTValues.HUMIDITY_READING, humidityReading);
+        if (inState.has(HouseState.Reading.HUMIDITY)) {
+            newState.set(HouseState.Reading.HUMIDITY, inState.get(HouseState.Reading.HUMIDITY));
         }
 
-        return newState;
+        return newState.build();
+    }
+
+    @Override
+    public void setListener(EvaluationListener listener) {
+        this.listener = listener == null ? EvaluationListeners.none() : listener;
+    }
+
+    @Override
+    public long getTimeToNextChange(HouseState state, LocalTime currentTime) {
+        if (!state.has(HouseState.Reading.NIGHT_START) || !state.has(HouseState.Reading.NIGHT_END)) {
+            return Long.MAX_VALUE;
+        }
+        int nightStart = state.get(HouseState.Reading.NIGHT_START);
+        int nightEnd = state.get(HouseState.Reading.NIGHT_END);
+        long start = timeOfDay(nightStart);
+        long end = timeOfDay(nightEnd);
+        if (nightStart == nightEnd || start < 0 || end < 0) {
+            return Long.MAX_VALUE;
+        }
+        long now = currentTime.toNanoOfDay();
+        long next = Math.min(untilAfter(start, now), untilAfter(end, now));
+        return next / 1_000_000 + 1;
+    }
+
+    /**
+     * @param time a time of day in nanoseconds
+     * @param now the time now in nanoseconds
+     * @return the nanoseconds until the time is past, today or tomorrow
+     */
+    static long untilAfter(long time, long now) {
+        long until = time - now;
+        return until >= 0 ? until : until + NANOS_PER_DAY;
+    }
+
+    /**
+     * @param hhmm a time as hours * 100 + minutes
+     * @return the time in nanoseconds since midnight, or -1 if it is not a valid time of day
+     */
+    static long timeOfDay(int hhmm) {
+        int hour = Math.floorDiv(hhmm, 100);
+        int minute = hhmm % 100;
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+            return -1;
+        }
+        return (hour * 60L + minute) * NANOS_PER_MINUTE;
+    }
+
+    static int required(HouseState state, HouseState.Reading reading) {
+        if (!state.has(reading)) {
+            throw new NullPointerException("Missing " + reading.getKey() + " in input state");
+        }
+        return state.get(reading);
+    }
+
+    static String orEmpty(String value) {
+        return value == null ? "" : value;
     }
-}
\ No newline at end of file
+}
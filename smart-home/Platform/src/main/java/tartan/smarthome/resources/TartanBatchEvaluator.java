@@ -0,0 +1,202 @@
+package tartan.smarthome.resources;
+
+import java.time.LocalTime;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Evaluates many houses' states in one call, for jobs over the whole fleet such as applying a policy
+ * change, the night lock hours starting, or replaying a stored day. The outcome for each house is
+ * the same as {@link CompiledTartanStateEvaluator}'s.
+ *
+ * The batch is kept as parallel arrays, one slot per house: the packed rule bits (see
+ * {@link CompiledTartanStateEvaluator}), the readings the events carry, the evaluated states and the
+ * devices that changed. The houses are split into ranges across a {@link ForkJoinPool}, and each
+ * range makes three passes over its slots: pack the states, run the rule tables, build the
+ * evaluated states. A state the compiled evaluator hands to the static rules, such as a passcode
+ * given with none set, is evaluated on its own in the first pass, and fails there as it would alone.
+ */
+public class TartanBatchEvaluator {
+
+    /** ranges of at most this many houses are not split further */
+    static final int SPLIT_THRESHOLD = 512;
+
+    /** marks a slot whose house was evaluated on its own */
+    private static final int UNPACKED = -1;
+
+    private static final CompiledTartanStateEvaluator RULES = new CompiledTartanStateEvaluator();
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a batch evaluator that runs on the common pool
+     */
+    public TartanBatchEvaluator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a batch evaluator
+     * @param pool runs the ranges of each batch
+     */
+    public TartanBatchEvaluator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Evaluate many states without recording events
+     * @param states the states, one per house
+     * @param currentTime the time of day the states are evaluated at
+     * @return the evaluated states and what changed
+     * @throws NullPointerException if a state lacks a reading the rules need
+     */
+    public Result evaluate(HouseState[] states, LocalTime currentTime) {
+        return evaluate(states, null, currentTime);
+    }
+
+    /**
+     * Evaluate many states
+     * @param states the states, one per house
+     * @param events per house, records what its evaluation did; null to record nothing
+     * @param currentTime the time of day the states are evaluated at
+     * @return the evaluated states and what changed
+     * @throws NullPointerException if a state lacks a reading the rules need
+     */
+    public Result evaluate(HouseState[] states, IoTEvents[] events, LocalTime currentTime) {
+        if (events != null && events.length != states.length) {
+            throw new IllegalArgumentException("Expected " + states.length + " event recorders, got " + events.length);
+        }
+        Result result = new Result(states, events, currentTime);
+        pool.invoke(new Range(result, 0, states.length));
+        return result;
+    }
+
+    /**
+     * The outcome of a batch, one slot per house in the order given
+     */
+    public static final class Result {
+        private final HouseState[] in;
+        private final IoTEvents[] events;
+        private final LocalTime currentTime;
+        private final int[] packed;
+        private final int[] temps;
+        private final int[] targetTemps;
+        private final HouseState[] states;
+        private final int[] changes;
+
+        private Result(HouseState[] in, IoTEvents[] events, LocalTime currentTime) {
+            this.in = in;
+            this.events = events;
+            this.currentTime = currentTime;
+            this.packed = new int[in.length];
+            this.temps = new int[in.length];
+            this.targetTemps = new int[in.length];
+            this.states = new HouseState[in.length];
+            this.changes = new int[in.length];
+        }
+
+        private void evaluate(int from, int to) {
+            for (int i = from; i < to; i++) {
+                HouseState state = in[i];
+                temps[i] = StaticTartanStateEvaluator.required(state, HouseState.Reading.TEMPERATURE);
+                targetTemps[i] = StaticTartanStateEvaluator.required(state, HouseState.Reading.TARGET_TEMP);
+                int nightStart = StaticTartanStateEvaluator.required(state, HouseState.Reading.NIGHT_START);
+                int nightEnd = StaticTartanStateEvaluator.required(state, HouseState.Reading.NIGHT_END);
+                if (state.get(HouseState.Text.ALARM_PASSCODE) == null
+                        && StaticTartanStateEvaluator.orEmpty(state.get(HouseState.Text.GIVEN_PASSCODE)).length() > 0) {
+                    states[i] = RULES.evaluateState(state, events == null ? new IoTEvents() : events[i], currentTime);
+                    packed[i] = UNPACKED;
+                } else {
+                    packed[i] = CompiledTartanStateEvaluator.pack(state, temps[i], targetTemps[i])
+                            | CompiledTartanStateEvaluator.night(nightStart, nightEnd, currentTime);
+                }
+            }
+
+            if (events == null) {
+                for (int i = from; i < to; i++) {
+                    if (packed[i] != UNPACKED) {
+                        packed[i] = CompiledTartanStateEvaluator.ENGINE.evaluate(packed[i]);
+                    }
+                }
+            } else {
+                for (int i = from; i < to; i++) {
+                    if (packed[i] != UNPACKED) {
+                        packed[i] = CompiledTartanStateEvaluator.ENGINE.evaluate(packed[i], targetTemps[i], temps[i],
+                                events[i]);
+                    }
+                }
+            }
+
+            for (int i = from; i < to; i++) {
+                if (packed[i] != UNPACKED) {
+                    states[i] = CompiledTartanStateEvaluator.unpack(packed[i], in[i]);
+                }
+                changes[i] = (in[i].getDeviceFlags() ^ states[i].getDeviceFlags()) & CompiledTartanStateEvaluator.DEVICES;
+            }
+        }
+
+        /**
+         * Get the number of houses in the batch
+         * @return the count
+         */
+        public int size() {
+            return states.length;
+        }
+
+        /**
+         * Get the evaluated states
+         * @return the states, in the order the houses were given
+         */
+        public HouseState[] getStates() {
+            return states;
+        }
+
+        /**
+         * Get the devices each evaluation turned on or off
+         * @return per house, the {@link HouseState.Device#getBit() bits} of the devices that changed
+         */
+        public int[] getChanges() {
+            return changes;
+        }
+
+        /**
+         * Get the number of houses whose devices changed
+         * @return the count
+         */
+        public int getChangedCount() {
+            int count = 0;
+            for (int change : changes) {
+                if (change != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /** a range of the batch, split in halves until it is small enough to evaluate */
+    private static final class Range extends RecursiveAction {
+        private final Result result;
+        private final int from;
+        private final int to;
+
+        Range(Result result, int from, int to) {
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                result.evaluate(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(result, from, middle), new Range(result, middle, to));
+        }
+    }
+}
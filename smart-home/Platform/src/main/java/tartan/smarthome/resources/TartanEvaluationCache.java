@@ -0,0 +1,169 @@
+package tartan.smarthome.resources;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Remembers what evaluating a house state gave, for any house that presents the same state. An
+ * evaluation depends only on the state and on whether the night lock hours are on now, so that is
+ * the key: the state, already packed into flags and readings, and the clock reduced to the night
+ * lock bits of {@link CompiledTartanStateEvaluator#night}. The clock thus only changes the key when
+ * it crosses a night lock boundary. The value is the evaluated state and the events recorded on the
+ * way, kept read only.
+ *
+ * The cache is bounded and drops the state used least recently first. It is shared by the houses
+ * and safe to use from their update threads; a capacity of 0 keeps nothing.
+ */
+public final class TartanEvaluationCache {
+
+    /** the capacity of the default cache, unless configured */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static TartanEvaluationCache defaultCache = null;
+
+    /** what evaluating a state gave */
+    static final class Outcome {
+        final HouseState state;
+        final IoTEvents events;
+
+        Outcome(HouseState state, IoTEvents events) {
+            this.state = state;
+            this.events = events;
+        }
+    }
+
+    /** a state and the night lock bits at the time it was evaluated */
+    private static final class Key {
+        final HouseState state;
+        final int clock;
+
+        Key(HouseState state, int clock) {
+            this.state = state;
+            this.clock = clock;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return clock == other.clock && state.equals(other.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return state.hashCode() * 31 + clock;
+        }
+    }
+
+    private final int capacity;
+
+    /** guarded by this; in access order, so the eldest entry is the one used least recently */
+    private final LinkedHashMap<Key, Outcome> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a cache
+     * @param capacity the most states kept
+     */
+    public TartanEvaluationCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Outcome> eldest) {
+                return size() > TartanEvaluationCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the process-wide cache used by houses that are not given their own
+     * @return the default cache
+     */
+    public static synchronized TartanEvaluationCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new TartanEvaluationCache(DEFAULT_CAPACITY);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Replace the process-wide cache. Call before any house connects
+     * @param capacity the most states kept
+     * @return the new default cache
+     */
+    public static synchronized TartanEvaluationCache configureDefault(int capacity) {
+        defaultCache = new TartanEvaluationCache(capacity);
+        return defaultCache;
+    }
+
+    /**
+     * Look up what evaluating a state gave
+     * @param state the state
+     * @param clock the night lock bits now
+     * @return the outcome, or null if the state is not kept
+     */
+    synchronized Outcome get(HouseState state, int clock) {
+        Outcome outcome = entries.get(new Key(state, clock));
+        if (outcome == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return outcome;
+    }
+
+    /**
+     * Keep what evaluating a state gave
+     * @param state the state
+     * @param clock the night lock bits when it was evaluated
+     * @param outcome the evaluated state and its read only events
+     */
+    synchronized void put(HouseState state, int clock, Outcome outcome) {
+        if (capacity > 0) {
+            entries.put(new Key(state, clock), outcome);
+        }
+    }
+
+    /**
+     * Get the number of lookups that found the state
+     * @return the count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that did not find the state
+     * @return the count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the share of lookups that found the state
+     * @return the hit rate, from 0 to 1; 0 before any lookup
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Get the number of states kept
+     * @return the count
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
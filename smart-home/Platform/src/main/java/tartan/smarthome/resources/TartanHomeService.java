@@ -1,7 +1,15 @@
 package tartan.smarthome.resources;
 
 import net.sourceforge.argparse4j.impl.type.BooleanArgumentType;
+import tartan.smarthome.resources.iotcontroller.EvaluationListener;
+import tartan.smarthome.resources.iotcontroller.EvaluationListeners;
+import tartan.smarthome.resources.iotcontroller.EventLogEvaluationListener;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTAdaptivePollPolicy;
+import tartan.smarthome.resources.iotcontroller.IoTCommandLane;
 import tartan.smarthome.resources.iotcontroller.IoTControlManager;
+import tartan.smarthome.resources.iotcontroller.IoTEventLog;
+import tartan.smarthome.resources.iotcontroller.IoTHouseSnapshot;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
 import io.dropwizard.hibernate.UnitOfWork;
 import org.slf4j.Logger;
@@ -20,6 +28,9 @@ import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /***
  * The service layer for the Tartan Home System. Additional inputs and control mechanisms should be accessed here.
@@ -30,6 +41,9 @@ public class TartanHomeService {
     // the controller for the house
     private IoTControlManager controller;
 
+    // evaluates through the shared evaluation cache; null if the house does not use it
+    private CachingTartanStateEvaluator cachingEvaluator = null;
+
     // a logging system
     private static final Logger LOGGER = LoggerFactory.getLogger(TartanHomeService.class);
 
@@ -37,14 +51,35 @@ public class TartanHomeService {
     private String name;
     private String address;
     private Integer port;
-    private String alarmDelay;
+    private volatile String alarmDelay;
     private String alarmPasscode;
     private String doorLockPasscode;
-    private String targetTemp;
-    private String nightStart;
-    private String nightEnd;
+    private volatile String targetTemp;
+    private volatile String nightStart;
+    private volatile String nightEnd;
     private String user;
     private String password;
+    private String transport;
+    private String evaluator;
+    private Boolean evaluationCache;
+    private String diagnostics;
+    private String pipelining;
+    private String framing;
+    private Integer requestTimeout;
+    private Integer reconnectMaxDelay;
+    private Boolean push;
+    private Integer heartbeatInterval;
+    private Integer pollInterval;
+    private Integer pollActiveInterval;
+    private Integer pollMaxInterval;
+    private Integer eventLogCapacity;
+    private Integer updateWindow;
+    private Integer updateTimeout;
+    private Integer stateMaxAge;
+    private Integer breakerThreshold;
+    private Integer breakerOpenTime;
+    private Integer routineWriteBurst;
+    private Integer routineWriteRate;
 
     // AB Testing parameters -- lights
     private String groupExperiment;
@@ -59,6 +94,9 @@ public class TartanHomeService {
     private HomeDAO homeDAO;
     private boolean authenticated;
 
+    // the last event log entry written to the server log
+    private final AtomicLong loggedSequence = new AtomicLong(-1);
+
     // historian parameters
     private Boolean logHistory;
     private int historyTimer = 60000;
@@ -83,6 +121,27 @@ public class TartanHomeService {
         this.name = settings.getName();
         this.address = settings.getAddress();
         this.port = settings.getPort();
+        this.transport = settings.getTransport();
+        this.evaluator = settings.getEvaluator();
+        this.evaluationCache = settings.getEvaluationCache();
+        this.diagnostics = settings.getDiagnostics();
+        this.pipelining = settings.getPipelining();
+        this.framing = settings.getFraming();
+        this.requestTimeout = settings.getRequestTimeout();
+        this.reconnectMaxDelay = settings.getReconnectMaxDelay();
+        this.push = settings.getPush();
+        this.heartbeatInterval = settings.getHeartbeatInterval();
+        this.pollInterval = settings.getPollInterval();
+        this.pollActiveInterval = settings.getPollActiveInterval();
+        this.pollMaxInterval = settings.getPollMaxInterval();
+        this.eventLogCapacity = settings.getEventLogCapacity();
+        this.updateWindow = settings.getUpdateWindow();
+        this.updateTimeout = settings.getUpdateTimeout();
+        this.stateMaxAge = settings.getStateMaxAge();
+        this.breakerThreshold = settings.getBreakerThreshold();
+        this.breakerOpenTime = settings.getBreakerOpenTime();
+        this.routineWriteBurst = settings.getRoutineWriteBurst();
+        this.routineWriteRate = settings.getRoutineWriteRate();
         this.authenticated = false;
 
         // Ab Testing
@@ -106,7 +165,25 @@ public class TartanHomeService {
         this.logHistory = true;
 
         // Create and initialize the controller for this house
-        this.controller = new IoTControlManager(user, password, new StaticTartanStateEvaluator());
+        StaticTartanStateEvaluator rules = newEvaluator(this.evaluator);
+        TartanStateEvaluator stateEvaluator = rules;
+        if (this.evaluationCache) {
+            this.cachingEvaluator = new CachingTartanStateEvaluator(rules, TartanEvaluationCache.getDefault());
+            stateEvaluator = this.cachingEvaluator;
+        }
+        this.controller = new IoTControlManager(user, password, stateEvaluator);
+        this.controller.setTransport(this.transport);
+        this.controller.setPipelining(this.pipelining);
+        this.controller.setFraming(this.framing);
+        this.controller.setLinkTimeouts(this.requestTimeout, this.reconnectMaxDelay);
+        this.controller.setPushUpdates(this.push, this.heartbeatInterval);
+        this.controller.setPollPolicy(new IoTAdaptivePollPolicy(this.pollActiveInterval, this.pollInterval,
+                this.pollMaxInterval));
+        this.controller.setEventLogCapacity(this.eventLogCapacity);
+        this.controller.setUpdateWindow(this.updateWindow);
+        this.controller.setCircuitBreaker(this.breakerThreshold, this.breakerOpenTime);
+        this.controller.setRoutineRate(this.routineWriteBurst, this.routineWriteRate);
+        this.controller.setListener(newListener(this.diagnostics));
         
         TartanHome temp = new TartanHome();
         temp.setAlarmDelay(alarmDelay);
@@ -123,6 +200,37 @@ public class TartanHomeService {
         LOGGER.info("House " + this.name + " configured");
     }
 
+    /**
+     * Create the listener for what the house's controller, connection and evaluator do
+     * @param diagnostics log (the server log, under this house's name), events (the house's event
+     *                    log, information and worse) or none
+     * @return the listener; the server log for anything else
+     */
+    private EvaluationListener newListener(String diagnostics) {
+        if ("none".equals(diagnostics)) {
+            return EvaluationListeners.none();
+        }
+        if ("events".equals(diagnostics)) {
+            return new EventLogEvaluationListener(controller, EvaluationListener.Level.INFO);
+        }
+        return new Slf4jEvaluationListener(LoggerFactory.getLogger(TartanHomeService.class.getName() + "." + name));
+    }
+
+    /**
+     * Create the evaluator for the house rules
+     * @param evaluator static, compiled or incremental
+     * @return the evaluator; incremental for anything else
+     */
+    private static StaticTartanStateEvaluator newEvaluator(String evaluator) {
+        if ("static".equals(evaluator)) {
+            return new StaticTartanStateEvaluator();
+        }
+        if ("compiled".equals(evaluator)) {
+            return new CompiledTartanStateEvaluator();
+        }
+        return new IncrementalTartanStateEvaluator();
+    }
+
     /**
      * Stop logging history
      */
@@ -194,6 +302,56 @@ public class TartanHomeService {
         return controller.isConnected();
     }
 
+    /**
+     * Get the delay before the next update of the house
+     * @return the delay in milliseconds
+     */
+    public long getPollInterval() {
+        return controller.getPollInterval();
+    }
+
+    /**
+     * Check if requests to the house wait in priority lanes, which they do only while pipelining is off
+     * @return true if the lanes are used
+     */
+    public boolean usesLanes() {
+        return IoTValues.PIPELINE_OFF.equalsIgnoreCase(this.pipelining);
+    }
+
+    /**
+     * Get the number of requests waiting for the house link in a lane
+     * @param lane the lane
+     * @return the queue depth
+     */
+    public int getQueueDepth(IoTCommandLane lane) {
+        return controller.getQueueDepth(lane);
+    }
+
+    /**
+     * Get how long requests in a lane recently waited for the house link
+     * @param lane the lane
+     * @return the wait in milliseconds
+     */
+    public double getQueueWait(IoTCommandLane lane) {
+        return controller.getQueueWait(lane);
+    }
+
+    /**
+     * Get the share of the house's evaluations answered from the evaluation cache
+     * @return the hit rate, from 0 to 1; 0 if the house does not use the cache
+     */
+    public double getEvaluationCacheHitRate() {
+        return cachingEvaluator == null ? 0 : cachingEvaluator.getHitRate();
+    }
+
+    /**
+     *  Check if the house link is being kept up, even if it is down right now
+     * @return true if the house is connected or reconnects are being attempted
+     */
+    public Boolean isReconnecting() {
+        return controller.isReconnecting();
+    }
+
     /**
      * Convert humidifier state
      * @param tartanHome the home
@@ -372,39 +530,44 @@ public class TartanHomeService {
     }
 
     /**
-     * Set the house state in the hardware
+     * Set the house state in the hardware. Returns at once; the house answers later
      * @param h the new state
-     * @return true
+     * @return completes with the state the house accepted, which includes any updates sent
+     *         together with this one; or exceptionally with an IoTStateRejectedException if the
+     *         house did not accept it, or a TimeoutException if it was not accepted within the
+     *         update timeout
      */
-    public Boolean setState(TartanHome h) {
-        synchronized (controller) {
-                        
-            Map<String, Object> userSettings = new Hashtable<String, Object>();
-            if (h.getAlarmDelay()!=null) {
-                this.alarmDelay = h.getAlarmDelay();
-                userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+    public CompletableFuture<TartanHome> setState(TartanHome h) {
 
-            }
-            if (h.getTargetTemp()!=null) {
-                this.targetTemp = h.getTargetTemp();
-                userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
-            }       
-            if (h.getNightStart()!=null) {
-                this.nightStart = h.getNightStart();
-                userSettings.put(IoTValues.NIGHT_START, Integer.parseInt(this.nightStart));
-            }   
-            if (h.getNightEnd()!=null) {
-                this.nightEnd = h.getNightEnd();
-                userSettings.put(IoTValues.NIGHT_END, Integer.parseInt(this.nightEnd));
-            } 
-            controller.updateSettings(userSettings);  
-            controller.processStateUpdate(toIotState(h));
-            LocalDate today = LocalDate.now();
-            if (!h.getPastLightUsage().containsKey(today)) {
-                h.getPastLightUsage().put(today, 0L);  // Ensure key exists
-            }
+        Map<String, Object> userSettings = new Hashtable<String, Object>();
+        if (h.getAlarmDelay()!=null) {
+            this.alarmDelay = h.getAlarmDelay();
+            userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+
+        }
+        if (h.getTargetTemp()!=null) {
+            this.targetTemp = h.getTargetTemp();
+            userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
+        }       
+        if (h.getNightStart()!=null) {
+            this.nightStart = h.getNightStart();
+            userSettings.put(IoTValues.NIGHT_START, Integer.parseInt(this.nightStart));
+        }   
+        if (h.getNightEnd()!=null) {
+            this.nightEnd = h.getNightEnd();
+            userSettings.put(IoTValues.NIGHT_END, Integer.parseInt(this.nightEnd));
+        } 
+        controller.updateSettings(userSettings);  
+        CompletableFuture<HouseState> accepted = controller.submitStateUpdate(toIotState(h));
+        LocalDate today = LocalDate.now();
+        if (!h.getPastLightUsage().containsKey(today)) {
+            h.getPastLightUsage().put(today, 0L);  // Ensure key exists
+        }
+        if (this.updateTimeout > 0) {
+            // covers the update window, the wait for the update cycle and the round trips to the house
+            accepted = accepted.orTimeout(this.updateTimeout, TimeUnit.MILLISECONDS);
         }
-        return true;
+        return accepted.thenApply(state -> toTartanHome(state.toMap()));
     }
 
     /**
@@ -412,6 +575,42 @@ public class TartanHomeService {
      * @return the current state
      */
     public TartanHome getState() {
+        return getState(readState());
+    }
+
+    /**
+     * Check if the house answers requests
+     * @return false while requests are kept away from the house because it stopped answering
+     */
+    public boolean isAnswering() {
+        return controller.isAnswering();
+    }
+
+    /**
+     * Get the latest state the house reported, asking the house only if it is older than the
+     * configured bound
+     * @return the snapshot
+     */
+    public IoTHouseSnapshot readState() {
+        return controller.readState(this.stateMaxAge);
+    }
+
+    /**
+     * Build the state of the house from a snapshot
+     * @param snapshot the snapshot, from {@link #readState()}
+     * @return the current state
+     */
+    public TartanHome getState(IoTHouseSnapshot snapshot) {
+        // the controller publishes immutable snapshots, so nothing here needs a lock
+        return toTartanHome(snapshot.getReportedAt() == 0 ? null : snapshot.getState().toMap());
+    }
+
+    /**
+     * Build the state of the house
+     * @param state the house state in its Map form, or null if it is not known
+     * @return the state
+     */
+    private TartanHome toTartanHome(Map<String, Object> state) {
 
         TartanHome tartanHome = new TartanHome();
 
@@ -435,12 +634,11 @@ public class TartanHomeService {
         tartanHome.setEventLog(controller.getLogMessages());
         tartanHome.setAuthenticated(String.valueOf(this.authenticated));
 
-        Map<String, Object> state = null;
-        synchronized (controller) {
-            state = controller.getCurrentState();            
-            for (String l : controller.getLogMessages()) {
-                LOGGER.info(l);
-            }
+        // only the entries logged since the last request
+        IoTEventLog eventLog = controller.getEventLog();
+        long seen = loggedSequence.getAndSet(eventLog.getSequence());
+        for (String l : eventLog.since(seen)) {
+            LOGGER.info(l);
         }
         if (state == null) {
             LOGGER.info("Using default state");
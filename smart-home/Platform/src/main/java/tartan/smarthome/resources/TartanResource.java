@@ -1,5 +1,7 @@
 package tartan.smarthome.resources;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.hibernate.UnitOfWork;
@@ -9,13 +11,20 @@ import tartan.smarthome.TartanHomeSettings;
 import tartan.smarthome.auth.TartanUser;
 import tartan.smarthome.core.TartanHome;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.iotcontroller.IoTCommandLane;
+import tartan.smarthome.resources.iotcontroller.IoTHouseSnapshot;
+import tartan.smarthome.resources.iotcontroller.IoTStateRejectedException;
 import tartan.smarthome.views.SmartHomeView;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The resource class implements the HTTP handlers via Jersey.
@@ -27,6 +36,12 @@ public class TartanResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TartanResource.class);
 
+    /** the response header that carries the age of the house state, in milliseconds */
+    public static final String STATE_AGE_HEADER = "X-State-Age";
+
+    /** the response header set to true when the house is not answering and the state may be out of date */
+    public static final String STATE_STALE_HEADER = "X-State-Stale";
+
     // There is one service per home
     private ArrayList<TartanHomeService> services;
 
@@ -51,7 +66,14 @@ public class TartanResource {
                     LOGGER.info("Connected to house " + service.getName() + " @ " + service.getAddress());
 
                 } catch (TartanHomeConnectException thce) {
-                    LOGGER.error("Could not connect to house " + service.getName() + " @ " + service.getAddress());
+                    if (service.isReconnecting()) {
+                        // houses connect in the background, spread out; keep serving it meanwhile
+                        LOGGER.info("Connecting to house " + service.getName() + " @ " + service.getAddress()
+                                + " in the background");
+                        this.services.add(service);
+                    } else {
+                        LOGGER.error("Could not connect to house " + service.getName() + " @ " + service.getAddress());
+                    }
                 }
 
                 startHistorian(service);
@@ -64,11 +86,44 @@ public class TartanResource {
      * @param service the service to start logging
      */
     public void startHistorian(TartanHomeService service) {
-        if (service.isConnected()) {
+        if (service.isConnected() || service.isReconnecting()) {
             service.startHistorian();
         }
     }
 
+    /**
+     * Publish each house's current poll interval, in milliseconds, as houses.{name}.pollInterval,
+     * and, for houses with pipelining off, the requests waiting for the house link in each request
+     * lane and their recent wait, in milliseconds, as houses.{name}.lanes.{lane}.depth and
+     * houses.{name}.lanes.{lane}.waitTime. Pipelined houses have no lanes, so these are not published.
+     * The shared evaluation cache is published as evaluationCache.hits, .misses, .hitRate and .size,
+     * and the share of each house's evaluations it answered as houses.{name}.evaluationCache.hitRate
+     * @param metrics the registry
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        TartanEvaluationCache cache = TartanEvaluationCache.getDefault();
+        metrics.register(MetricRegistry.name("evaluationCache", "hits"), (Gauge<Long>) cache::getHits);
+        metrics.register(MetricRegistry.name("evaluationCache", "misses"), (Gauge<Long>) cache::getMisses);
+        metrics.register(MetricRegistry.name("evaluationCache", "hitRate"), (Gauge<Double>) cache::getHitRate);
+        metrics.register(MetricRegistry.name("evaluationCache", "size"), (Gauge<Integer>) cache::size);
+        for (TartanHomeService service : services) {
+            metrics.register(MetricRegistry.name("houses", service.getName(), "pollInterval"),
+                    (Gauge<Long>) service::getPollInterval);
+            metrics.register(MetricRegistry.name("houses", service.getName(), "evaluationCache", "hitRate"),
+                    (Gauge<Double>) service::getEvaluationCacheHitRate);
+            if (!service.usesLanes()) {
+                continue;
+            }
+            for (IoTCommandLane lane : IoTCommandLane.values()) {
+                String laneName = lane.name().toLowerCase();
+                metrics.register(MetricRegistry.name("houses", service.getName(), "lanes", laneName, "depth"),
+                        (Gauge<Integer>) () -> service.getQueueDepth(lane));
+                metrics.register(MetricRegistry.name("houses", service.getName(), "lanes", laneName, "waitTime"),
+                        (Gauge<Double>) () -> service.getQueueWait(lane));
+            }
+        }
+    }
+
     /**
      * Fetch the service for a house
      * @param houseName the target house
@@ -84,7 +139,10 @@ public class TartanResource {
     }
 
     /**
-     * Fetch the current house state via HTTP GET. Managed by Jersey
+     * Fetch the current house state via HTTP GET. Managed by Jersey. The X-State-Age header tells
+     * how long ago, in milliseconds, the house reported the state. While the house is not
+     * answering, the last known state is returned with X-State-Stale, or SERVICE_UNAVAILABLE if
+     * nothing is known
      * @param house the house
      * @param user the user allowed to access this house
      * @return a view of the house or null
@@ -94,45 +152,85 @@ public class TartanResource {
     @Path("/state/{house}")
     @Timed
     @UnitOfWork
-    public SmartHomeView state(@PathParam("house") String house,  @Auth TartanUser user) {
+    public Response state(@PathParam("house") String house,  @Auth TartanUser user) {
         // There are better ways to check authorization, but this works fine
         if (user.getHouse().equals(house)) {
             LOGGER.info("Received a house GET for house: " + house);
             TartanHomeService service = getHomeService(house);
             if (service == null) return null;
 
-            return new SmartHomeView(service.getState());
+            IoTHouseSnapshot snapshot = service.readState();
+            boolean answering = service.isAnswering();
+            if (!answering && snapshot.getReportedAt() == 0) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+            }
+            Response.ResponseBuilder response = Response.ok(new SmartHomeView(service.getState(snapshot)));
+            if (snapshot.getReportedAt() != 0) {
+                response.header(STATE_AGE_HEADER, snapshot.getAge(System.currentTimeMillis()));
+            }
+            if (!answering) {
+                response.header(STATE_STALE_HEADER, true);
+            }
+            return response.build();
         }
         return null;
     }
 
     /**
-     * update the house state via a HTTP POST. Managed by Jersey
+     * update the house state via a HTTP POST. Managed by Jersey. The request thread is released
+     * while the house handles the update; the response is sent once the house answers
      * @param house the house
      * @param user the user allowed to access this house
      * @param h the new state
-     * @return either HTTP OK or UNAUTHORIZED
+     * @param response resumed with HTTP OK and the state the house accepted; BAD_GATEWAY if the
+     *                 house did not accept it; GATEWAY_TIMEOUT if it did not answer in time;
+     *                 SERVICE_UNAVAILABLE at once if the house is not answering, or if it was
+     *                 disconnected; or UNAUTHORIZED
      */
     @POST
     @Path("/update/{house}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Timed
-    public Response update(@PathParam("house") String house, @Auth TartanUser user, TartanHome h) {
+    public void update(@PathParam("house") String house, @Auth TartanUser user, TartanHome h,
+                       @Suspended AsyncResponse response) {
         if (user.getHouse().equals(house)) {
             LOGGER.info("Received a house POST to house " + house);
             TartanHomeService service = getHomeService(house);
             if (service != null) {
                 // tell the house about the update
-                service.setState(h);
-
-                return Response
-                        .status(Response.Status.OK)
-                        .build();
+                service.setState(h).whenComplete((state, error) -> {
+                    if (error == null) {
+                        response.resume(Response.ok(state).build());
+                    } else {
+                        response.resume(Response.status(updateFailure(error)).build());
+                    }
+                });
+                return;
             }
         }
-        return Response
+        response.resume(Response
                 .status(Response.Status.UNAUTHORIZED)
-                .build();
+                .build());
+    }
+
+    /**
+     * Choose the response status for an update that failed
+     * @param error the failure
+     * @return the status
+     */
+    private static Response.Status updateFailure(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof IoTStateRejectedException) {
+            return Response.Status.BAD_GATEWAY;
+        }
+        if (cause instanceof TimeoutException) {
+            return Response.Status.GATEWAY_TIMEOUT;
+        }
+        if (cause instanceof IllegalStateException) {
+            return Response.Status.SERVICE_UNAVAILABLE;
+        }
+        LOGGER.error("House update failed", cause);
+        return Response.Status.INTERNAL_SERVER_ERROR;
     }
 }
 
@@ -0,0 +1,243 @@
+package tartan.smarthome.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * A house rule over a packed state: an int with one bit per condition. The rule is an ordered list
+ * of cases and the first case that matches fires. A case matches when all of its required bits are
+ * set and none of its excluded bits are; it then sets and clears bits and records events. The cases
+ * all see the state as it was when the rule started.
+ *
+ * Rules are declared with a builder:
+ * <pre>
+ * TartanRule.named("light-requires-occupancy")
+ *         .when(LIGHT).unless(PROXIMITY).clear(LIGHT).emit(IoTEventType.LIGHT_BLOCKED)
+ *         .when(LIGHT).emit(IoTEventType.LIGHT_ON)
+ *         .otherwise().emit(IoTEventType.LIGHT_OFF)
+ *         .build();
+ * </pre>
+ * and compiled into a {@link TartanRuleEngine}.
+ */
+public final class TartanRule {
+
+    /** one case of a rule */
+    static final class Case {
+        final int allOf;
+        final int noneOf;
+        final int set;
+        final int clear;
+        /** the events, each the type's ordinal shifted left once, plus 1 if it carries the readings */
+        final int[] events;
+
+        Case(int allOf, int noneOf, int set, int clear, int[] events) {
+            this.allOf = allOf;
+            this.noneOf = noneOf;
+            this.set = set;
+            this.clear = clear;
+            this.events = events;
+        }
+
+        boolean matches(int state) {
+            return (state & allOf) == allOf && (state & noneOf) == 0;
+        }
+    }
+
+    private final String name;
+    private final Case[] cases;
+
+    private TartanRule(String name, Case[] cases) {
+        this.name = name;
+        this.cases = cases;
+    }
+
+    /**
+     * Start declaring a rule
+     * @param name the rule's name, for messages
+     * @return a builder
+     */
+    public static Builder named(String name) {
+        return new Builder(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the bits the rule reads or writes
+     * @return the bits
+     */
+    int getMask() {
+        int mask = 0;
+        for (Case c : cases) {
+            mask |= c.allOf | c.noneOf | c.set | c.clear;
+        }
+        return mask;
+    }
+
+    /**
+     * Apply the rule, one case at a time. The engine does this only while compiling
+     * @param state the packed state
+     * @param events collects the events of the case that fired, encoded as in {@link Case#events}
+     * @return the new state
+     */
+    int apply(int state, List<Integer> events) {
+        for (Case c : cases) {
+            if (c.matches(state)) {
+                for (int e : c.events) {
+                    events.add(e);
+                }
+                return (state | c.set) & ~c.clear;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Record encoded events
+     * @param encoded the events, encoded as in {@link Case#events}
+     * @param a the first reading passed to events that carry the readings
+     * @param b the second reading
+     * @param time when the events happened
+     * @param events the recorder
+     */
+    static void record(int[] encoded, int a, int b, long time, IoTEvents events) {
+        for (int e : encoded) {
+            IoTEventType type = EVENT_TYPES[e >>> 1];
+            if ((e & 1) != 0) {
+                events.record(type, a, b, time);
+            } else {
+                events.record(type, 0, 0, time);
+            }
+        }
+    }
+
+    private static final IoTEventType[] EVENT_TYPES = IoTEventType.values();
+
+    /**
+     * Declares the cases of a rule, in order
+     */
+    public static final class Builder {
+        private final String name;
+        private final List<Case> cases = new ArrayList<>();
+        private int allOf;
+        private int noneOf;
+        private int set;
+        private int clear;
+        private final List<Integer> events = new ArrayList<>();
+        private boolean open = false;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Start a case that needs all of some bits set
+         * @param allOf the bits
+         */
+        public Builder when(int allOf) {
+            endCase();
+            this.allOf = allOf;
+            open = true;
+            return this;
+        }
+
+        /**
+         * Start a case that needs all of some bits clear
+         * @param noneOf the bits
+         */
+        public Builder whenNot(int noneOf) {
+            return when(0).unless(noneOf);
+        }
+
+        /**
+         * Start a case that always matches; any later case is never reached
+         */
+        public Builder otherwise() {
+            return when(0);
+        }
+
+        /**
+         * Also need all of some bits clear in this case
+         * @param noneOf the bits
+         */
+        public Builder unless(int noneOf) {
+            checkOpen();
+            this.noneOf |= noneOf;
+            return this;
+        }
+
+        /**
+         * Set bits when this case fires
+         * @param bits the bits
+         */
+        public Builder set(int bits) {
+            checkOpen();
+            set |= bits;
+            return this;
+        }
+
+        /**
+         * Clear bits when this case fires
+         * @param bits the bits
+         */
+        public Builder clear(int bits) {
+            checkOpen();
+            clear |= bits;
+            return this;
+        }
+
+        /**
+         * Record events when this case fires
+         * @param types the events, in order
+         */
+        public Builder emit(IoTEventType... types) {
+            checkOpen();
+            for (IoTEventType type : types) {
+                events.add(type.ordinal() << 1);
+            }
+            return this;
+        }
+
+        /**
+         * Record an event carrying the two readings given to the engine when this case fires
+         * @param type the event
+         */
+        public Builder emitReadings(IoTEventType type) {
+            checkOpen();
+            events.add(type.ordinal() << 1 | 1);
+            return this;
+        }
+
+        public TartanRule build() {
+            endCase();
+            return new TartanRule(name, cases.toArray(new Case[0]));
+        }
+
+        private void endCase() {
+            if (!open) {
+                return;
+            }
+            if ((set & clear) != 0 || (allOf & noneOf) != 0) {
+                throw new IllegalArgumentException("Rule " + name + " has a contradictory case");
+            }
+            cases.add(new Case(allOf, noneOf, set, clear, events.stream().mapToInt(Integer::intValue).toArray()));
+            allOf = 0;
+            noneOf = 0;
+            set = 0;
+            clear = 0;
+            events.clear();
+            open = false;
+        }
+
+        private void checkOpen() {
+            if (!open) {
+                throw new IllegalStateException("Rule " + name + ": start a case with when() first");
+            }
+        }
+    }
+}
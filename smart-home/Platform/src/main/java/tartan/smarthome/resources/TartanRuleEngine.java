@@ -0,0 +1,199 @@
+package tartan.smarthome.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Runs an ordered list of {@link TartanRule}s over a packed state, compiled into lookup tables.
+ *
+ * Consecutive rules are grouped into stages of at most {@link #MAX_STAGE_BITS} distinct bits. A
+ * stage's result depends only on its own bits, so compiling runs its rules once for every value of
+ * those bits and keeps the outcome: the stage's bits afterwards and the events recorded on the way.
+ * Evaluating is then one table lookup per stage, indexed by the stage's bits gathered into a dense
+ * key; the rules themselves are never interpreted again.
+ *
+ * A {@link Session} evaluates incrementally: it remembers each stage's input from the last
+ * evaluation and re-fires only the stages whose bits changed, whether in the input or as the output
+ * of an earlier stage. The other stages give their last outcome again.
+ */
+public final class TartanRuleEngine {
+
+    /** the most bits in a stage; a stage table has 2^bits entries */
+    public static final int MAX_STAGE_BITS = 12;
+
+    private static final int[] NO_EVENTS = new int[0];
+
+    /** the bits each stage reads and writes */
+    private final int[] masks;
+    /** per stage, by key: the stage's bits after its rules */
+    private final int[][] results;
+    /** per stage, by key: the events recorded, encoded as in {@link TartanRule} */
+    private final int[][][] events;
+
+    private TartanRuleEngine(int[] masks, int[][] results, int[][][] events) {
+        this.masks = masks;
+        this.results = results;
+        this.events = events;
+    }
+
+    /**
+     * Compile a rule set
+     * @param rules the rules, in the order they apply
+     * @return the engine
+     */
+    public static TartanRuleEngine compile(List<TartanRule> rules) {
+        List<List<TartanRule>> stages = new ArrayList<>();
+        List<Integer> stageMasks = new ArrayList<>();
+        List<TartanRule> stage = null;
+        int mask = 0;
+        for (TartanRule rule : rules) {
+            int merged = mask | rule.getMask();
+            if (stage == null || Integer.bitCount(merged) > MAX_STAGE_BITS) {
+                stage = new ArrayList<>();
+                stages.add(stage);
+                stageMasks.add(rule.getMask());
+                merged = rule.getMask();
+            } else {
+                stageMasks.set(stageMasks.size() - 1, merged);
+            }
+            stage.add(rule);
+            mask = merged;
+        }
+
+        int count = stages.size();
+        int[] masks = new int[count];
+        int[][] results = new int[count][];
+        int[][][] events = new int[count][][];
+        for (int s = 0; s < count; s++) {
+            masks[s] = stageMasks.get(s);
+            int size = 1 << Integer.bitCount(masks[s]);
+            results[s] = new int[size];
+            events[s] = new int[size][];
+            List<Integer> recorded = new ArrayList<>();
+            for (int key = 0; key < size; key++) {
+                int state = Integer.expand(key, masks[s]);
+                recorded.clear();
+                for (TartanRule rule : stages.get(s)) {
+                    state = rule.apply(state, recorded);
+                }
+                results[s][key] = state;
+                events[s][key] = recorded.isEmpty() ? NO_EVENTS
+                        : recorded.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+        return new TartanRuleEngine(masks, results, events);
+    }
+
+    /**
+     * Apply the rules to a state
+     * @param state the packed state
+     * @param a the first reading passed to events that carry the readings
+     * @param b the second reading
+     * @param recorder records the events
+     * @return the new packed state
+     */
+    public int evaluate(int state, int a, int b, IoTEvents recorder) {
+        // the events of one evaluation happen together
+        long now = System.currentTimeMillis();
+        for (int s = 0; s < masks.length; s++) {
+            int mask = masks[s];
+            int key = Integer.compress(state, mask);
+            state = (state & ~mask) | results[s][key];
+            TartanRule.record(events[s][key], a, b, now, recorder);
+        }
+        return state;
+    }
+
+    /**
+     * Apply the rules to a state without recording events
+     * @param state the packed state
+     * @return the new packed state
+     */
+    public int evaluate(int state) {
+        for (int s = 0; s < masks.length; s++) {
+            int mask = masks[s];
+            state = (state & ~mask) | results[s][Integer.compress(state, mask)];
+        }
+        return state;
+    }
+
+    /**
+     * Start an incremental evaluation, for one house
+     * @return a session that has not evaluated anything yet
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * Evaluates one house's successive states, re-firing only the stages whose bits changed since
+     * the last evaluation. Not thread safe
+     */
+    public final class Session {
+        /** the state entering each stage last time */
+        private final int[] inputs = new int[masks.length];
+        /** each stage's table key last time */
+        private final int[] keys = new int[masks.length];
+        private int lastState;
+        private int lastResult;
+        private boolean primed = false;
+        private int fired = 0;
+
+        private Session() {
+        }
+
+        /**
+         * Apply the rules to a state, as {@link TartanRuleEngine#evaluate} does
+         * @param state the packed state
+         * @param a the first reading passed to events that carry the readings
+         * @param b the second reading
+         * @param recorder records the events; all of them, re-fired or not
+         * @return the new packed state
+         */
+        public int evaluate(int state, int a, int b, IoTEvents recorder) {
+            long now = System.currentTimeMillis();
+            if (primed && state == lastState) {
+                // nothing changed: each stage gives its last outcome
+                fired = 0;
+                for (int s = 0; s < masks.length; s++) {
+                    TartanRule.record(events[s][keys[s]], a, b, now, recorder);
+                }
+                return lastResult;
+            }
+            int in = state;
+            fired = 0;
+            for (int s = 0; s < masks.length; s++) {
+                int mask = masks[s];
+                if (!primed || ((state ^ inputs[s]) & mask) != 0) {
+                    keys[s] = Integer.compress(state, mask);
+                    fired++;
+                }
+                inputs[s] = state;
+                state = (state & ~mask) | results[s][keys[s]];
+                TartanRule.record(events[s][keys[s]], a, b, now, recorder);
+            }
+            primed = true;
+            lastState = in;
+            lastResult = state;
+            return state;
+        }
+
+        /**
+         * Get the number of stages the last evaluation re-fired
+         * @return the count; 0 if nothing changed
+         */
+        public int getFiredCount() {
+            return fired;
+        }
+    }
+
+    /**
+     * Get the number of stages the rules compiled into
+     * @return the count
+     */
+    public int getStageCount() {
+        return masks.length;
+    }
+}
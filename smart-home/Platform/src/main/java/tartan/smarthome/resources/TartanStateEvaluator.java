@@ -1,8 +1,64 @@
-
 package tartan.smarthome.resources;
 
+import java.time.LocalTime;
 import java.util.Map;
 
+import tartan.smarthome.resources.iotcontroller.EvaluationListener;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
 public interface TartanStateEvaluator {
-    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log);    
-}
\ No newline at end of file
+    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log);
+
+    /**
+     * Evaluate a compact house state. Evaluators that only implement the Map form are adapted
+     * through {@link HouseState#toMap()} and {@link HouseState#fromMap(Map)}
+     *
+     * @param inState the state to evaluate
+     * @param log the log of state evaluations
+     * @return the evaluated state
+     */
+    public default HouseState evaluateState(HouseState inState, StringBuffer log) {
+        return HouseState.fromMap(evaluateState(inState.toMap(), log));
+    }
+
+    /**
+     * Evaluate a compact house state, recording what was done as events rather than text.
+     * Evaluators that only log text have their log recorded as a single event
+     *
+     * @param inState the state to evaluate
+     * @param events records what the evaluation did
+     * @return the evaluated state
+     */
+    public default HouseState evaluateState(HouseState inState, IoTEvents events) {
+        StringBuffer log = new StringBuffer();
+        HouseState outState = evaluateState(inState, log);
+        if (log.length() > 0) {
+            events.record(IoTEventType.TEXT, log.toString());
+        }
+        return outState;
+    }
+
+    /**
+     * Get how long until the clock alone may change what evaluating a state gives, for rules that
+     * depend on the time of day such as the night lock. The caller evaluates again by then even if
+     * the house reports nothing new. Evaluators without such rules never ask to
+     *
+     * @param state the state last evaluated
+     * @param currentTime the time now
+     * @return the delay in milliseconds, or Long.MAX_VALUE if only a change in the state matters
+     */
+    public default long getTimeToNextChange(HouseState state, LocalTime currentTime) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Set who hears what the evaluator does besides the events of each evaluation. Evaluators that
+     * report nothing ignore it
+     *
+     * @param listener the listener
+     */
+    public default void setListener(EvaluationListener listener) {
+    }
+}
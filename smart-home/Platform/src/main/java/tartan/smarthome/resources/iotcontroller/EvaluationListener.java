@@ -0,0 +1,42 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Hears what the evaluator and the house controller are doing, in place of printing it. Every
+ * report has a level, and callers ask {@link #isEnabled} before building a message, so a level
+ * that is off costs one check and allocates nothing.
+ *
+ * Reports may come from any thread, so implementations must be thread safe.
+ *
+ * @see EvaluationListeners
+ */
+public interface EvaluationListener {
+
+    /** how much a report matters, least first */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Check if reports at a level are heard
+     * @param level the level
+     * @return true if reports at the level are heard
+     */
+    boolean isEnabled(Level level);
+
+    /**
+     * Report something, with the error that caused it
+     * @param level the level
+     * @param message what happened
+     * @param error the cause, or null
+     */
+    void report(Level level, String message, Throwable error);
+
+    /**
+     * Report something
+     * @param level the level
+     * @param message what happened
+     */
+    default void report(Level level, String message) {
+        report(level, message, null);
+    }
+}
@@ -0,0 +1,50 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The process-wide {@link EvaluationListener}, heard by the parts shared by every house (the update
+ * scheduler, the event loops and the transports) and by any house not given a listener of its own.
+ * Until one is configured, nothing is heard.
+ */
+public final class EvaluationListeners {
+
+    private static final EvaluationListener NONE = new EvaluationListener() {
+        @Override
+        public boolean isEnabled(Level level) {
+            return false;
+        }
+
+        @Override
+        public void report(Level level, String message, Throwable error) {
+        }
+    };
+
+    private static volatile EvaluationListener defaultListener = NONE;
+
+    private EvaluationListeners() {
+    }
+
+    /**
+     * Get a listener that hears nothing
+     * @return the listener
+     */
+    public static EvaluationListener none() {
+        return NONE;
+    }
+
+    /**
+     * Get the process-wide listener
+     * @return the listener
+     */
+    public static EvaluationListener getDefault() {
+        return defaultListener;
+    }
+
+    /**
+     * Replace the process-wide listener. Call before any house connects; houses already given the
+     * old one keep it
+     * @param listener the listener, or null to hear nothing
+     */
+    public static void setDefault(EvaluationListener listener) {
+        defaultListener = listener == null ? NONE : listener;
+    }
+}
@@ -0,0 +1,33 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Adds reports to a house's event log, where the house's users see them, as the controller's own
+ * messages. Reports below a chosen level are not heard.
+ */
+public class EventLogEvaluationListener implements EvaluationListener {
+
+    private final IoTControlManager house;
+    private final Level threshold;
+
+    /**
+     * Create a listener for a house
+     * @param house the house whose event log gets the reports
+     * @param threshold the least level heard
+     */
+    public EventLogEvaluationListener(IoTControlManager house, Level threshold) {
+        this.house = house;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    @Override
+    public void report(Level level, String message, Throwable error) {
+        if (isEnabled(level)) {
+            house.updateLog(error == null ? message : message + ": " + error);
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of a house: device states packed into a bit field, readings and settings
+ * in primitive fields, and the few text values (HVAC mode and passcodes) as references. Every
+ * value may be absent, just as a key may be missing from the Map form of the state, so a partial
+ * state (a user update, a set of settings) merges onto a full one the way Map.putAll did.
+ *
+ * Updates return a new instance: state.with(Device.LIGHT, true).with(Reading.TARGET_TEMP, 72).
+ * {@link #fromMap(Map)} and {@link #toMap()} convert to and from the Map keyed by the
+ * {@link IoTValues} constants for code that has not moved over yet.
+ */
+public final class HouseState {
+
+    /**
+     * The on/off states. Each device owns one bit of the flags
+     */
+    public enum Device {
+        DOOR(IoTValues.DOOR_STATE),
+        DOOR_LOCK(IoTValues.DOOR_LOCK_STATE),
+        LIGHT(IoTValues.LIGHT_STATE),
+        PROXIMITY(IoTValues.PROXIMITY_STATE),
+        ALARM(IoTValues.ALARM_STATE),
+        ALARM_ACTIVE(IoTValues.ALARM_ACTIVE),
+        HUMIDIFIER(IoTValues.HUMIDIFIER_STATE),
+        HEATER(IoTValues.HEATER_STATE),
+        CHILLER(IoTValues.CHILLER_STATE),
+        INTRUDER(IoTValues.INTRUDER_STATE),
+        PHONE_PROXIMITY(IoTValues.PHONE_PROXIMITY),
+        AWAY_TIMER(IoTValues.AWAY_TIMER);
+
+        private final String key;
+        private final int bit;
+
+        Device(String key) {
+            this.key = key;
+            this.bit = 1 << ordinal();
+        }
+
+        /**
+         * @return the protocol key, e.g. "LS"
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the bit this device owns in {@link HouseState#getDeviceFlags()}
+         */
+        public int getBit() {
+            return bit;
+        }
+    }
+
+    /**
+     * The numeric readings and settings
+     */
+    public enum Reading {
+        TEMPERATURE(IoTValues.TEMP_READING),
+        HUMIDITY(IoTValues.HUMIDITY_READING),
+        TARGET_TEMP(IoTValues.TARGET_TEMP),
+        NIGHT_START(IoTValues.NIGHT_START),
+        NIGHT_END(IoTValues.NIGHT_END),
+        ALARM_DELAY(IoTValues.ALARM_DELAY);
+
+        private final String key;
+
+        Reading(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * The text values
+     */
+    public enum Text {
+        HVAC_MODE(IoTValues.HVAC_MODE),
+        ALARM_PASSCODE(IoTValues.ALARM_PASSCODE),
+        GIVEN_PASSCODE(IoTValues.GIVEN_PASSCODE),
+        DOOR_LOCK_PASSCODE(IoTValues.DOOR_LOCK_PASSCODE),
+        GIVEN_DOOR_LOCK_PASSCODE(IoTValues.GIVEN_DOOR_LOCK_PASSCODE);
+
+        private final String key;
+
+        Text(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /** the HVAC modes a house reports */
+    public static final String HVAC_HEATER = "Heater";
+    public static final String HVAC_CHILLER = "Chiller";
+
+    /** the state with nothing set */
+    public static final HouseState EMPTY = new Builder().build();
+
+    private static final Device[] DEVICES = Device.values();
+    private static final Reading[] READINGS = Reading.values();
+    private static final Text[] TEXTS = Text.values();
+    private static final Map<String, Enum<?>> KEYS = new HashMap<>();
+
+    static {
+        for (Device d : DEVICES) {
+            KEYS.put(d.key, d);
+        }
+        for (Reading r : READINGS) {
+            KEYS.put(r.key, r);
+        }
+        for (Text t : TEXTS) {
+            KEYS.put(t.key, t);
+        }
+    }
+
+    /** device values, one bit per {@link Device} */
+    private final int flags;
+
+    /** which devices are set, one bit per {@link Device} */
+    private final int devicesSet;
+
+    /** which readings are set, one bit per {@link Reading} ordinal */
+    private final int readingsSet;
+
+    private final int temperature;
+    private final int humidity;
+    private final int targetTemp;
+    private final int nightStart;
+    private final int nightEnd;
+    private final int alarmDelay;
+
+    private final String hvacMode;
+    private final String alarmPasscode;
+    private final String givenPasscode;
+    private final String doorLockPasscode;
+    private final String givenDoorLockPasscode;
+
+    private HouseState(Builder b) {
+        this.flags = b.flags & b.devicesSet;
+        this.devicesSet = b.devicesSet;
+        this.readingsSet = b.readingsSet;
+        this.temperature = b.temperature;
+        this.humidity = b.humidity;
+        this.targetTemp = b.targetTemp;
+        this.nightStart = b.nightStart;
+        this.nightEnd = b.nightEnd;
+        this.alarmDelay = b.alarmDelay;
+        this.hvacMode = b.hvacMode;
+        this.alarmPasscode = b.alarmPasscode;
+        this.givenPasscode = b.givenPasscode;
+        this.doorLockPasscode = b.doorLockPasscode;
+        this.givenDoorLockPasscode = b.givenDoorLockPasscode;
+    }
+
+    /**
+     * Start building a state from scratch. Use this rather than a chain of with() calls when many
+     * values are set at once
+     * @return an empty builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Start building a state from this one
+     * @return a builder holding this state's values
+     */
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.flags = flags;
+        b.devicesSet = devicesSet;
+        b.readingsSet = readingsSet;
+        b.temperature = temperature;
+        b.humidity = humidity;
+        b.targetTemp = targetTemp;
+        b.nightStart = nightStart;
+        b.nightEnd = nightEnd;
+        b.alarmDelay = alarmDelay;
+        b.hvacMode = hvacMode;
+        b.alarmPasscode = alarmPasscode;
+        b.givenPasscode = givenPasscode;
+        b.doorLockPasscode = doorLockPasscode;
+        b.givenDoorLockPasscode = givenDoorLockPasscode;
+        return b;
+    }
+
+    /**
+     * Collects values for a new {@link HouseState}
+     */
+    public static final class Builder {
+        private int flags;
+        private int devicesSet;
+        private int readingsSet;
+        private int temperature;
+        private int humidity;
+        private int targetTemp;
+        private int nightStart;
+        private int nightEnd;
+        private int alarmDelay;
+        private String hvacMode;
+        private String alarmPasscode;
+        private String givenPasscode;
+        private String doorLockPasscode;
+        private String givenDoorLockPasscode;
+
+        private Builder() {
+        }
+
+        public Builder set(Device device, boolean on) {
+            flags = on ? flags | device.bit : flags & ~device.bit;
+            devicesSet |= device.bit;
+            return this;
+        }
+
+        /**
+         * Set several devices at once
+         * @param on the device values, one bit per {@link Device}
+         * @param mask the devices to set
+         */
+        public Builder setDevices(int on, int mask) {
+            flags = (flags & ~mask) | (on & mask);
+            devicesSet |= mask;
+            return this;
+        }
+
+        public Builder set(Reading reading, int value) {
+            switch (reading) {
+                case TEMPERATURE:
+                    temperature = value;
+                    break;
+                case HUMIDITY:
+                    humidity = value;
+                    break;
+                case TARGET_TEMP:
+                    targetTemp = value;
+                    break;
+                case NIGHT_START:
+                    nightStart = value;
+                    break;
+                case NIGHT_END:
+                    nightEnd = value;
+                    break;
+                default:
+                    alarmDelay = value;
+            }
+            readingsSet |= 1 << reading.ordinal();
+            return this;
+        }
+
+        /**
+         * @param value the new value, or null to clear it
+         */
+        public Builder set(Text text, String value) {
+            switch (text) {
+                case HVAC_MODE:
+                    hvacMode = value;
+                    break;
+                case ALARM_PASSCODE:
+                    alarmPasscode = value;
+                    break;
+                case GIVEN_PASSCODE:
+                    givenPasscode = value;
+                    break;
+                case DOOR_LOCK_PASSCODE:
+                    doorLockPasscode = value;
+                    break;
+                default:
+                    givenDoorLockPasscode = value;
+            }
+            return this;
+        }
+
+        public HouseState build() {
+            return new HouseState(this);
+        }
+    }
+
+    /**
+     * Check if a device state is set
+     * @param device the device
+     * @return true if the state holds a value for the device
+     */
+    public boolean has(Device device) {
+        return (devicesSet & device.bit) != 0;
+    }
+
+    /**
+     * Get a device state
+     * @param device the device
+     * @return true if the device is on; false if it is off or not set
+     */
+    public boolean is(Device device) {
+        return (flags & device.bit) != 0;
+    }
+
+    /**
+     * Set a device state
+     * @param device the device
+     * @param on the new value
+     * @return the updated state
+     */
+    public HouseState with(Device device, boolean on) {
+        if (has(device) && is(device) == on) {
+            return this;
+        }
+        return toBuilder().set(device, on).build();
+    }
+
+    /**
+     * Check if a reading is set
+     * @param reading the reading
+     * @return true if the state holds a value for the reading
+     */
+    public boolean has(Reading reading) {
+        return (readingsSet & (1 << reading.ordinal())) != 0;
+    }
+
+    /**
+     * Get a reading
+     * @param reading the reading
+     * @return the value, or 0 if it is not set
+     */
+    public int get(Reading reading) {
+        switch (reading) {
+            case TEMPERATURE:
+                return temperature;
+            case HUMIDITY:
+                return humidity;
+            case TARGET_TEMP:
+                return targetTemp;
+            case NIGHT_START:
+                return nightStart;
+            case NIGHT_END:
+                return nightEnd;
+            default:
+                return alarmDelay;
+        }
+    }
+
+    /**
+     * Set a reading
+     * @param reading the reading
+     * @param value the new value
+     * @return the updated state
+     */
+    public HouseState with(Reading reading, int value) {
+        if (has(reading) && get(reading) == value) {
+            return this;
+        }
+        return toBuilder().set(reading, value).build();
+    }
+
+    /**
+     * Get a text value
+     * @param text the value to get
+     * @return the value, or null if it is not set
+     */
+    public String get(Text text) {
+        switch (text) {
+            case HVAC_MODE:
+                return hvacMode;
+            case ALARM_PASSCODE:
+                return alarmPasscode;
+            case GIVEN_PASSCODE:
+                return givenPasscode;
+            case DOOR_LOCK_PASSCODE:
+                return doorLockPasscode;
+            default:
+                return givenDoorLockPasscode;
+        }
+    }
+
+    /**
+     * Set a text value
+     * @param text the value to set
+     * @param value the new value, or null to clear it
+     * @return the updated state
+     */
+    public HouseState with(Text text, String value) {
+        String current = get(text);
+        if (current == null ? value == null : current.equals(value)) {
+            return this;
+        }
+        return toBuilder().set(text, value).build();
+    }
+
+    /**
+     * Overlay another state on this one; whatever the other state sets wins
+     * @param other the state to apply
+     * @return the merged state
+     */
+    public HouseState merge(HouseState other) {
+        if (other == null || other == EMPTY) {
+            return this;
+        }
+        Builder b = toBuilder();
+        b.flags = (flags & ~other.devicesSet) | other.flags;
+        b.devicesSet = devicesSet | other.devicesSet;
+        for (Reading r : READINGS) {
+            if (other.has(r)) {
+                b.set(r, other.get(r));
+            }
+        }
+        for (Text t : TEXTS) {
+            String value = other.get(t);
+            if (value != null) {
+                b.set(t, value);
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * Get the device states that would change if this state were applied over another
+     * @param base the state to compare against
+     * @param mask the devices to consider, one bit per {@link Device}
+     * @return a state holding only the devices within the mask that are set here and are unset or
+     *         different in the base
+     */
+    public HouseState deviceChanges(HouseState base, int mask) {
+        int same = devicesSet & base.devicesSet & ~(flags ^ base.flags);
+        int changed = devicesSet & mask & ~same;
+        if (changed == 0) {
+            return EMPTY;
+        }
+        Builder b = new Builder();
+        b.flags = flags & changed;
+        b.devicesSet = changed;
+        return b.build();
+    }
+
+    /**
+     * Get the device values as a bit field
+     * @return one bit per {@link Device}; unset devices read as 0
+     */
+    public int getDeviceFlags() {
+        return flags;
+    }
+
+    /**
+     * Get the devices that are set
+     * @return one bit per {@link Device}
+     */
+    public int getDevicesSet() {
+        return devicesSet;
+    }
+
+    /**
+     * Build a state from its Map form. Unknown keys and null values are skipped
+     * @param map the state keyed by {@link IoTValues} constants
+     * @return the state
+     * @throws ClassCastException if a value has the wrong type for its key
+     */
+    public static HouseState fromMap(Map<String, Object> map) {
+        if (map == null) {
+            return null;
+        }
+        Builder b = new Builder();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Enum<?> field = KEYS.get(entry.getKey());
+            Object value = entry.getValue();
+            if (field == null || value == null) {
+                continue;
+            }
+            if (field instanceof Device) {
+                b.set((Device) field, (Boolean) value);
+            } else if (field instanceof Reading) {
+                b.set((Reading) field, (Integer) value);
+            } else {
+                b.set((Text) field, (String) value);
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * Get the Map form of this state
+     * @return a new map holding every value that is set
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new Hashtable<>();
+        for (Device d : DEVICES) {
+            if (has(d)) {
+                map.put(d.key, is(d));
+            }
+        }
+        for (Reading r : READINGS) {
+            if (has(r)) {
+                map.put(r.key, get(r));
+            }
+        }
+        for (Text t : TEXTS) {
+            String value = get(t);
+            if (value != null) {
+                map.put(t.key, value);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HouseState)) {
+            return false;
+        }
+        HouseState other = (HouseState) o;
+        if (flags != other.flags || devicesSet != other.devicesSet || readingsSet != other.readingsSet) {
+            return false;
+        }
+        for (Reading r : READINGS) {
+            if (has(r) && get(r) != other.get(r)) {
+                return false;
+            }
+        }
+        for (Text t : TEXTS) {
+            String a = get(t);
+            String b = other.get(t);
+            if (a == null ? b != null : !a.equals(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = flags * 31 + devicesSet;
+        h = h * 31 + readingsSet;
+        for (Reading r : READINGS) {
+            if (has(r)) {
+                h = h * 31 + get(r);
+            }
+        }
+        for (Text t : TEXTS) {
+            String value = get(t);
+            h = h * 31 + (value == null ? 0 : value.hashCode());
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,77 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Polls quickly while something is going on and slowly while nothing is. While the door is open,
+ * the alarm is sounding, an intruder is flagged or the away timer runs, the house is polled at the
+ * active interval. Otherwise it is polled at the base interval, and each poll that finds the state
+ * unchanged doubles the interval up to the ceiling. Any change drops it back to the base interval
+ */
+public class IoTAdaptivePollPolicy implements IoTPollPolicy {
+
+    public static final long DEFAULT_ACTIVE_INTERVAL = 1000;
+    public static final long DEFAULT_BASE_INTERVAL = 5000;
+    public static final long DEFAULT_MAX_INTERVAL = 60000;
+
+    private final long activeInterval;
+    private final long baseInterval;
+    private final long maxInterval;
+
+    /**
+     * Create a policy with the default intervals
+     */
+    public IoTAdaptivePollPolicy() {
+        this(DEFAULT_ACTIVE_INTERVAL, DEFAULT_BASE_INTERVAL, DEFAULT_MAX_INTERVAL);
+    }
+
+    /**
+     * Create a policy
+     * @param activeInterval the interval while something is going on, in milliseconds
+     * @param baseInterval the interval after a change, in milliseconds
+     * @param maxInterval the ceiling for an idle house, in milliseconds
+     */
+    public IoTAdaptivePollPolicy(long activeInterval, long baseInterval, long maxInterval) {
+        this.baseInterval = Math.max(1, baseInterval);
+        this.activeInterval = Math.max(1, Math.min(activeInterval, this.baseInterval));
+        this.maxInterval = Math.max(this.baseInterval, maxInterval);
+    }
+
+    @Override
+    public long getInitialInterval() {
+        return baseInterval;
+    }
+
+    @Override
+    public long nextInterval(HouseState previous, HouseState current, boolean awayTimerRunning, long interval) {
+        if (awayTimerRunning || isActive(current)) {
+            return activeInterval;
+        }
+        if (previous == null || !previous.equals(current) || interval < baseInterval) {
+            return baseInterval;
+        }
+        // nothing changed; back off
+        return Math.min(maxInterval, interval * 2);
+    }
+
+    /**
+     * Check if the house needs watching closely
+     * @param state the house state
+     * @return true if the door is open, the alarm is sounding or an intruder is flagged
+     */
+    private boolean isActive(HouseState state) {
+        return state.is(HouseState.Device.DOOR)
+                || state.is(HouseState.Device.ALARM_ACTIVE)
+                || state.is(HouseState.Device.INTRUDER);
+    }
+
+    public long getActiveInterval() {
+        return activeInterval;
+    }
+
+    public long getBaseInterval() {
+        return baseInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+}
@@ -0,0 +1,269 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the compact binary house protocol. A house that answers the capability offer
+ * switches from text lines to binary frames:
+ *
+ * <pre>
+ *   u16 length | u8 type | u16 sequence | body
+ * </pre>
+ *
+ * The length counts the bytes after itself. The transport writes the length and the sequence
+ * number; this codec deals only in messages, i.e. the type byte followed by the body.
+ *
+ * A house that pushes its state sends PUSH_UPDATE messages with sequence number 0; the platform
+ * asks for them with SUBSCRIBE, which is answered with OK or REFUSED.
+ *
+ * A state body is a varint mask of the devices present, a varint mask of their values, one byte
+ * saying which readings follow, then each reading as a zigzag varint. A full state update takes
+ * about a dozen bytes, against some 60 for the text form.
+ *
+ * The handshake itself is text, so legacy houses can take part: the platform sends "GS:CAP=1." and
+ * a house that speaks binary answers with a state update carrying "CAP=1". A legacy house answers
+ * the GS as usual, without CAP, and the link stays on text.
+ */
+public final class IoTBinaryCodec {
+
+    /** the binary protocol version offered in the handshake */
+    public static final int VERSION = 1;
+
+    /** message types */
+    public static final byte GET_STATE = 0x01;
+    public static final byte STATE_UPDATE = 0x02;
+    public static final byte SET_STATE = 0x03;
+    public static final byte OK = 0x04;
+    public static final byte SUBSCRIBE = 0x05;
+    public static final byte REFUSED = 0x06;
+    public static final byte PUSH_UPDATE = 0x07;
+
+    /** bytes in the frame header: length, type and sequence */
+    public static final int HEADER_SIZE = 5;
+
+    /** the largest message: type, two masks, the reading byte and two readings */
+    public static final int MAX_MESSAGE_SIZE = 1 + 3 + 3 + 1 + 5 + 5;
+
+    /**
+     * The device bits on the wire. The order is part of the protocol and must not change; the
+     * last bit is the HVAC mode (1 for Heater)
+     */
+    private static final HouseState.Device[] WIRE_DEVICES = {
+            HouseState.Device.DOOR, HouseState.Device.LIGHT, HouseState.Device.PROXIMITY,
+            HouseState.Device.ALARM, HouseState.Device.ALARM_ACTIVE, HouseState.Device.HEATER,
+            HouseState.Device.CHILLER, HouseState.Device.HUMIDIFIER, HouseState.Device.INTRUDER,
+            HouseState.Device.PHONE_PROXIMITY, HouseState.Device.DOOR_LOCK
+    };
+    private static final int HVAC_BIT = 1 << WIRE_DEVICES.length;
+
+    /** the devices a house accepts in a state change, as wire bits */
+    private static final int SET_MASK;
+
+    private static final int TEMP_BIT = 0x01;
+    private static final int HUMIDITY_BIT = 0x02;
+
+    static {
+        int mask = 0;
+        for (int i = 0; i < WIRE_DEVICES.length; i++) {
+            if (WIRE_DEVICES[i] != HouseState.Device.PROXIMITY) {
+                mask |= 1 << i;
+            }
+        }
+        SET_MASK = mask;
+    }
+
+    /** the GET_STATE message; never modified */
+    public static final ByteBuffer GET_STATE_MESSAGE = ByteBuffer.wrap(new byte[] { GET_STATE }).asReadOnlyBuffer();
+
+    /** the SUBSCRIBE message; never modified */
+    public static final ByteBuffer SUBSCRIBE_MESSAGE = ByteBuffer.wrap(new byte[] { SUBSCRIBE }).asReadOnlyBuffer();
+
+    /** the capability offer, sent as text; never modified */
+    public static final ByteBuffer CAPABILITY_OFFER = ByteBuffer.wrap(ascii(IoTValues.GET_STATE + IoTValues.MSG_DELIM
+            + IoTValues.CAPABILITY + IoTValues.PARAM_EQ + VERSION + IoTValues.MSG_END)).asReadOnlyBuffer();
+
+    private static final byte[] CAPABILITY_ACCEPTED = ascii(IoTValues.CAPABILITY + IoTValues.PARAM_EQ + VERSION);
+
+    private IoTBinaryCodec() {
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Check if a house accepted the capability offer
+     * @param reply the text reply to {@link #CAPABILITY_OFFER}, or null
+     * @return true if the house will speak binary from now on
+     */
+    public static boolean acceptsBinary(ByteBuffer reply) {
+        // the capability is the first parameter: "SU:CAP=1;..."
+        return IoTProtocolCodec.leadsWith(reply, CAPABILITY_ACCEPTED);
+    }
+
+    /**
+     * Encode a state change request. Only the device states a house accepts are written
+     * @param state the new state
+     * @param out the buffer to write at its position; at least {@link #MAX_MESSAGE_SIZE} bytes must remain
+     * @return the number of bytes written
+     */
+    public static int encodeSetState(HouseState state, ByteBuffer out) {
+        return encodeState(SET_STATE, state, SET_MASK, false, out);
+    }
+
+    /**
+     * Encode a state update, as a house would send it
+     * @param state the house state
+     * @param out the buffer to write at its position; at least {@link #MAX_MESSAGE_SIZE} bytes must remain
+     * @return the number of bytes written
+     */
+    public static int encodeStateUpdate(HouseState state, ByteBuffer out) {
+        return encodeState(STATE_UPDATE, state, ~0, true, out);
+    }
+
+    private static int encodeState(byte type, HouseState state, int allowed, boolean readings, ByteBuffer out) {
+        int start = out.position();
+        int present = 0;
+        int values = 0;
+        for (int i = 0; i < WIRE_DEVICES.length; i++) {
+            if (state.has(WIRE_DEVICES[i])) {
+                present |= 1 << i;
+                if (state.is(WIRE_DEVICES[i])) {
+                    values |= 1 << i;
+                }
+            }
+        }
+        String mode = state.get(HouseState.Text.HVAC_MODE);
+        if (mode != null) {
+            present |= HVAC_BIT;
+            if (HouseState.HVAC_HEATER.equals(mode)) {
+                values |= HVAC_BIT;
+            }
+        }
+        present &= allowed;
+        values &= present;
+
+        out.put(type);
+        putVarint(out, present);
+        putVarint(out, values);
+
+        int readingMask = 0;
+        if (readings) {
+            if (state.has(HouseState.Reading.TEMPERATURE)) {
+                readingMask |= TEMP_BIT;
+            }
+            if (state.has(HouseState.Reading.HUMIDITY)) {
+                readingMask |= HUMIDITY_BIT;
+            }
+        }
+        out.put((byte) readingMask);
+        if ((readingMask & TEMP_BIT) != 0) {
+            putVarint(out, zigzag(state.get(HouseState.Reading.TEMPERATURE)));
+        }
+        if ((readingMask & HUMIDITY_BIT) != 0) {
+            putVarint(out, zigzag(state.get(HouseState.Reading.HUMIDITY)));
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Decode a state message. The buffer's position and limit are not changed
+     * @param message the message between position and limit
+     * @return the state, or null if the message is not a valid state update or state change
+     */
+    public static HouseState decodeState(ByteBuffer message) {
+        if (message == null || !message.hasRemaining()) {
+            return null;
+        }
+        byte type = message.get(message.position());
+        if (type != STATE_UPDATE && type != PUSH_UPDATE && type != SET_STATE) {
+            return null;
+        }
+        ByteBuffer in = message.duplicate();
+        in.get();
+        try {
+            int present = getVarint(in);
+            int values = getVarint(in);
+            int readingMask = in.get();
+
+            HouseState.Builder state = HouseState.builder();
+            for (int i = 0; i < WIRE_DEVICES.length; i++) {
+                if ((present & (1 << i)) != 0) {
+                    state.set(WIRE_DEVICES[i], (values & (1 << i)) != 0);
+                }
+            }
+            if ((present & HVAC_BIT) != 0) {
+                state.set(HouseState.Text.HVAC_MODE,
+                        (values & HVAC_BIT) != 0 ? HouseState.HVAC_HEATER : HouseState.HVAC_CHILLER);
+            }
+            if ((readingMask & TEMP_BIT) != 0) {
+                state.set(HouseState.Reading.TEMPERATURE, unzigzag(getVarint(in)));
+            }
+            if ((readingMask & HUMIDITY_BIT) != 0) {
+                state.set(HouseState.Reading.HUMIDITY, unzigzag(getVarint(in)));
+            }
+            return state.build();
+        } catch (RuntimeException e) {
+            // truncated or malformed
+            return null;
+        }
+    }
+
+    /**
+     * Decode a state update or pushed state. The buffer's position and limit are not changed
+     * @param message the message between position and limit
+     * @return the reported state, or null if the message is not a valid state update
+     */
+    public static HouseState decodeStateUpdate(ByteBuffer message) {
+        if (!isStateUpdate(message)) {
+            return null;
+        }
+        return decodeState(message);
+    }
+
+    private static boolean isStateUpdate(ByteBuffer message) {
+        if (message == null || !message.hasRemaining()) {
+            return false;
+        }
+        byte type = message.get(message.position());
+        return type == STATE_UPDATE || type == PUSH_UPDATE;
+    }
+
+    /**
+     * Check if a response acknowledges a state change
+     * @param response the response message, or null
+     * @return true if the house answered OK
+     */
+    public static boolean isOk(ByteBuffer response) {
+        return response != null && response.remaining() == 1 && response.get(response.position()) == OK;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
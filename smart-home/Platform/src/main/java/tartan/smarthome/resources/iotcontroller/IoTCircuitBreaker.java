@@ -0,0 +1,119 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Keeps requests away from a house that stopped answering. After a number of failures in a row
+ * the breaker opens, and requests fail at once instead of waiting out a timeout each. Once it has
+ * been open for a while it lets a single probe through (half-open): if the house answers, the
+ * breaker closes again; if not, it opens for another round. A probe whose outcome is not recorded
+ * within the open time counts as failed.
+ */
+public class IoTCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final int DEFAULT_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_TIME = 10000;
+
+    private final int threshold;
+    private final long openTime;
+
+    /** guarded by this */
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private long probedAt = 0;
+
+    /**
+     * Create a breaker
+     * @param threshold the number of failures in a row that opens it
+     * @param openTime how long it stays open before a probe is let through, in milliseconds
+     */
+    public IoTCircuitBreaker(int threshold, long openTime) {
+        this.threshold = Math.max(1, threshold);
+        this.openTime = Math.max(0, openTime);
+    }
+
+    /**
+     * Create a breaker with the default settings
+     */
+    public IoTCircuitBreaker() {
+        this(DEFAULT_THRESHOLD, DEFAULT_OPEN_TIME);
+    }
+
+    /**
+     * Ask to send a request. While open, only one probe is allowed once the open time has passed
+     * @return true if the request may go to the house; the caller must then record its outcome
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                long now = System.currentTimeMillis();
+                if (now - openedAt >= openTime) {
+                    state = State.HALF_OPEN;
+                    probedAt = now;
+                    return true;
+                }
+                return false;
+            default:
+                // a probe is already out; if it never came back, open for another round
+                if (System.currentTimeMillis() - probedAt >= openTime) {
+                    state = State.OPEN;
+                    openedAt = System.currentTimeMillis();
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Record that the house answered
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Record that the house did not answer in time
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= threshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Get the state
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Check if requests go through as usual
+     * @return true if closed
+     */
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Get how long until a probe is let through
+     * @return the delay in milliseconds; 0 if requests may be sent now. While a probe is out, the
+     *         time left for it to come back, at least 1
+     */
+    public synchronized long getProbeDelay() {
+        switch (state) {
+            case CLOSED:
+                return 0;
+            case OPEN:
+                return Math.max(0, openedAt + openTime - System.currentTimeMillis());
+            default:
+                return Math.max(1, probedAt + openTime - System.currentTimeMillis());
+        }
+    }
+}
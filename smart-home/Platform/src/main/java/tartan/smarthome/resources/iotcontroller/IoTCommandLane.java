@@ -0,0 +1,29 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The priority classes of requests on a house link. When the link can take one request at a time,
+ * a waiting security request goes out before any waiting routine one.
+ */
+public enum IoTCommandLane {
+
+    /** state changes that touch the alarm, the door lock or the intruder flag */
+    SECURITY,
+
+    /** everything else: state fetches and routine state changes (lights, HVAC, humidifier) */
+    ROUTINE;
+
+    /** the devices whose changes travel in the security lane, one bit per {@link HouseState.Device} */
+    public static final int SECURITY_DEVICES = HouseState.Device.ALARM.getBit()
+            | HouseState.Device.ALARM_ACTIVE.getBit()
+            | HouseState.Device.DOOR_LOCK.getBit()
+            | HouseState.Device.INTRUDER.getBit();
+
+    /**
+     * Choose the lane for a state change
+     * @param change the devices to change
+     * @return SECURITY if any of them is security relevant, ROUTINE otherwise
+     */
+    public static IoTCommandLane of(HouseState change) {
+        return change.deviceChanges(HouseState.EMPTY, SECURITY_DEVICES) != HouseState.EMPTY ? SECURITY : ROUTINE;
+    }
+}
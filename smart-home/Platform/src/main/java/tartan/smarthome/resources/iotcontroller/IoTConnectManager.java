@@ -1,12 +1,21 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
- * Manages connection to the IoT house
+ * Manages connection to the IoT house. Requests are not serialized here; the connection decides
+ * whether they may be pipelined, so a slow state change does not hold up a state fetch. Messages are
+ * encoded as text or binary frames, whichever the connection agreed with the house.
+ *
+ * The manager remembers the device states the house last reported or acknowledged. A state change
+ * carries only the devices that differ from them, and is not sent at all when nothing differs.
+ * Changes to the alarm, the door lock or the intruder flag go in the security lane and are never
+ * held back. Routine changes may be rate limited; a routine change over the limit is not sent but
+ * kept pending, and goes out with a later state change that does not set the device itself.
  *
  * Project: LG Exec Ed Program
  * Copyright: Copyright (c) 2015 Jeffrey S. Gennari
@@ -17,6 +26,27 @@ public class IoTConnectManager {
     // Connection to the house
     private IoTConnection connection;
 
+    // the device states the house last reported or acknowledged. Reports and acknowledgements arrive
+    // on the calling, network and push threads, so each is applied atomically
+    private final AtomicReference<HouseState> acknowledged = new AtomicReference<>(HouseState.EMPTY);
+
+    // limits routine state changes; null for no limit
+    private volatile IoTTokenBucket routineWrites = null;
+
+    // routine devices sent or held back but not yet acknowledged, with the values they should take
+    private final AtomicReference<HouseState> pending = new AtomicReference<>(HouseState.EMPTY);
+
+    // true if the last state change held back routine devices
+    private volatile boolean deferred = false;
+
+    // hears the requests and what became of them
+    private volatile EvaluationListener listener = EvaluationListeners.getDefault();
+
+    // a reusable buffer for encoding state changes, one per calling thread
+    private final ThreadLocal<ByteBuffer> requestBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(
+                    Math.max(IoTProtocolCodec.MAX_SET_STATE_SIZE, IoTBinaryCodec.MAX_MESSAGE_SIZE)));
+
     /**
      * Set up the connection manager with a connection
      * @param conn the (established) connection
@@ -36,330 +66,296 @@ public class IoTConnectManager {
      * Get the state from the house
      * @return the new state of things
      */
-    public synchronized Map<String,Object> getState() {
+    public HouseState getHouseState() {
 
-        System.out.println("Requesting state");
+        EvaluationListener listener = this.listener;
+        if (listener.isEnabled(EvaluationListener.Level.DEBUG)) {
+            listener.report(EvaluationListener.Level.DEBUG, "Requesting state");
+        }
 
-        synchronized (connection) {
-            String update = connection.sendMessageToHouse(IoTValues.GET_STATE + IoTValues.MSG_END);
-            if (update == null) {
-                return null;
-            }
+        boolean binary = connection.whenReady().join();
+        return reported(decodeStateUpdate(connection.sendFrameToHouse(getStateRequest(binary)), binary));
+    }
+
+    /**
+     * Get the state from the house without blocking
+     * @return a future completed with the new state of things, or null if there was no valid response
+     */
+    public CompletableFuture<HouseState> getHouseStateAsync() {
 
-            return handleStateUpdate(update);
+        EvaluationListener listener = this.listener;
+        if (listener.isEnabled(EvaluationListener.Level.DEBUG)) {
+            listener.report(EvaluationListener.Level.DEBUG, "Requesting state");
         }
+
+        return connection.whenReady().thenCompose(binary -> connection.sendFrameAsync(getStateRequest(binary))
+                .handle((update, error) -> reported(error == null ? decodeStateUpdate(update, binary) : null)));
+    }
+
+    /**
+     * Ask the house to push its state whenever it changes, instead of waiting to be polled. Houses
+     * that cannot push answer the request as an ordinary state fetch, and must still be polled
+     * @param listener given each state the house pushes (and the state that answers the request).
+     *                 It runs on a network thread and must not block
+     * @return a future completed with true if the house will push, false otherwise
+     */
+    public CompletableFuture<Boolean> subscribe(Consumer<HouseState> listener) {
+        if (!connection.isConnected() || !connection.supportsPush()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        connection.setPushListener(frame -> {
+            HouseState pushed = reported(decodeStateUpdate(frame, connection.whenReady().getNow(false)));
+            if (pushed != null) {
+                listener.accept(pushed);
+            }
+        });
+        return connection.whenReady().thenCompose(binary -> connection.sendFrameAsync(
+                binary ? IoTBinaryCodec.SUBSCRIBE_MESSAGE : IoTProtocolCodec.SUBSCRIBE)
+                .handle((reply, error) -> {
+                    if (error != null) {
+                        return false;
+                    }
+                    if (binary) {
+                        return IoTBinaryCodec.isOk(reply);
+                    }
+                    // a text reply is also a state update
+                    HouseState state = reported(IoTProtocolCodec.decodeStateUpdate(reply));
+                    if (state != null) {
+                        listener.accept(state);
+                    }
+                    return IoTProtocolCodec.acceptsPush(reply);
+                }));
     }
 
+    /**
+     * Get the state from the house in its Map form
+     * @return the new state of things
+     */
+    public Map<String,Object> getState() {
+        HouseState state = getHouseState();
+        return state == null ? null : state.toMap();
+    }
 
+    /**
+     * Get the state from the house in its Map form without blocking
+     * @return a future completed with the new state of things, or null if there was no valid response
+     */
+    public CompletableFuture<Map<String,Object>> getStateAsync() {
+        return getHouseStateAsync().thenApply(state -> state == null ? null : state.toMap());
+    }
 
     /**
      * Send a state change request to the house
-     * @param state the new state
-     * @return true if the state was accepted; false otherwise
+     * @param state the new state; only the devices that differ from the house are sent, with any
+     *              routine devices still pending from an earlier change that it does not set
+     * @return true if the state was accepted or the house is already in it, apart from the routine
+     *         devices held back (see {@link #getDeferred()}); false otherwise
      */
-    public synchronized Boolean setState(Map<String, Object> state) {
+    public Boolean setState(HouseState state) {
 
         // Added for G2
         if (!connection.isConnected()) {  // Ensure connection is active
             return false;
         }
 
-        StringBuffer newState = new StringBuffer();
-        Set<String> keys = state.keySet();
-        int count = 0;
-        for (String key : keys) {
-
-            if (key.equals(IoTValues.DOOR_STATE)) {
-
-                Boolean newDoorState = (Boolean) state.getOrDefault(key, false);
-
-                newState.append(IoTValues.DOOR_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newDoorState) {
-                    newState.append(IoTValues.DOOR_OPEN);
-                } else {
-                    newState.append(IoTValues.DOOR_CLOSE);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if(key.equals(IoTValues.PHONE_PROXIMITY)){
-                Boolean newPhoneProximity = (Boolean) state.get(key);
-                newState.append(IoTValues.PHONE_PROXIMITY);
-                newState.append(IoTValues.PARAM_EQ);
-                if(newPhoneProximity){
-                    newState.append(IoTValues.PHONE_DETECTED);
-                } else{
-                    newState.append(IoTValues.PHONE_NOT_DETECTED);
-                }
-                count++;
-                if (count <keys.size()){
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.INTRUDER_STATE)) {
-                Boolean newIntruderState = (Boolean) state.get(key);
-                newState.append(IoTValues.INTRUDER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newIntruderState) {
-                    newState.append(IoTValues.INTRUDER_DETECTED);
-                } else {
-                    newState.append(IoTValues.INTRUDER_CLEAR);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }}
-                else if (key.equals(IoTValues.DOOR_LOCK_STATE)) { 
-                Boolean newDoorLockState = (Boolean) state.get(key);
-                newState.append(IoTValues.DOOR_LOCK_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newDoorLockState) {
-                    newState.append(IoTValues.DOOR_LOCKED);
-                } else {
-                    newState.append(IoTValues.DOOR_UNLOCKED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-                /** Removed for IoTConnectManagerTest */
-//            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-//                Boolean newLightState = (Boolean) state.get(key);
-//                newState.append(IoTValues.LIGHT_STATE);
-//                newState.append(IoTValues.PARAM_EQ);
-//                if (newLightState) {
-//                    newState.append(IoTValues.LIGHT_ON);
-//                } else {
-//                    newState.append(IoTValues.LIGHT_OFF);
-//                }
-//                count++;
-//                if (count<keys.size()) {
-//                    newState.append(IoTValues.PARAM_DELIM);
-//                }
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ENABLED);
-                } else {
-                    newState.append(IoTValues.ALARM_DISABLED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_ACTIVE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ON);
-                } else {
-                    newState.append(IoTValues.ALARM_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean newHumidifierState = (Boolean) state.get(key);
-                newState.append(IoTValues.HUMIDIFIER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHumidifierState) {
-                    newState.append(IoTValues.HUMIDIFIER_ON);
-                } else {
-                    newState.append(IoTValues.HUMIDIFIER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                Boolean newChillerState = (Boolean) state.get(key);
-                newState.append(IoTValues.CHILLER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newChillerState) {
-                    newState.append(IoTValues.CHILLER_ON);
-                } else {
-                    newState.append(IoTValues.CHILLER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                Boolean newHeaterState = (Boolean) state.get(key);
-                newState.append(IoTValues.HEATER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHeaterState) {
-                    newState.append(IoTValues.HEATER_ON);
-                } else {
-                    newState.append(IoTValues.HEATER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }
+        HouseState delta = limit(changes(state));
+        if (delta == HouseState.EMPTY) {
+            return true;
         }
+        boolean binary = connection.whenReady().join();
+        ByteBuffer response = connection.sendFrameToHouse(encodeSetState(delta, binary), IoTCommandLane.of(delta));
+        return acknowledge(delta, handleSetStateResponse(response, binary));
+    }
 
-        //newState.append(IoTValues.MSG_END); // append protocol request terminator
-        StringBuffer msg
-                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
-        System.out.println("New state for house: " + msg.toString());
-
-        String response = null;
-        synchronized (connection) {
-            response = connection.sendMessageToHouse(msg.toString());
+    /**
+     * Send a state change request to the house without blocking
+     * @param state the new state; only the devices that differ from the house are sent, with any
+     *              routine devices still pending from an earlier change that it does not set
+     * @return a future completed with true if the state was accepted or the house is already in it,
+     *         apart from the routine devices held back; false otherwise
+     */
+    public CompletableFuture<Boolean> setStateAsync(HouseState state) {
+        if (!connection.isConnected()) {
+            return CompletableFuture.completedFuture(false);
         }
-        if (response == null) {
-            System.out.println("No response");
-            return false;
+
+        HouseState delta = limit(changes(state));
+        if (delta == HouseState.EMPTY) {
+            return CompletableFuture.completedFuture(true);
         }
-        System.out.println("Response: " + response);
+        IoTCommandLane lane = IoTCommandLane.of(delta);
+        return connection.whenReady().thenCompose(binary -> connection.sendFrameAsync(encodeSetState(delta, binary), lane)
+                .handle((response, error) -> acknowledge(delta, handleSetStateResponse(error == null ? response : null, binary))));
+    }
 
-        return response.equals(IoTValues.OK);
+    /**
+     * Send a state change request to the house
+     * @param state the new state in its Map form
+     * @return true if the state was accepted; false otherwise
+     */
+    public Boolean setState(Map<String, Object> state) {
+        return setState(HouseState.fromMap(state));
     }
 
     /**
-     * Process the new state reported by the house
-     * @param stateUpdateMsg the new state message
-     * @return the new state
+     * Send a state change request to the house without blocking
+     * @param state the new state in its Map form
+     * @return a future completed with true if the state was accepted; false otherwise
      */
-    private Map<String,Object> handleStateUpdate(String stateUpdateMsg) {
+    public CompletableFuture<Boolean> setStateAsync(Map<String, Object> state) {
+        return setStateAsync(HouseState.fromMap(state));
+    }
 
-        if (stateUpdateMsg == null) {
-            return null;
-        }
-        if (stateUpdateMsg.length() == 0) {
-            return null;
-        }
+    /**
+     * Set who hears the requests sent to the house and what became of them
+     * @param listener the listener
+     */
+    public void setListener(EvaluationListener listener) {
+        this.listener = listener == null ? EvaluationListeners.none() : listener;
+    }
 
-        System.out.println("State Update: " + stateUpdateMsg);
-        Hashtable<String,Object> state = new Hashtable<String, Object>();
+    /**
+     * Limit routine state changes to a number per second
+     * @param burst the most routine changes sent back to back
+     * @param perSecond the routine changes allowed each second on average; 0 or less for no limit
+     */
+    public void setRoutineRate(int burst, double perSecond) {
+        routineWrites = perSecond > 0 ? new IoTTokenBucket(burst, perSecond) : null;
+    }
 
-        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
+    /**
+     * Get how long until routine devices held back by the last state change may be sent
+     * @return the delay in milliseconds, at least 1; 0 if nothing was held back
+     */
+    public long getDeferredDelay() {
+        IoTTokenBucket bucket = routineWrites;
+        return deferred && bucket != null ? Math.max(1, bucket.getDelay()) : 0;
+    }
 
-        // invalid state update
-        if (req.length != 2) {
-            return null;
-        }
-        // is this a state update
-        String cmd = req[0];
-        String body = req[1];
+    /**
+     * Get the routine devices held back by the last state change. The house has not accepted them
+     * yet; they go out with a later state change
+     * @return the devices, with the values they are to take; empty if nothing was held back
+     */
+    public HouseState getDeferred() {
+        return deferred ? pending.get() : HouseState.EMPTY;
+    }
 
-        if (!cmd.equals(IoTValues.STATE_UPDATE)) { // only message that comes from house
-            return null;
-        }
+    /**
+     * Get the number of requests waiting for the house link in a lane
+     * @param lane the lane
+     * @return the queue depth
+     */
+    public int getQueueDepth(IoTCommandLane lane) {
+        return connection.getQueueDepth(lane);
+    }
+
+    /**
+     * Get how long requests in a lane recently waited for the house link
+     * @param lane the lane
+     * @return the wait in milliseconds
+     */
+    public double getQueueWait(IoTCommandLane lane) {
+        return connection.getQueueWait(lane);
+    }
+
+    /**
+     * Get the devices a state change must send: those that differ from the house, and the pending
+     * routine devices the new state does not set
+     * @param state the new state
+     * @return the devices to change
+     */
+    private HouseState changes(HouseState state) {
+        HouseState known = acknowledged.get();
+        HouseState delta = state.deviceChanges(known, IoTProtocolCodec.SET_DEVICE_MASK);
+        // the new state decides every device it sets, even one it leaves as the house has it
+        HouseState held = pending.get().deviceChanges(known, IoTProtocolCodec.SET_DEVICE_MASK & ~state.getDevicesSet());
+        return held == HouseState.EMPTY ? delta : held.merge(delta);
+    }
+
+    /**
+     * Hold back the routine devices of a change if they are over the rate limit. Security devices
+     * always go. The routine devices stay pending until the house acknowledges them
+     * @param delta the devices to change
+     * @return the devices to send now
+     */
+    private HouseState limit(HouseState delta) {
+        IoTTokenBucket bucket = routineWrites;
+        HouseState routine = delta.deviceChanges(HouseState.EMPTY, ~IoTCommandLane.SECURITY_DEVICES);
+        pending.set(routine);
+        deferred = bucket != null && routine != HouseState.EMPTY && !bucket.tryAcquire();
+        return deferred ? delta.deviceChanges(HouseState.EMPTY, IoTCommandLane.SECURITY_DEVICES) : delta;
+    }
 
-        if (String.valueOf(body.charAt(body.length()-1)).equals(IoTValues.MSG_END)) {
-            body = body.substring(0, body.length() - 1);
+    /**
+     * Encode a state change into this manager's request buffer. The buffer belongs to the calling
+     * thread, and the connection copies the request before the send call returns
+     * @param state the new state
+     * @param binary true to encode a binary message, false for text
+     * @return the encoded request
+     */
+    private ByteBuffer encodeSetState(HouseState state, boolean binary) {
+        ByteBuffer request = requestBuffer.get();
+        request.clear();
+        if (binary) {
+            IoTBinaryCodec.encodeSetState(state, request);
+        } else {
+            IoTProtocolCodec.encodeSetState(state, request);
         }
-        if (body==null) {
-            return null;
+        return request.flip();
+    }
+
+    private static ByteBuffer getStateRequest(boolean binary) {
+        return binary ? IoTBinaryCodec.GET_STATE_MESSAGE : IoTProtocolCodec.GET_STATE;
+    }
+
+    private static HouseState decodeStateUpdate(ByteBuffer update, boolean binary) {
+        return binary ? IoTBinaryCodec.decodeStateUpdate(update) : IoTProtocolCodec.decodeStateUpdate(update);
+    }
+
+    /**
+     * Record the state the house reported. If there was no valid report the house state is unknown,
+     * so the next state change is sent in full
+     * @param state the reported state, or null
+     * @return the state
+     */
+    private HouseState reported(HouseState state) {
+        acknowledged.set(state == null ? HouseState.EMPTY : state);
+        return state;
+    }
+
+    /**
+     * Record the outcome of a state change. If the house did not acknowledge it, its state is
+     * unknown and the next state change is sent in full
+     * @param delta the devices that were sent
+     * @param ok true if the house acknowledged the change
+     * @return ok
+     */
+    private Boolean acknowledge(HouseState delta, Boolean ok) {
+        if (ok) {
+            acknowledged.updateAndGet(known -> known.merge(delta));
+            pending.updateAndGet(held -> held.deviceChanges(delta, IoTProtocolCodec.SET_DEVICE_MASK));
+        } else {
+            acknowledged.set(HouseState.EMPTY);
         }
-        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
-
-        // process the new state
-        while (pt.hasMoreTokens()) {
-            String param = pt.nextToken();
-            String data[] = param.split(IoTValues.PARAM_EQ);
-            Integer val = Integer.parseInt(data[1]);
-
-            if (data[0].equals(IoTValues.LIGHT_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LIGHT_STATE, true);
-                } else {
-                    state.put(IoTValues.LIGHT_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_STATE, true);
-                } else {
-                state.put(IoTValues.ALARM_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.DOOR_LOCK_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.DOOR_LOCK_STATE, true);
-                } else {
-                    state.put(IoTValues.DOOR_LOCK_STATE, false);
-                }
-            }else if (data[0].equals(IoTValues.DOOR_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.DOOR_STATE, true);
-                } else {
-                    state.put(IoTValues.DOOR_STATE, false);
-                }
-            }  else if (data[0].equals(IoTValues.HUMIDIFIER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HUMIDIFIER_STATE, true);
-                } else {
-                    state.put(IoTValues.HUMIDIFIER_STATE, false);
-                }
-            }  else if (data[0].equals(IoTValues.INTRUDER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.INTRUDER_STATE, true);
-                } else {
-                    state.put(IoTValues.INTRUDER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.PROXIMITY_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.PROXIMITY_STATE, true);
-                } else {
-                    state.put(IoTValues.PROXIMITY_STATE, false);
-                }
-            } else if(data[0].equals(IoTValues.PHONE_PROXIMITY)){
-                if (val == 1){
-                    state.put(IoTValues.PHONE_PROXIMITY, true);
-                }else{
-                    state.put(IoTValues.PHONE_PROXIMITY, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_ACTIVE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_ACTIVE, true);
-                } else {
-                    state.put(IoTValues.ALARM_ACTIVE, false);
-                }
-            } else if (data[0].equals(IoTValues.HEATER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HEATER_STATE, true);
-                } else {
-                    state.put(IoTValues.HEATER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.CHILLER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.CHILLER_STATE, true);
-                } else {
-                    state.put(IoTValues.CHILLER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.TEMP_READING)) {
-                state.put(IoTValues.TEMP_READING, val);
-            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
-                state.put(IoTValues.HUMIDITY_READING, val);
-            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HVAC_MODE, "Heater");
-                } else {
-                    state.put(IoTValues.HVAC_MODE, "Chiller");
-                }
+        return ok;
+    }
+
+    /**
+     * Check the house response to a state change
+     * @param response the response, or null if there was none
+     * @param binary true if the response is a binary message
+     * @return true if the state was accepted; false otherwise
+     */
+    private Boolean handleSetStateResponse(ByteBuffer response, boolean binary) {
+        if (response == null) {
+            EvaluationListener listener = this.listener;
+            if (listener.isEnabled(EvaluationListener.Level.INFO)) {
+                listener.report(EvaluationListener.Level.INFO, "No response");
             }
+            return false;
         }
-        return state;
+        return binary ? IoTBinaryCodec.isOk(response) : IoTProtocolCodec.isOk(response);
     }
 
     /**
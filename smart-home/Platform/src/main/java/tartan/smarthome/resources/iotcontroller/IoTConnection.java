@@ -1,11 +1,27 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.io.*;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 /**
  * A connection to an IoT-enabled house. This class handles the network connection to the house
+ * by delegating to an {@link IoTTransport}. By default every house shares the selector threads of
+ * the default {@link IoTEventLoopGroup}; the blocking socket transport is available as a fallback.
+ *
+ * With pipelining off (the default) requests are strictly one at a time, which is what legacy houses
+ * expect. Requests waiting for their turn queue in one of two lanes (see {@link IoTCommandLane});
+ * when the link is free, the oldest security request goes first. In the ordered and tagged modes
+ * several requests may be in flight at once. They go straight to the transport in the order they
+ * are sent, with no lanes: a security request waits behind any routine ones already on the wire,
+ * and the lane queues stay empty.
+ *
+ * After connecting, the connection offers the house binary framing (see {@link IoTBinaryCodec}).
+ * Houses that accept switch the link to compact binary frames; legacy houses answer the offer as
+ * an ordinary state request and the link stays on text. Requests wait until the handshake is done.
  *
  * Project: LG Exec Ed Program
  * Copyright: 2015 Jeffrey S. Gennari
@@ -13,16 +29,45 @@ import java.net.UnknownHostException;
  * 1.0 November 2015 - initial version
  */
 public class IoTConnection {
-    private Boolean isConnected = false;
 
     /** connection settings */
     private String address = null;
     private Integer port = 5050; // the default port for the house
 
-    /** The connection is private so it can be controlled */
-    private Socket houseSocket=null;
-    private BufferedWriter out=null;
-    private BufferedReader in = null;
+    /** The transport is private so it can be controlled */
+    private IoTTransport transport;
+
+    /** the pipelining mode */
+    private String pipelining = IoTValues.PIPELINE_OFF;
+
+    /** the framing offered to the house */
+    private String framing = IoTValues.FRAMING_AUTO;
+
+    /** completed with true once the house agreed to binary framing, or false if the link is on text */
+    private volatile CompletableFuture<Boolean> ready = CompletableFuture.completedFuture(false);
+
+    /** a request waiting for the link while pipelining is off */
+    private static final class Waiting {
+        final ByteBuffer request;
+        final CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+
+        Waiting(ByteBuffer request) {
+            this.request = request;
+        }
+    }
+
+    /** the requests waiting for the link, one queue per lane; guarded by this */
+    private final EnumMap<IoTCommandLane, ArrayDeque<Waiting>> lanes = newLanes();
+
+    /** whether a request is out while pipelining is off; guarded by this */
+    private boolean busy = false;
+
+    /** the recent time requests waited in each lane, in nanoseconds, smoothed; guarded by this */
+    private final double[] laneWait = new double[IoTCommandLane.values().length];
+
+    /** how much each new wait counts in the smoothed wait time */
+    private static final double WAIT_WEIGHT = 0.2;
 
     /**
      * Get the house address
@@ -41,14 +86,40 @@ public class IoTConnection {
     }
 
     /**
-     * Get an existing connection, or make a new one
+     * Create a connection on the shared non-blocking transport
      * @param addr the house address
-     * @return the established connection or null
+     * @param port the house port
      */
     public IoTConnection(String addr, Integer port) {
+        this(addr, port, IoTValues.TRANSPORT_NIO);
+    }
+
+    /**
+     * Create a connection using the named transport
+     * @param addr the house address
+     * @param port the house port
+     * @param transportType either {@link IoTValues#TRANSPORT_NIO} or {@link IoTValues#TRANSPORT_SOCKET}
+     */
+    public IoTConnection(String addr, Integer port, String transportType) {
         this.address = addr;
         this.port = port;
+        if (IoTValues.TRANSPORT_SOCKET.equalsIgnoreCase(transportType)) {
+            this.transport = new IoTSocketTransport(addr, port);
+        } else {
+            this.transport = new IoTNioTransport(addr, port, IoTEventLoopGroup.getDefault());
+        }
+    }
 
+    /**
+     * Create a connection over a specific transport
+     * @param addr the house address
+     * @param port the house port
+     * @param transport the transport to use
+     */
+    public IoTConnection(String addr, Integer port, IoTTransport transport) {
+        this.address = addr;
+        this.port = port;
+        this.transport = transport;
     }
 
     /**
@@ -56,7 +127,53 @@ public class IoTConnection {
      * @return true if connected, false otherwise
      */
     public Boolean isConnected() {
-        return isConnected;
+        return transport.isConnected();
+    }
+
+    /**
+     * Set the pipelining mode for this connection
+     * @param mode one of {@link IoTValues#PIPELINE_OFF}, {@link IoTValues#PIPELINE_ORDERED} or
+     *             {@link IoTValues#PIPELINE_TAGGED}
+     */
+    public void setPipelining(String mode) {
+        if (mode == null) {
+            mode = IoTValues.PIPELINE_OFF;
+        }
+        this.pipelining = mode.toLowerCase();
+        transport.setSequenceTagging(IoTValues.PIPELINE_TAGGED.equals(this.pipelining));
+    }
+
+    /**
+     * Get the pipelining mode
+     * @return the mode
+     */
+    public String getPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * Set the framing offered to the house on the next connect
+     * @param mode {@link IoTValues#FRAMING_AUTO} to offer binary frames, or {@link IoTValues#FRAMING_TEXT}
+     *             to always use text
+     */
+    public void setFraming(String mode) {
+        this.framing = mode == null ? IoTValues.FRAMING_AUTO : mode.toLowerCase();
+    }
+
+    /**
+     * Get the framing offered to the house
+     * @return the framing mode
+     */
+    public String getFraming() {
+        return framing;
+    }
+
+    /**
+     * Wait for the capability handshake. Messages must be encoded for the framing this reports
+     * @return a future completed with true if the link uses binary frames, false for text
+     */
+    public CompletableFuture<Boolean> whenReady() {
+        return ready;
     }
 
     /**
@@ -66,32 +183,181 @@ public class IoTConnection {
      */
     public String sendMessageToHouse(String msg) {
         try {
+            return sendMessageAsync(msg).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // no response
+        }
+        return null;
+    }
 
-            out.write(msg, 0, msg.length());
-            out.flush();
+    /**
+     * Send a message to the house without blocking
+     * @param msg the message to send
+     * @return a future completed with the response
+     */
+    public CompletableFuture<String> sendMessageAsync(String msg) {
+        return sendFrameAsync(IoTProtocolCodec.fromText(msg)).thenApply(IoTProtocolCodec::toText);
+    }
 
-            return in.readLine();
+    /**
+     * Send an encoded message to the house and get the response
+     * @param request the encoded message; may be reused once this returns
+     * @return the response line, or null if there was none
+     */
+    public ByteBuffer sendFrameToHouse(ByteBuffer request) {
+        try {
+            return sendFrameAsync(request).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // no response
+        }
+        return null;
+    }
 
-        } catch (IOException ioe) {
-            //ioe.printStackTrace();
+    /**
+     * Send an encoded message to the house in a given lane and get the response
+     * @param request the encoded message; may be reused once this returns
+     * @param lane the priority of the request
+     * @return the response line, or null if there was none
+     */
+    public ByteBuffer sendFrameToHouse(ByteBuffer request, IoTCommandLane lane) {
+        try {
+            return sendFrameAsync(request, lane).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // no response
         }
         return null;
     }
 
     /**
-     * Disconnect from the house
+     * Send an encoded message to the house without blocking. The request is not modified and may
+     * be reused by the caller once this returns
+     * @param request the encoded message between position and limit
+     * @return a future completed with the response line
      */
-    public void disconnect() {
-        if (houseSocket!=null) {
-            if (houseSocket.isConnected()) {
-                try {
-                    houseSocket.close();
-                } catch (IOException e) {
+    public CompletableFuture<ByteBuffer> sendFrameAsync(ByteBuffer request) {
+        return sendFrameAsync(request, IoTCommandLane.ROUTINE);
+    }
+
+    /**
+     * Send an encoded message to the house in a given lane without blocking. The request is not
+     * modified and may be reused by the caller once this returns
+     * @param request the encoded message between position and limit
+     * @param lane the priority of the request
+     * @return a future completed with the response line
+     */
+    public CompletableFuture<ByteBuffer> sendFrameAsync(ByteBuffer request, IoTCommandLane lane) {
+        CompletableFuture<Boolean> handshake = ready;
+        if (!handshake.isDone()) {
+            // the request goes out after the handshake, so it needs its own copy of the bytes
+            ByteBuffer copy = copyOf(request);
+            return handshake.thenCompose(binary -> sendFrameAsync(copy, lane));
+        }
+        if (!IoTValues.PIPELINE_OFF.equals(pipelining)) {
+            return transport.sendFrame(request);
+        }
+        synchronized (this) {
+            if (busy) {
+                // the request goes out later, so it needs its own copy of the bytes
+                Waiting waiting = new Waiting(copyOf(request));
+                lanes.get(lane).add(waiting);
+                return waiting.response;
+            }
+            busy = true;
+            recordWait(lane, 0);
+        }
+        return send(request);
+    }
+
+    /**
+     * Send a request while pipelining is off, and the next waiting one when it is answered
+     * @param request the request; the link is marked busy
+     * @return a future completed with the response line
+     */
+    private CompletableFuture<ByteBuffer> send(ByteBuffer request) {
+        CompletableFuture<ByteBuffer> response;
+        try {
+            response = transport.sendFrame(request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        // the next request goes whether this one succeeded or not
+        response.whenComplete((r, e) -> sendNext());
+        return response;
+    }
 
+    private void sendNext() {
+        Waiting next = null;
+        synchronized (this) {
+            for (IoTCommandLane lane : IoTCommandLane.values()) {
+                next = lanes.get(lane).poll();
+                if (next != null) {
+                    recordWait(lane, System.nanoTime() - next.queuedAt);
+                    break;
                 }
             }
+            if (next == null) {
+                busy = false;
+                return;
+            }
         }
-        isConnected = false;
+        Waiting sending = next;
+        send(sending.request).whenComplete((r, e) -> {
+            if (e == null) {
+                sending.response.complete(r);
+            } else {
+                sending.response.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Get the number of requests waiting in a lane; always 0 unless pipelining is off
+     * @param lane the lane
+     * @return the queue depth
+     */
+    public synchronized int getQueueDepth(IoTCommandLane lane) {
+        return lanes.get(lane).size();
+    }
+
+    /**
+     * Get how long requests in a lane recently waited for the link, smoothed over the last few;
+     * always 0 unless pipelining is off
+     * @param lane the lane
+     * @return the wait in milliseconds
+     */
+    public synchronized double getQueueWait(IoTCommandLane lane) {
+        return laneWait[lane.ordinal()] / 1e6;
+    }
+
+    /** called with the lock held */
+    private void recordWait(IoTCommandLane lane, long nanos) {
+        int i = lane.ordinal();
+        laneWait[i] += WAIT_WEIGHT * (nanos - laneWait[i]);
+    }
+
+    private static EnumMap<IoTCommandLane, ArrayDeque<Waiting>> newLanes() {
+        EnumMap<IoTCommandLane, ArrayDeque<Waiting>> lanes = new EnumMap<>(IoTCommandLane.class);
+        for (IoTCommandLane lane : IoTCommandLane.values()) {
+            lanes.put(lane, new ArrayDeque<>());
+        }
+        return lanes;
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer request) {
+        return ByteBuffer.allocate(request.remaining()).put(request.duplicate()).flip();
+    }
+
+    /**
+     * Disconnect from the house
+     */
+    public void disconnect() {
+        transport.disconnect();
     }
 
     /**
@@ -99,21 +365,86 @@ public class IoTConnection {
      * @return true if connection successful, false otherwise
      */
     public Boolean connect() {
-
         try {
-            houseSocket = new Socket(this.address, this.port);
+            return connectAsync().get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // not connected
+        }
+        return false;
+    }
 
-            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader( houseSocket.getInputStream()));
+    /**
+     * Connect to the house without blocking. The capability handshake follows in the background;
+     * see {@link #whenReady()}
+     * @return a future completed with true if the connection was made
+     */
+    public CompletableFuture<Boolean> connectAsync() {
+        // requests made while connecting wait for the handshake, so none goes out in the old framing
+        CompletableFuture<Boolean> handshake = new CompletableFuture<>();
+        ready = handshake;
+        return transport.connectAsync().whenComplete((connected, error) -> {
+            if (error == null && connected) {
+                negotiate(handshake);
+            } else {
+                handshake.complete(false);
+            }
+        });
+    }
 
-        } catch (UnknownHostException uhe) {
-            System.err.println("Unknown host: " + address);
-            return false;
-        } catch (IOException ioe){
-            return false;
+    /**
+     * Offer binary framing to the house. The offer is sent straight to the transport, ahead of any
+     * request, and requests wait for the answer
+     * @param handshake completed with true if the house agreed to binary framing
+     */
+    private void negotiate(CompletableFuture<Boolean> handshake) {
+        if (!IoTValues.FRAMING_AUTO.equals(framing) || !transport.supportsBinaryFraming()) {
+            handshake.complete(false);
+            return;
         }
-        isConnected = true;
-        return true;
+        transport.sendFrame(IoTBinaryCodec.CAPABILITY_OFFER).whenComplete((reply, error) -> {
+            boolean binary = error == null && IoTBinaryCodec.acceptsBinary(reply);
+            if (binary) {
+                // switched before the handshake completes, so no request can be sent as text
+                transport.setBinaryFraming(true);
+            }
+            handshake.complete(binary);
+        });
+    }
+
+    /**
+     * Set the connect, read and write deadlines for this connection
+     * @param connectMillis connect deadline
+     * @param readMillis time allowed for the house to answer a request
+     * @param writeMillis time allowed for a request to be written
+     */
+    public void setDeadlines(long connectMillis, long readMillis, long writeMillis) {
+        transport.setDeadlines(connectMillis, readMillis, writeMillis);
+    }
+
+    /**
+     * Check if the house can push states over this connection
+     * @return true if the transport delivers pushed frames
+     */
+    public boolean supportsPush() {
+        return transport.supportsPush();
+    }
+
+    /**
+     * Register the listener for states the house pushes. It runs on a network thread and must not block
+     * @param listener given each pushed frame
+     */
+    public void setPushListener(Consumer<ByteBuffer> listener) {
+        transport.setPushListener(listener);
+    }
+
+    /**
+     * Register the listener told when the link goes up or down
+     * @param listener the listener
+     */
+    public void setConnectionListener(IoTConnectionListener listener) {
+        transport.setConnectionListener(listener);
     }
 
 }
@@ -0,0 +1,14 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Receives link state changes for a house connection. Notifications arrive on a network thread,
+ * so implementations must not block.
+ */
+public interface IoTConnectionListener {
+
+    /**
+     * The link state changed
+     * @param state the new state
+     */
+    void connectionStateChanged(IoTConnectionState state);
+}
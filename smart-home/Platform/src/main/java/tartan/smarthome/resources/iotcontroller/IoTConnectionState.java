@@ -0,0 +1,15 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The state of the link to a house
+ */
+public enum IoTConnectionState {
+    /** the link is up and requests can be sent */
+    CONNECTED,
+
+    /** the link was lost (broken pipe, missed deadline, half-open socket) and may be re-established */
+    DISCONNECTED,
+
+    /** the link was closed on purpose and will not be re-established */
+    CLOSED
+}
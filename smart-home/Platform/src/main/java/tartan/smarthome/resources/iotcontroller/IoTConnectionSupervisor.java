@@ -0,0 +1,160 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a house connection up. The first connect is made in the background at a random point
+ * within the base delay. When the link drops, or a connect fails, the supervisor reconnects with
+ * exponential backoff and full jitter: each delay is picked at random below a cap that doubles per
+ * failed attempt. The randomness spreads out connects so that a platform restart or a network blip
+ * across many houses does not turn into a synchronized connection storm.
+ *
+ * Link state changes are passed on to a downstream listener (normally the {@link IoTControlManager}).
+ */
+public class IoTConnectionSupervisor implements IoTConnectionListener {
+
+    /** one timer thread schedules reconnects for every house; the connects themselves are non-blocking */
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "iot-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** the first delay cap, in milliseconds */
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    /** the largest delay between attempts, in milliseconds */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    private final IoTConnection connection;
+    private final IoTConnectionListener downstream;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /** failed attempts since the link was last up */
+    private int attempts = 0;
+
+    /** the scheduled reconnect, if any */
+    private ScheduledFuture<?> pending = null;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Supervise a connection
+     * @param connection the connection to keep up
+     * @param baseDelay the first delay cap, in milliseconds
+     * @param maxDelay the largest delay between attempts, in milliseconds
+     * @param downstream told about every link state change; may be null
+     */
+    public IoTConnectionSupervisor(IoTConnection connection, long baseDelay, long maxDelay,
+                                   IoTConnectionListener downstream) {
+        this.connection = connection;
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.downstream = downstream;
+    }
+
+    /**
+     * Start keeping the link up. The first connect is scheduled in the background, at a random point
+     * within the base delay, so houses started together do not all connect at once. The downstream
+     * listener hears when the link comes up
+     * @return true if the house was already connected
+     */
+    public Boolean start() {
+        stopped = false;
+        connection.setConnectionListener(this);
+        if (connection.isConnected()) {
+            return true;
+        }
+        scheduleReconnect();
+        return false;
+    }
+
+    /**
+     * Stop reconnecting and close the link
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (this) {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Check if the supervisor is still keeping the link up
+     * @return true until stopped
+     */
+    public boolean isRunning() {
+        return !stopped;
+    }
+
+    /**
+     * Get the failed attempts since the link was last up
+     * @return the attempt count
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public void connectionStateChanged(IoTConnectionState state) {
+        if (state == IoTConnectionState.CONNECTED) {
+            synchronized (this) {
+                attempts = 0;
+            }
+        } else if (state == IoTConnectionState.DISCONNECTED) {
+            scheduleReconnect();
+        }
+        if (downstream != null) {
+            downstream.connectionStateChanged(state);
+        }
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (stopped || pending != null) {
+            return;
+        }
+        long delay = backoff(attempts, baseDelay, maxDelay);
+        attempts++;
+        pending = RECONNECTS.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            // this attempt is running, so a failure may schedule the next one
+            pending = null;
+        }
+        if (stopped) {
+            return;
+        }
+        connection.connectAsync().whenComplete((connected, error) -> {
+            if (error != null || !connected) {
+                scheduleReconnect();
+            }
+        });
+    }
+
+    /**
+     * Pick the delay before a reconnect attempt: uniformly random between zero and a cap that starts
+     * at the base delay and doubles with every failed attempt, up to the maximum
+     * @param attempt failed attempts so far
+     * @param baseDelay the first delay cap, in milliseconds
+     * @param maxDelay the largest delay, in milliseconds
+     * @return the delay in milliseconds
+     */
+    static long backoff(int attempt, long baseDelay, long maxDelay) {
+        long cap = baseDelay << Math.min(attempt, 30);
+        if (cap <= 0 || cap > maxDelay) {
+            cap = maxDelay;
+        }
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
@@ -1,8 +1,13 @@
 package tartan.smarthome.resources.iotcontroller;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import tartan.smarthome.resources.TartanStateEvaluator;
 
@@ -15,7 +20,7 @@ import tartan.smarthome.resources.TartanStateEvaluator;
  * November 2015 - initial version
  */
 
-public class IoTControlManager {
+public class IoTControlManager implements IoTConnectionListener {
 
     /** connection to the house */
     private IoTConnectManager connMgr;
@@ -28,18 +33,90 @@ public class IoTControlManager {
     /** the path to user settings and credentials */
     private String settingsPath;
 
-    /** the log messages */
-    private Vector<String> logMessages;
+    /** the log messages; only the most recent are kept */
+    private volatile IoTEventLog logMessages;
 
     private LoginHandler loginHandler;
 
-    /** Thread to manage state updates */
-    private Thread updateThread;
+    /** this house's place in the shared update schedule */
+    private volatile IoTUpdateScheduler.Job updateJob;
 
     /** Handle updates to the house state */
     private TartanStateEvaluator stateEvaluator;
 
-    private Map<String, Object> lastState;  
+    /** hears what the controller, its connection and its evaluator do */
+    private volatile EvaluationListener listener = EvaluationListeners.getDefault();
+
+    /**
+     * the last known state of the house and the user settings. Readers take the current snapshot
+     * without locking; writers replace it with compare-and-set
+     */
+    private final AtomicReference<IoTHouseSnapshot> snapshot = new AtomicReference<>(IoTHouseSnapshot.EMPTY);
+
+    /** the request for the house state that readers of a too old snapshot are waiting for, if any */
+    private final AtomicReference<CompletableFuture<IoTHouseSnapshot>> refresh = new AtomicReference<>();
+
+    /** the transport used for the house connection */
+    private String transport = IoTValues.TRANSPORT_NIO;
+
+    /** whether requests on the house link may be pipelined */
+    private String pipelining = IoTValues.PIPELINE_OFF;
+
+    /** whether binary framing is offered to the house */
+    private String framing = IoTValues.FRAMING_AUTO;
+
+    /** keeps the house link up */
+    private IoTConnectionSupervisor supervisor;
+
+    /** how long the house has to answer a request, in milliseconds */
+    private long requestTimeout = 5000;
+
+    /** the longest wait between reconnect attempts, in milliseconds */
+    private long reconnectMaxDelay = IoTConnectionSupervisor.DEFAULT_MAX_DELAY;
+
+    /** the state of the house link as reported by the connection */
+    private volatile IoTConnectionState linkState = IoTConnectionState.DISCONNECTED;
+
+    /** counts the times the link came up, so the update cycle can tell it needs to subscribe again */
+    private volatile int linkEpoch = 0;
+
+    /** the retry interval while the link is down, in milliseconds */
+    private static final long POLL_INTERVAL = 5000;
+
+    /** decides how often a house that does not push is polled */
+    private IoTPollPolicy pollPolicy = new IoTAdaptivePollPolicy();
+
+    /** the delay before the next update, in milliseconds */
+    private volatile long pollInterval = POLL_INTERVAL;
+
+    /** the away timer; one per house, armed while the house is empty */
+    private volatile IoTTimingWheel.Timeout awayTimer;
+
+    /** how long a user update waits for others to send with it, in milliseconds */
+    private long updateWindow = 0;
+
+    /** whether to ask the house to push its state rather than polling it */
+    private boolean push = true;
+
+    /** the poll interval while the house pushes its state, in milliseconds */
+    private long heartbeatInterval = 30000;
+
+    /** keeps requests away from the house while it is not answering */
+    private volatile IoTCircuitBreaker breaker = new IoTCircuitBreaker();
+
+    // the limit on routine state changes sent to the house; a rate of 0 is no limit
+    private int routineBurst = 1;
+    private double routineRate = 0;
+
+    /** pushed states, user updates and away timer firings, waiting for the update cycle */
+    private final IoTHouseMailbox mailbox = new IoTHouseMailbox();
+
+    /** update cycle state; only touched by the cycle, which never runs twice at once */
+    private int missedUpdates = 0;
+    private int subscribedEpoch = -1;
+    private volatile boolean subscribed = false;
+    private HouseState polledState = null;
+    private final IoTEvents cycleEvents = new IoTEvents();
 
     /**
      * Constructor for the controller
@@ -49,7 +126,7 @@ public class IoTControlManager {
      */
     public IoTControlManager(String user, String password, TartanStateEvaluator evaluator) {
 
-        logMessages = new Vector<String>();
+        logMessages = new IoTEventLog(IoTEventLog.DEFAULT_CAPACITY);
 
         userSettings = new Hashtable<String, Object>();
 
@@ -62,8 +139,6 @@ public class IoTControlManager {
         loginHandler = new LoginHandler(this.users);
 
         connMgr = null;
-
-        lastState = new Hashtable<>();
     }
 
     /**
@@ -85,7 +160,7 @@ public class IoTControlManager {
                 users.add(new UserLoginInfo(entry[0], entry[1]));
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            report(EvaluationListener.Level.WARN, "Could not load the registered users", e);
         }
         return users;
     }
@@ -103,7 +178,7 @@ public class IoTControlManager {
             is = new FileInputStream(f);
             props.load(is);
         } catch (Exception e) {
-            e.printStackTrace();
+            report(EvaluationListener.Level.WARN, "Could not load the user settings", e);
         }
 
         String alarmPassCode = props.getProperty(IoTValues.ALARM_PASSCODE, "passcode");
@@ -114,7 +189,7 @@ public class IoTControlManager {
         initialSettings.put(IoTValues.ALARM_PASSCODE, alarmPassCode);
         
         // The away timer is not set to start
-        lastState.put(IoTValues.AWAY_TIMER, false);
+        updateSnapshot(s -> s.withState(s.getState().with(HouseState.Device.AWAY_TIMER, false)));
 
         // update the settings
         updateSettings(initialSettings);
@@ -128,6 +203,8 @@ public class IoTControlManager {
     public void updateSettings(Map<String, Object> newSettings) {
         if (userSettings != null && newSettings != null) {
             userSettings.putAll(newSettings);
+            HouseState changed = HouseState.fromMap(newSettings);
+            updateSnapshot(s -> s.withSettings(changed));
         }
     }
 
@@ -140,121 +217,579 @@ public class IoTControlManager {
         return userSettings;
     }
 
-    public Thread getUpdateThread() {
-        return updateThread;
+    /**
+     * Select the transport used by the next connection
+     *
+     * @param transport either {@link IoTValues#TRANSPORT_NIO} or {@link IoTValues#TRANSPORT_SOCKET}
+     */
+    public void setTransport(String transport) {
+        if (transport != null) {
+            this.transport = transport;
+        }
     }
 
     /**
-     * User-initiated state update
-     * @param stateUpdate
+     * Select the pipelining mode used by the next connection
+     *
+     * @param pipelining one of {@link IoTValues#PIPELINE_OFF}, {@link IoTValues#PIPELINE_ORDERED}
+     *                   or {@link IoTValues#PIPELINE_TAGGED}
+     */
+    public void setPipelining(String pipelining) {
+        if (pipelining != null) {
+            this.pipelining = pipelining;
+        }
+    }
+
+    /**
+     * Select the framing offered to the house by the next connection
+     *
+     * @param framing either {@link IoTValues#FRAMING_AUTO} or {@link IoTValues#FRAMING_TEXT}
+     */
+    public void setFraming(String framing) {
+        if (framing != null) {
+            this.framing = framing;
+        }
+    }
+
+    /**
+     * Choose between push updates and polling
+     *
+     * @param push true to ask the house to push its state; houses that cannot are polled
+     * @param heartbeatInterval how often a pushing house is still polled, in milliseconds
+     */
+    public void setPushUpdates(Boolean push, long heartbeatInterval) {
+        if (push != null) {
+            this.push = push;
+        }
+        if (heartbeatInterval > 0) {
+            this.heartbeatInterval = heartbeatInterval;
+        }
+    }
+
+    /**
+     * Set when requests stop going to a house that does not answer
+     *
+     * @param threshold the number of unanswered requests in a row that stops them
+     * @param openTime how long to wait before trying the house again, in milliseconds
+     */
+    public void setCircuitBreaker(int threshold, long openTime) {
+        this.breaker = new IoTCircuitBreaker(threshold, openTime);
+    }
+
+    /**
+     * Set who hears what the controller, its house connection and its evaluator do
+     *
+     * @param listener the listener; null to hear nothing
+     */
+    public void setListener(EvaluationListener listener) {
+        this.listener = listener == null ? EvaluationListeners.none() : listener;
+        stateEvaluator.setListener(this.listener);
+        IoTConnectManager mgr = connMgr;
+        if (mgr != null) {
+            mgr.setListener(this.listener);
+        }
+    }
+
+    private void report(EvaluationListener.Level level, String message, Throwable error) {
+        EvaluationListener listener = this.listener;
+        if (listener.isEnabled(level)) {
+            listener.report(level, message, error);
+        }
+    }
+
+    /**
+     * Limit how often routine state changes (lights, HVAC, humidifier) are sent. Security changes
+     * are never limited, and a routine change held back goes with a later one
+     *
+     * @param burst the most routine changes sent back to back
+     * @param perSecond the routine changes allowed each second on average; 0 for no limit
+     */
+    public void setRoutineRate(int burst, double perSecond) {
+        this.routineBurst = burst;
+        this.routineRate = perSecond;
+        IoTConnectManager mgr = connMgr;
+        if (mgr != null) {
+            mgr.setRoutineRate(burst, perSecond);
+        }
+    }
+
+    /**
+     * Get the number of requests waiting for the house link in a lane
+     *
+     * @param lane the lane
+     * @return the queue depth; 0 if not connected
      */
-    public void processStateUpdate(Map<String, Object> stateUpdate) {
+    public int getQueueDepth(IoTCommandLane lane) {
+        IoTConnectManager mgr = connMgr;
+        return mgr == null ? 0 : mgr.getQueueDepth(lane);
+    }
 
-        StringBuffer log = new StringBuffer();
+    /**
+     * Get how long requests in a lane recently waited for the house link
+     *
+     * @param lane the lane
+     * @return the wait in milliseconds; 0 if not connected
+     */
+    public double getQueueWait(IoTCommandLane lane) {
+        IoTConnectManager mgr = connMgr;
+        return mgr == null ? 0 : mgr.getQueueWait(lane);
+    }
 
-        // User settings are part of the state
-        Map<String, Object> completeState = new Hashtable<>();
-        completeState.putAll(fetchState());
-        completeState.putAll(stateUpdate);     
-        Map<String, Object> newState = stateEvaluator.evaluateState(completeState, log);
-        logMessages.add(log.toString());
-        synchronized(connMgr) {
-            connMgr.setState(newState);
+    /**
+     * Check if the house answers requests; while it does not, updates fail at once and reads
+     * get the last known state
+     *
+     * @return true unless the circuit breaker is open or probing
+     */
+    public boolean isAnswering() {
+        return breaker.isClosed();
+    }
+
+    /**
+     * Set how long a user update waits for more updates to evaluate and send with it
+     *
+     * @param updateWindow the window in milliseconds; 0 sends each update at once
+     */
+    public void setUpdateWindow(long updateWindow) {
+        this.updateWindow = Math.max(0, updateWindow);
+    }
+
+    /**
+     * Choose how often a house that does not push its state is polled
+     *
+     * @param pollPolicy the policy
+     */
+    public void setPollPolicy(IoTPollPolicy pollPolicy) {
+        if (pollPolicy != null) {
+            this.pollPolicy = pollPolicy;
         }
-        this.lastState.putAll(newState);
     }
 
+    /**
+     * Get the delay before the next update of the house
+     *
+     * @return the delay in milliseconds
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Set the deadlines and reconnect backoff used by the next connection
+     *
+     * @param requestTimeout how long the house has to answer a request (and to accept a connection),
+     *                       in milliseconds; 0 waits forever
+     * @param reconnectMaxDelay the longest wait between reconnect attempts, in milliseconds
+     */
+    public void setLinkTimeouts(long requestTimeout, long reconnectMaxDelay) {
+        this.requestTimeout = requestTimeout;
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    /**
+     * The house link went up or down. Called on a network thread, so only record it
+     *
+     * @param state the new link state
+     */
+    @Override
+    public void connectionStateChanged(IoTConnectionState state) {
+        linkState = state;
+        if (state == IoTConnectionState.CONNECTED) {
+            linkEpoch++;
+            // update straight away rather than waiting out the interval
+            IoTUpdateScheduler.Job job = updateJob;
+            if (job != null) {
+                job.wakeUp();
+            }
+        }
+        switch (state) {
+            case CONNECTED:
+                updateLog("House link up");
+                break;
+            case DISCONNECTED:
+                updateLog("House link lost, reconnecting");
+                break;
+            default:
+                updateLog("House link closed");
+        }
+    }
+
+    /**
+     * User-initiated state update. The update is handed to the house's update cycle, which waits
+     * up to the update window for more updates and evaluates them together with anything else
+     * pending. Returns at once
+     * @param stateUpdate the requested devices and settings
+     * @return completes with the state the house accepted, which includes any updates merged with
+     *         this one; routine devices held back by the rate limit show the values the house has
+     *         until a later cycle sends them. Completes with an {@link IoTStateRejectedException} if
+     *         the house did not accept it, or at once with an IllegalStateException while the house
+     *         is not answering. If the house is not connected yet, the first update cycle applies it
+     */
+    public CompletableFuture<HouseState> submitStateUpdate(Map<String, Object> stateUpdate) {
+        if (!breaker.isClosed()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The house is not answering"));
+        }
+        CompletableFuture<HouseState> done = mailbox.postUserUpdate(HouseState.fromMap(stateUpdate));
+        IoTUpdateScheduler.Job job = updateJob;
+        if (job != null) {
+            job.wakeUpWithin(updateWindow);
+        }
+        return done;
+    }
+
+    /**
+     * User-initiated state update; waits for the house to answer
+     * @param stateUpdate
+     * @return the state sent to the house, which includes any updates merged with this one, or
+     *         null if the house is not connected yet and the update was left for the first cycle
+     */
+    public Map<String, Object> processStateUpdate(Map<String, Object> stateUpdate) {
+        CompletableFuture<HouseState> done = submitStateUpdate(stateUpdate);
+        if (updateJob == null) {
+            return null;
+        }
+        try {
+            return done.join().toMap();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the current state of the house in its Map form
+     * @return the state, or null if it could not be fetched
+     */
     public Map<String, Object> getCurrentState() {
-        return fetchState();
+        HouseState state = getCurrentHouseState();
+        return state == null ? null : state.toMap();
+    }
+
+    /**
+     * Get the current state of the house
+     * @return the state, or null if it could not be fetched
+     */
+    public HouseState getCurrentHouseState() {
+        // while the house is not answering, only the update cycle's probes go to the house
+        return breaker.isClosed() ? fetchState() : null;
     }
 
     /**
      * Fetch the complete state from the house
      * @return
      */
-    private Map<String, Object> fetchState() {
-        // Map<String, Object> state = null;
-        synchronized (connMgr) {
-            if (connMgr.isConnected() == false) {
-                return null;
+    private HouseState fetchState() {
+        // the link does its own ordering, so no lock is held across the round trip
+        if (connMgr == null || connMgr.isConnected() == false) {
+            if (breaker.getState() == IoTCircuitBreaker.State.HALF_OPEN) {
+                // the probe cannot reach the house, so it failed
+                breaker.recordFailure();
             }
-            lastState = connMgr.getState();
+            return null;
         }
+        HouseState state = connMgr.getHouseState();
+        if (state == null) {
+            breaker.recordFailure();
+            return null;
+        }
+        breaker.recordSuccess();
+        return acceptState(state);
+    }
 
-        // The away timer is controlled here
-        lastState.put(IoTValues.AWAY_TIMER, false);
+    /**
+     * Get what is known about the house right now, without asking the house. Never blocks
+     *
+     * @return the latest snapshot
+     */
+    public IoTHouseSnapshot getHouseSnapshot() {
+        return snapshot.get();
+    }
 
-        // The state includes the user settings 
-        lastState.putAll(userSettings);
-        // lastState.putAll(state);
-        return lastState;
+    /**
+     * Get the state of the house, asking the house only if the latest snapshot is too old.
+     * Readers that find it too old at the same time share one request to the house
+     *
+     * @param maxAge how old the house's last report may be, in milliseconds
+     * @return the latest snapshot; still too old if the house could not be reached or is not
+     *         answering
+     */
+    public IoTHouseSnapshot readState(long maxAge) {
+        IoTHouseSnapshot current = snapshot.get();
+        if (current.getAge(System.currentTimeMillis()) <= maxAge || !breaker.isClosed()) {
+            // while the house is not answering, only the update cycle's probes go to the house
+            return current;
+        }
+        CompletableFuture<IoTHouseSnapshot> inFlight = refresh.get();
+        if (inFlight == null) {
+            CompletableFuture<IoTHouseSnapshot> mine = new CompletableFuture<>();
+            if (refresh.compareAndSet(null, mine)) {
+                try {
+                    fetchState();
+                } finally {
+                    refresh.compareAndSet(mine, null);
+                    mine.complete(snapshot.get());
+                }
+                return mine.join();
+            }
+            inFlight = refresh.get();
+            if (inFlight == null) {
+                // the refresh finished in between
+                return snapshot.get();
+            }
+        }
+        return inFlight.join();
     }
 
     /**
-     * Start a thread to poll the house state
+     * Publish a new snapshot. The change is retried if another thread published first, so it must
+     * have no side effects
+     *
+     * @param change makes the new snapshot from the current one
+     * @return the snapshot published
      */
-    private void startHouseUpdateThread() {
+    private IoTHouseSnapshot updateSnapshot(UnaryOperator<IoTHouseSnapshot> change) {
+        IoTHouseSnapshot current;
+        IoTHouseSnapshot next;
+        do {
+            current = snapshot.get();
+            next = change.apply(current);
+        } while (!snapshot.compareAndSet(current, next));
+        return next;
+    }
 
-        updateThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    /**
+     * Merge an evaluated state into the last known state
+     *
+     * @param newState the evaluated state
+     */
+    private void mergeState(HouseState newState) {
+        updateSnapshot(s -> s.withState(s.getState().merge(newState)));
+    }
 
-                Integer missedUpdates = 0;
-                while (true) {
+    /**
+     * Take a state reported by the house as the last known state
+     * @param state the house state
+     * @return the complete state
+     */
+    private HouseState acceptState(HouseState state) {
+        // The away timer is controlled here, and the state includes the user settings
+        HouseState reported = state.with(HouseState.Device.AWAY_TIMER, false);
+        long now = System.currentTimeMillis();
+        return updateSnapshot(s -> s.withReport(reported.merge(s.getSettings()), now)).getState();
+    }
 
-                    Map<String, Object> currentState = fetchState();
-                    if (currentState != null) {
+    /**
+     * Schedule this house's update cycle on the shared scheduler
+     *
+     * @param house the house address, for logs
+     */
+    private void startHouseUpdates(String house) {
+        IoTUpdateScheduler.Job previous = updateJob;
+        if (previous != null) {
+            previous.cancel();
+        }
+        missedUpdates = 0;
+        subscribedEpoch = -1;
+        subscribed = false;
+        polledState = null;
+        pollInterval = pollPolicy.getInitialInterval();
+        updateJob = IoTUpdateScheduler.getDefault().schedule(house, this::runUpdateCycle, pollInterval);
+        updateLog("Started update monitor");
+    }
 
-                        StringBuffer log = new StringBuffer();
-                        Map<String, Object> newState = stateEvaluator.evaluateState(currentState, log);
-                        logMessages.add(log.toString());
-                        
-                        // save this state 
-                        IoTControlManager.this.lastState.putAll(newState);
+    /**
+     * Bring the house state up to date once. Everything that changes the state goes through here:
+     * states the house pushed, user updates and the away timer firing are posted to the mailbox,
+     * and each cycle evaluates all of them together and sends the house at most one new state.
+     * If the house pushes its state, the cycle runs again when the next one arrives, polling only
+     * as a heartbeat; otherwise it polls as often as the poll policy says
+     *
+     * @return the delay before the next cycle, in milliseconds
+     */
+    private long runUpdateCycle() {
+        pollInterval = nextUpdate();
+        return pollInterval;
+    }
 
-                        synchronized (connMgr) {
-                            connMgr.setState(newState);
-                        }
-                        
-                        // Must handle away timer here
-                        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
-                            startAwayTimer();
-                        }
-                        else 
-                        missedUpdates = 0;
+    /**
+     * Run the update and choose the delay before the next one
+     *
+     * @return the delay in milliseconds
+     */
+    private long nextUpdate() {
+        if (!supervisor.isRunning()) {
+            IoTUpdateScheduler.Job job = updateJob;
+            if (job != null) {
+                job.cancel();
+            }
+            mailbox.drain().fail(new IllegalStateException("Disconnected from house"));
+            return POLL_INTERVAL;
+        }
 
-                    } else {
-                        missedUpdates++;
-                    }
+        boolean connected = linkState == IoTConnectionState.CONNECTED;
+        if (!connected && mailbox.isEmpty()) {
+            // nothing can be fetched or reverted until the supervisor restores the link
+            missedUpdates++;
+            return POLL_INTERVAL;
+        }
 
-                    if (missedUpdates > 6) { // 6 missed updates is 30 seconds
-                        revertState();
-                    }
+        if (connected) {
+            if (!breaker.allowRequest()) {
+                // the house is not answering; leave it alone until the next probe
+                return breaker.getProbeDelay();
+            }
 
-                    // currently a 5sec delay
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
-                    }
-                }
+            if (missedUpdates > 6) { // 6 missed updates is 30 seconds
+                // the link is back after a long outage; put the house back in the last known state
+                revertState();
+                missedUpdates = 0;
             }
-        });
-        updateThread.start();
-        updateLog("Started update monitor");
+
+            int epoch = linkEpoch;
+            if (push && epoch != subscribedEpoch) {
+                // a new link needs a new subscription; if refused, the house answers with its
+                // state, which is evaluated like a pushed one, and polling takes over
+                subscribed = connMgr.subscribe(this::statePushed).join();
+                subscribedEpoch = epoch;
+                updateLog(subscribed ? "House pushes its state" : "House does not push its state, polling");
+            }
+        }
+
+        IoTHouseMailbox.Batch batch = mailbox.drain();
+        try {
+            return update(batch, connected);
+        } catch (RuntimeException e) {
+            batch.fail(e);
+            throw e;
+        }
     }
 
-    private void revertState() {
-        synchronized (connMgr) {
-            connMgr.setState(this.lastState);
+    /**
+     * Evaluate one batch from the mailbox and send the result to the house
+     *
+     * @param batch the pending inputs; may be empty, when the cycle was due to poll
+     * @param connected whether the link is up
+     * @return the delay before the next cycle, in milliseconds
+     */
+    private long update(IoTHouseMailbox.Batch batch, boolean connected) {
+        boolean reported = true;
+        HouseState currentState;
+        if (batch.getPushedState() != null) {
+            currentState = acceptState(batch.getPushedState());
+        } else if (batch.getUserUpdate() == null && batch.isAwayTimerExpired() && breaker.isClosed()) {
+            // the timer firing changes nothing the house reports
+            currentState = snapshot.get().getState();
+            reported = false;
+        } else {
+            // with nothing pushed for a heartbeat interval, poll to make sure the house is still there
+            currentState = connected ? fetchState() : null;
+        }
+
+        if (currentState == null && !breaker.isClosed()) {
+            // the house stopped answering; nothing is sent until a probe gets an answer
+            batch.fail(new IllegalStateException("The house is not answering"));
+            if (batch.isAwayTimerExpired()) {
+                mailbox.postAwayTimerExpired();
+            }
+            missedUpdates++;
+            return breaker.getProbeDelay();
+        }
+
+        if (currentState == null) {
+            if (batch.isEmpty()) {
+                missedUpdates++;
+                return subscribed ? heartbeatInterval : pollPolicy.getInitialInterval();
+            }
+            // while the link is down, evaluate against the last known state
+            currentState = snapshot.get().getState();
+            reported = false;
+        }
+
+        HouseState completeState = currentState;
+        if (batch.isAwayTimerExpired()) {
+            // signal that the away timer has fired
+            completeState = completeState.with(HouseState.Device.AWAY_TIMER, true);
+        }
+        HouseState held = connMgr == null ? HouseState.EMPTY : connMgr.getDeferred();
+        if (held != HouseState.EMPTY) {
+            // routine devices held back by the rate limit are still wanted, unless the rules or
+            // the user now decide otherwise
+            completeState = completeState.merge(held);
+        }
+        if (batch.getUserUpdate() != null) {
+            // User settings are part of the state
+            completeState = completeState.merge(batch.getUserUpdate());
+        }
+
+        cycleEvents.reset();
+        HouseState newState = stateEvaluator.evaluateState(completeState, cycleEvents);
+        logEvents(cycleEvents);
+
+        // save this state
+        mergeState(newState);
+
+        if (connMgr.setState(newState)) {
+            // routine devices held back by the rate limit are not accepted yet; they keep the
+            // values the house has, and go out in a later cycle
+            HouseState deferred = connMgr.getDeferred();
+            batch.complete(deferred == HouseState.EMPTY ? newState
+                    : newState.merge(currentState.deviceChanges(HouseState.EMPTY, deferred.getDevicesSet())));
+        } else {
+            batch.fail(new IoTStateRejectedException("The house did not accept the new state"));
+        }
+
+        // Must handle away timer here
+        if (newState.is(HouseState.Device.AWAY_TIMER)) {
+            startAwayTimer();
+        } else {
+            // the house is occupied again
+            cancelAwayTimer();
+            missedUpdates = 0;
+        }
+
+        long next;
+        if (subscribed) {
+            next = heartbeatInterval;
+        } else if (!reported) {
+            next = pollInterval;
+        } else {
+            next = pollPolicy.nextInterval(polledState, currentState, isAwayTimerRunning(), pollInterval);
+            polledState = currentState;
         }
+        // rules that follow the clock, such as the night lock, are evaluated again when they may change
+        next = Math.min(next, stateEvaluator.getTimeToNextChange(newState, LocalTime.now()));
+        // routine devices held back by the rate limit go out in the cycle after the limit allows
+        long deferred = connMgr.getDeferredDelay();
+        return deferred > 0 ? Math.min(next, deferred) : next;
+    }
+
+    /**
+     * The house pushed its state. Called on a network thread, so post it and wake the update cycle
+     *
+     * @param state the pushed state
+     */
+    private void statePushed(HouseState state) {
+        breaker.recordSuccess();
+        mailbox.postPushedState(state);
+        IoTUpdateScheduler.Job job = updateJob;
+        if (job != null && subscribed) {
+            job.wakeUp();
+        }
+    }
+
+    private void revertState() {
+        connMgr.setState(snapshot.get().getState());
     }
 
     /**
      * Connect to a house
      *
      * @param houseAddress the network address of the house. Once connected, this
-     *                     method starts a new thread to update house state
-     * @return true if connected, false otherwise
+     *                     method schedules the house state updates
+     * @return true if connected already; otherwise the link comes up in the background while
+     *         {@link #isReconnecting()} is true
      */
     public Boolean connectToHouse(String houseAddress, Integer housePort, String user, String password) {
         updateLog("Connecting");
@@ -264,25 +799,48 @@ public class IoTControlManager {
             return false;
         }
 
-        IoTConnection conn = new IoTConnection(houseAddress, housePort);
-        conn.connect();
+        IoTConnection conn = new IoTConnection(houseAddress, housePort, transport);
+        conn.setPipelining(pipelining);
+        conn.setFraming(framing);
+        conn.setDeadlines(requestTimeout, requestTimeout, requestTimeout);
         connMgr = new IoTConnectManager(conn);
+        connMgr.setRoutineRate(routineBurst, routineRate);
+        connMgr.setListener(listener);
 
-        if (connMgr.isConnected()) {
-            startHouseUpdateThread();
-            return true;
+        // the supervisor connects in the background, and keeps retrying if the house is not reachable yet
+        supervisor = new IoTConnectionSupervisor(conn, IoTConnectionSupervisor.DEFAULT_BASE_DELAY,
+                reconnectMaxDelay, this);
+        Boolean connected = supervisor.start();
+        startHouseUpdates(houseAddress + ":" + housePort);
+
+        if (connected) {
+            updateLog("Connected!");
         }
-        updateLog("Connected!");
-        return false;
+        return connected;
     }
 
     /**
      * Disconnect from a house
      */
     public void disconnectFromHouse() {
-        if (connMgr.isConnected()) {
-            connMgr.disconnectFromHouse();
+        if (supervisor != null) {
+            supervisor.stop();
+        }
+        IoTUpdateScheduler.Job job = updateJob;
+        if (job != null) {
+            job.cancel();
         }
+        cancelAwayTimer();
+        mailbox.drain().fail(new IllegalStateException("Disconnected from house"));
+    }
+
+    /**
+     * Check if the house link is being kept up, even if it is down right now
+     *
+     * @return true if a connection was made or is being retried
+     */
+    public Boolean isReconnecting() {
+        return supervisor != null && supervisor.isRunning();
     }
 
     /**
@@ -291,45 +849,94 @@ public class IoTControlManager {
      * @param logEntry the new log entry
      */
     public void updateLog(String logEntry) {
-        Long timeStamp = System.currentTimeMillis();
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-        logMessages.add("[" + sdf.format(new Date(timeStamp)) + "]: " + logEntry + "\n");
+        logMessages.add(IoTEvents.message(logEntry));
     }
 
-    public Vector<String> getLogMessages() {
+    /**
+     * Add the events of an evaluation to the log; they are formatted when the log is read
+     *
+     * @param events the events, copied so the recorder can be reused
+     */
+    private void logEvents(IoTEvents events) {
+        if (events.size() > 0) {
+            logMessages.add(events.copy());
+        }
+    }
+
+    /**
+     * Get the most recent log entries, oldest first
+     *
+     * @return a copy of the entries
+     */
+    public List<String> getLogMessages() {
+        return logMessages.snapshot();
+    }
+
+    /**
+     * Get the event log itself, to read only the entries not yet seen
+     *
+     * @return the log
+     */
+    public IoTEventLog getEventLog() {
         return logMessages;
     }
 
+    /**
+     * Set how many log entries are kept. Entries already logged are carried over
+     *
+     * @param capacity the number of entries
+     */
+    public void setEventLogCapacity(int capacity) {
+        if (capacity <= 0 || capacity == logMessages.getCapacity()) {
+            return;
+        }
+        IoTEventLog log = new IoTEventLog(capacity);
+        for (String entry : logMessages.snapshot()) {
+            log.add(entry);
+        }
+        logMessages = log;
+    }
+
     /**
      * Start a timer when the house becomes unoccupied. When the timer expires, lock
-     * the house down
+     * the house down. The house is polled while empty, so a timer that is already
+     * counting down is left alone rather than started again
      */
     private void startAwayTimer() {
-        Timer t = new Timer();
-
-        Integer awayTimeout = (Integer) userSettings.get(IoTValues.ALARM_DELAY);
+        if (isAwayTimerRunning()) {
+            return;
+        }
 
-        t.schedule(new TimerTask() {
+        int awayTimeout = snapshot.get().getSettings().get(HouseState.Reading.ALARM_DELAY);
 
-            /**
-             * This anonymous thread updates the state when the house is vacant
-             */
-            @Override
-            public void run() {
+        awayTimer = IoTTimingWheel.getDefault().schedule(this::awayTimerExpired, awayTimeout, TimeUnit.SECONDS);
+    }
 
-                // signal that the away timer has fired
-                IoTControlManager.this.lastState.put(IoTValues.AWAY_TIMER, true);
+    /**
+     * Stop the away timer, if it is counting down
+     */
+    private void cancelAwayTimer() {
+        IoTTimingWheel.Timeout timer = awayTimer;
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
 
-                synchronized (connMgr) {
+    private boolean isAwayTimerRunning() {
+        IoTTimingWheel.Timeout timer = awayTimer;
+        return timer != null && timer.isPending();
+    }
 
-                    StringBuffer log = new StringBuffer();
-                    Map<String, Object> newState = stateEvaluator.evaluateState(IoTControlManager.this.lastState, log);
-                    logMessages.add(log.toString());
-                    connMgr.setState(newState);
-                    IoTControlManager.this.lastState.putAll(newState);
-                }
-            }
-        }, awayTimeout * 1000);
+    /**
+     * Update the state when the house is vacant. Runs on a timer thread, so post it and wake
+     * the update cycle
+     */
+    private void awayTimerExpired() {
+        mailbox.postAwayTimerExpired();
+        IoTUpdateScheduler.Job job = updateJob;
+        if (job != null) {
+            job.wakeUp();
+        }
     }
 
     /**
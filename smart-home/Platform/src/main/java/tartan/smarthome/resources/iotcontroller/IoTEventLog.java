@@ -0,0 +1,107 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A house's event log: the last few entries in a fixed-size ring. Each entry gets a sequence
+ * number, counting from 0, that never repeats, so a reader can ask for just the entries it has
+ * not seen. Once the ring is full each new entry replaces the oldest.
+ *
+ * Entries are kept as logged, usually as {@link IoTEvents}, and turned into text only when read.
+ *
+ * Writers claim a sequence number and store the entry in its slot without locking. A reader copies
+ * the entries out of the ring and skips any slot that has since been reused for a newer entry,
+ * or not yet written.
+ */
+public class IoTEventLog {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final class Entry {
+        final long seq;
+        final Object event;
+
+        Entry(long seq, Object event) {
+            this.seq = seq;
+            this.event = event;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Create a log
+     * @param capacity the number of entries kept
+     */
+    public IoTEventLog(int capacity) {
+        this.ring = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Add an entry, replacing the oldest if the log is full
+     * @param event the entry; its text is taken from toString() when the log is read
+     * @return the entry's sequence number
+     */
+    public long add(Object event) {
+        long seq = next.getAndIncrement();
+        Entry entry = new Entry(seq, event);
+        int slot = (int) (seq % ring.length());
+        Entry current = ring.get(slot);
+        // a writer that lagged a whole lap behind must not overwrite a newer entry
+        while ((current == null || current.seq < seq) && !ring.compareAndSet(slot, current, entry)) {
+            current = ring.get(slot);
+        }
+        return seq;
+    }
+
+    /**
+     * Get every entry still in the log, oldest first
+     * @return a copy of the entries
+     */
+    public List<String> snapshot() {
+        return since(-1);
+    }
+
+    /**
+     * Get the entries added after a given one, oldest first. Entries that have already been
+     * replaced are left out
+     * @param seq the sequence number of the last entry already seen, or -1 for all entries
+     * @return a copy of the newer entries
+     */
+    public List<String> since(long seq) {
+        long end = next.get();
+        long start = Math.max(seq + 1, end - ring.length());
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        List<String> entries = new ArrayList<>((int) (end - start));
+        for (long s = start; s < end; s++) {
+            Entry entry = ring.get((int) (s % ring.length()));
+            if (entry != null && entry.seq == s) {
+                entries.add(String.valueOf(entry.event));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the sequence number of the newest entry
+     * @return the sequence number, or -1 if the log is empty
+     */
+    public long getSequence() {
+        return next.get() - 1;
+    }
+
+    /**
+     * Get the number of entries the log keeps
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return ring.length();
+    }
+}
@@ -0,0 +1,162 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread that owns many house channels. All channel registration and interest
+ * changes happen on this thread; other threads hand work over with {@link #execute(Runnable)}.
+ */
+public class IoTEventLoop implements Runnable {
+
+    /** the selector multiplexing every channel owned by this loop */
+    private final Selector selector;
+
+    /** how often deadlines are checked */
+    private static final long TICK_MILLIS = 100;
+
+    /** work handed over from other threads */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final String name;
+
+    private Thread thread;
+
+    private volatile boolean running = false;
+
+    /**
+     * Create a new event loop. The loop thread is started on first use
+     * @param name the name of the loop thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public IoTEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Get the selector for this loop. Only use it from the loop thread
+     * @return the selector
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Check if the caller is running on this loop
+     * @return true if called from the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            start();
+            selector.wakeup();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the loop and close the selector; channels still registered are closed by their owners
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastTick = System.nanoTime();
+        while (running) {
+            try {
+                // tasks queued from the loop thread itself must not wait for the next I/O event
+                if (tasks.isEmpty()) {
+                    selector.select(TICK_MILLIS);
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException ioe) {
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException x) {
+                    EvaluationListener listener = EvaluationListeners.getDefault();
+                    if (listener.isEnabled(EvaluationListener.Level.ERROR)) {
+                        listener.report(EvaluationListener.Level.ERROR, "Event loop task failed", x);
+                    }
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                IoTNioTransport transport = (IoTNioTransport) key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        transport.onConnectable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        transport.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        transport.onWritable();
+                    }
+                } catch (CancelledKeyException cke) {
+                    transport.close(IoTConnectionState.DISCONNECTED);
+                } catch (RuntimeException x) {
+                    // a failing callback drops its own link, not the loop and every other house on it
+                    EvaluationListener listener = EvaluationListeners.getDefault();
+                    if (listener.isEnabled(EvaluationListener.Level.ERROR)) {
+                        listener.report(EvaluationListener.Level.ERROR, "House link event failed", x);
+                    }
+                    transport.close(IoTConnectionState.DISCONNECTED);
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                lastTick = now;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        ((IoTNioTransport) key.attachment()).checkDeadlines(now);
+                    }
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed set of event loops shared by every house connection. Channels are handed out
+ * round-robin, so thread count stays constant no matter how many houses are connected.
+ */
+public class IoTEventLoopGroup {
+
+    private static IoTEventLoopGroup defaultGroup = null;
+
+    private final IoTEventLoop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a group of event loops
+     * @param size the number of selector threads
+     */
+    public IoTEventLoopGroup(int size) {
+        loops = new IoTEventLoop[Math.max(1, size)];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoTEventLoop("iot-event-loop-" + i);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Get the process-wide group used by connections that do not supply their own
+     * @return the default group
+     */
+    public static synchronized IoTEventLoopGroup getDefault() {
+        if (defaultGroup == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            defaultGroup = new IoTEventLoopGroup(Math.min(4, Math.max(1, processors / 2)));
+        }
+        return defaultGroup;
+    }
+
+    /**
+     * Pick the loop for a new channel
+     * @return the next loop
+     */
+    public IoTEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stop every loop in the group
+     */
+    public void shutdown() {
+        for (IoTEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
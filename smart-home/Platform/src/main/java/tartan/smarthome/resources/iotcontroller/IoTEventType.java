@@ -0,0 +1,92 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The events logged for a house. Each carries the text shown in the event log; %1 and %2 stand for
+ * the event's number arguments and %s for its text argument
+ */
+public enum IoTEventType {
+
+    // evaluation
+    UNKNOWN_KEY("Warning: Unrecognized key in input state - %s"),
+    LIGHT_BLOCKED("Cannot turn on light because user not home"),
+    LIGHT_ON("Light on"),
+    LIGHT_OFF("Light off"),
+    PHONE_DETECTED("Registered phone detected, opening and unlocking door"),
+    INTRUDER("Possible intruder detected"),
+    ALL_CLEAR("All clear"),
+    BREAK_IN("Break in detected: Activating alarm"),
+    DOOR_CLOSED_VACANT("Closed door because house vacant and no registered devices are in proximity"),
+    DOOR_OPEN("Door open"),
+    DOOR_CLOSED("Closed door"),
+    DOOR_LOCK_PASSCODE_INVALID("Invalid door lock passcode"),
+    AWAY_LIGHTS_OFF("Away timer expired: turning off lights"),
+    AWAY_DOOR_CLOSED("Away timer expired: closing door"),
+    OCCUPIED("House is occupied"),
+    LIGHT_TURNED_ON("Turning on light"),
+    AWAY_TIMER_STARTED("Away timer started because house is empty"),
+    ALARM_ENABLED("Alarm enabled"),
+    ALARM_HOUSE_EMPTY("Cannot disable the alarm, house is empty"),
+    ALARM_PASSCODE_INVALID("Cannot disable alarm, invalid passcode given"),
+    ALARM_PASSCODE_ACCEPTED("Correct passcode entered, disabled alarm"),
+    ALARM_DISABLED("Alarm disabled"),
+    ALARM_ACTIVATED("Activating alarm"),
+    ALARM_NOT_ACTIVATED("Alarm not activated"),
+    HEATER_ON("Turning on heater, target temperature = %1F, current temperature = %2F"),
+    CHILLER_ON("Turning on air conditioner target temperature = %1F, current temperature = %2F"),
+    CHILLER_OFF("Turning off air conditioner"),
+    HEATER_OFF("Turning off heater"),
+    DEHUMIDIFIER_ON("Enabled Dehumidifier"),
+    DEHUMIDIFIER_OFF("Automatically disabled dehumidifier when running heater"),
+    NIGHT_LOCK_INVALID("Night lock is disabled due to invalid time specifications"),
+
+    // the controller's own messages
+    MESSAGE("%s"),
+
+    /** text logged by an evaluator that formats its own entries; shown as is */
+    TEXT(null);
+
+    private static final IoTEventType[] VALUES = values();
+
+    private final String template;
+
+    IoTEventType(String template) {
+        this.template = template;
+    }
+
+    static IoTEventType of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Append the event's text
+     * @param out the text so far
+     * @param a the first number argument
+     * @param b the second number argument
+     * @param s the text argument
+     */
+    void format(StringBuilder out, int a, int b, String s) {
+        if (template == null) {
+            out.append(s);
+            return;
+        }
+        int len = template.length();
+        for (int i = 0; i < len; i++) {
+            char c = template.charAt(i);
+            if (c == '%' && i + 1 < len) {
+                char arg = template.charAt(i + 1);
+                if (arg == '1' || arg == '2' || arg == 's') {
+                    if (arg == '1') {
+                        out.append(a);
+                    } else if (arg == '2') {
+                        out.append(b);
+                    } else {
+                        out.append(s);
+                    }
+                    i++;
+                    continue;
+                }
+            }
+            out.append(c);
+        }
+    }
+}
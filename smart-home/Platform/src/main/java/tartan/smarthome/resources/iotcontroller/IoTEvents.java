@@ -0,0 +1,263 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Events recorded during an evaluation or by the controller. Each event is a type, a timestamp and
+ * up to two numbers or one piece of text, kept in parallel arrays; nothing is formatted until the
+ * events are read. A recorder can be reset and reused, so an update cycle records its events
+ * without allocating.
+ *
+ * Formatted, each event is a line "[MMM dd,yyyy HH:mm]: text".
+ */
+public class IoTEvents {
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("MMM dd,yyyy HH:mm").withZone(ZoneId.systemDefault());
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[] types;
+    private long[] times;
+    private int[] first;
+    private int[] second;
+    private String[] texts;
+    private int size = 0;
+
+    /** the formatted text of a read only copy */
+    private volatile String text;
+    private boolean frozen;
+
+    /**
+     * Create an empty recorder
+     */
+    public IoTEvents() {
+        this(INITIAL_CAPACITY, false);
+    }
+
+    private IoTEvents(int capacity, boolean frozen) {
+        this.types = new byte[capacity];
+        this.times = new long[capacity];
+        this.first = new int[capacity];
+        this.second = new int[capacity];
+        this.texts = new String[capacity];
+        this.frozen = frozen;
+    }
+
+    /**
+     * Record a single message from the controller
+     * @param message the message
+     * @return the events, read only
+     */
+    public static IoTEvents message(String message) {
+        IoTEvents events = new IoTEvents(1, false);
+        events.record(IoTEventType.MESSAGE, message);
+        events.frozen = true;
+        return events;
+    }
+
+    /**
+     * Record an event
+     * @param type the event
+     */
+    public void record(IoTEventType type) {
+        append(type, 0, 0, null);
+    }
+
+    /**
+     * Record an event with number arguments
+     * @param type the event
+     * @param a the first argument
+     * @param b the second argument
+     */
+    public void record(IoTEventType type, int a, int b) {
+        append(type, a, b, null);
+    }
+
+    /**
+     * Record an event with a text argument
+     * @param type the event
+     * @param s the argument
+     */
+    public void record(IoTEventType type, String s) {
+        append(type, 0, 0, s);
+    }
+
+    /**
+     * Record an event with number arguments at a given time, for events that happen together
+     * @param type the event
+     * @param a the first argument
+     * @param b the second argument
+     * @param time the time in milliseconds since the epoch
+     */
+    public void record(IoTEventType type, int a, int b, long time) {
+        append(type, a, b, null, time);
+    }
+
+    private void append(IoTEventType type, int a, int b, String s) {
+        append(type, a, b, s, System.currentTimeMillis());
+    }
+
+    private void append(IoTEventType type, int a, int b, String s, long time) {
+        if (frozen) {
+            throw new IllegalStateException("Recorded events are read only");
+        }
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            times = Arrays.copyOf(times, capacity);
+            first = Arrays.copyOf(first, capacity);
+            second = Arrays.copyOf(second, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        times[size] = time;
+        first[size] = a;
+        second[size] = b;
+        texts[size] = s;
+        size++;
+    }
+
+    /**
+     * Forget the recorded events, keeping the space for reuse
+     */
+    public void reset() {
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Get the number of recorded events
+     * @return the count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the type of a recorded event
+     * @param i the event index
+     * @return the type
+     */
+    public IoTEventType getType(int i) {
+        return IoTEventType.of(types[checkIndex(i)]);
+    }
+
+    /**
+     * Get the time of a recorded event
+     * @param i the event index
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTime(int i) {
+        return times[checkIndex(i)];
+    }
+
+    /**
+     * Check if an event was recorded
+     * @param type the event
+     * @return true if it was recorded at least once
+     */
+    public boolean contains(IoTEventType type) {
+        for (int i = 0; i < size; i++) {
+            if (types[i] == type.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        return i;
+    }
+
+    /**
+     * Copy the recorded events, so the recorder can be reused. The copy is read only
+     * @return the copy
+     */
+    public IoTEvents copy() {
+        return copy(0);
+    }
+
+    /**
+     * Copy the events recorded since some point. The copy is read only
+     * @param from the index of the first event to copy
+     * @return the copy
+     */
+    public IoTEvents copy(int from) {
+        int count = size - from;
+        IoTEvents copy = new IoTEvents(count, true);
+        System.arraycopy(types, from, copy.types, 0, count);
+        System.arraycopy(times, from, copy.times, 0, count);
+        System.arraycopy(first, from, copy.first, 0, count);
+        System.arraycopy(second, from, copy.second, 0, count);
+        System.arraycopy(texts, from, copy.texts, 0, count);
+        copy.size = count;
+        return copy;
+    }
+
+    /**
+     * Record another recorder's events again, as happening now
+     * @param other the events
+     */
+    public void recordAll(IoTEvents other) {
+        long now = System.currentTimeMillis();
+        int count = other.size;
+        for (int i = 0; i < count; i++) {
+            append(IoTEventType.of(other.types[i]), other.first[i], other.second[i], other.texts[i], now);
+        }
+    }
+
+    /**
+     * Format the events, one line each
+     * @param out the text so far
+     */
+    public void appendTo(StringBuilder out) {
+        for (int i = 0; i < size; i++) {
+            IoTEventType type = IoTEventType.of(types[i]);
+            if (type == IoTEventType.TEXT) {
+                // already formatted by the evaluator
+                out.append(texts[i]);
+                continue;
+            }
+            out.append('[');
+            TIMESTAMP.formatTo(Instant.ofEpochMilli(times[i]), out);
+            out.append("]: ");
+            type.format(out, first[i], second[i], texts[i]);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Format the events, one line each
+     * @param out the text so far
+     */
+    public void appendTo(StringBuffer out) {
+        StringBuilder text = new StringBuilder();
+        appendTo(text);
+        out.append(text);
+    }
+
+    /**
+     * Format the events. A read only copy formats itself once
+     * @return the events, one line each
+     */
+    @Override
+    public String toString() {
+        String formatted = text;
+        if (formatted == null) {
+            StringBuilder out = new StringBuilder(size * 48);
+            appendTo(out);
+            formatted = out.toString();
+            if (frozen) {
+                text = formatted;
+            }
+        }
+        return formatted;
+    }
+}
@@ -0,0 +1,198 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The inputs waiting to change a house's state: states the house pushed, updates from users and
+ * the away timer firing. Any thread may post; only the house's update cycle drains, taking every
+ * pending input at once so they go through a single evaluation.
+ *
+ * User updates taken together are merged field by field, the later update winning, except that a
+ * passcode one update gives is not cleared by a later update that leaves it blank. Everyone who
+ * posted gets the state that resulted.
+ */
+public class IoTHouseMailbox {
+
+    private enum Kind { PUSHED_STATE, USER_UPDATE, AWAY_TIMER_EXPIRED }
+
+    private static final class Command {
+        final Kind kind;
+        final HouseState state;
+        final CompletableFuture<HouseState> done;
+
+        Command(Kind kind, HouseState state, CompletableFuture<HouseState> done) {
+            this.kind = kind;
+            this.state = state;
+            this.done = done;
+        }
+    }
+
+    private static final Command AWAY_TIMER_EXPIRED = new Command(Kind.AWAY_TIMER_EXPIRED, null, null);
+
+    /** the passcodes a user gives with an update */
+    private static final HouseState.Text[] PASSCODES = {
+            HouseState.Text.GIVEN_PASSCODE, HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE
+    };
+
+    private final Queue<Command> commands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Post a state the house pushed
+     * @param state the pushed state
+     */
+    public void postPushedState(HouseState state) {
+        commands.add(new Command(Kind.PUSHED_STATE, state, null));
+    }
+
+    /**
+     * Post a change requested by a user
+     * @param update the requested devices and settings
+     * @return completes with the evaluated state once it has been sent to the house
+     */
+    public CompletableFuture<HouseState> postUserUpdate(HouseState update) {
+        CompletableFuture<HouseState> done = new CompletableFuture<>();
+        commands.add(new Command(Kind.USER_UPDATE, update, done));
+        return done;
+    }
+
+    /**
+     * Post that the away timer fired
+     */
+    public void postAwayTimerExpired() {
+        commands.add(AWAY_TIMER_EXPIRED);
+    }
+
+    /**
+     * Check if nothing is waiting
+     * @return true if the mailbox is empty
+     */
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    /**
+     * Take every pending input. Only the house's update cycle may call this
+     * @return the inputs, merged
+     */
+    public Batch drain() {
+        Command command = commands.poll();
+        if (command == null) {
+            return Batch.EMPTY;
+        }
+        HouseState pushed = null;
+        HouseState update = null;
+        boolean awayTimerExpired = false;
+        List<CompletableFuture<HouseState>> waiting = new ArrayList<>();
+        do {
+            switch (command.kind) {
+                case PUSHED_STATE:
+                    // a later push reports the devices it includes more recently
+                    pushed = pushed == null ? command.state : pushed.merge(command.state);
+                    break;
+                case USER_UPDATE:
+                    update = update == null ? command.state : mergeUpdates(update, command.state);
+                    waiting.add(command.done);
+                    break;
+                default:
+                    awayTimerExpired = true;
+            }
+        } while ((command = commands.poll()) != null);
+        return new Batch(pushed, update, awayTimerExpired, waiting);
+    }
+
+    /**
+     * Merge two user updates, keeping the passcodes the earlier one gave
+     * @param earlier the update posted first
+     * @param later the update posted next
+     * @return the merged update
+     */
+    static HouseState mergeUpdates(HouseState earlier, HouseState later) {
+        HouseState merged = earlier.merge(later);
+        for (HouseState.Text passcode : PASSCODES) {
+            String given = earlier.get(passcode);
+            String next = later.get(passcode);
+            if (given != null && !given.isEmpty() && (next == null || next.isEmpty())) {
+                merged = merged.with(passcode, given);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The inputs taken from the mailbox in one drain
+     */
+    public static final class Batch {
+
+        static final Batch EMPTY = new Batch(null, null, false, Collections.emptyList());
+
+        private final HouseState pushedState;
+        private final HouseState userUpdate;
+        private final boolean awayTimerExpired;
+        private final List<CompletableFuture<HouseState>> waiting;
+
+        private Batch(HouseState pushedState, HouseState userUpdate, boolean awayTimerExpired,
+                      List<CompletableFuture<HouseState>> waiting) {
+            this.pushedState = pushedState;
+            this.userUpdate = userUpdate;
+            this.awayTimerExpired = awayTimerExpired;
+            this.waiting = waiting;
+        }
+
+        /**
+         * Get the states the house pushed, merged in the order they arrived
+         * @return the state, or null if none was pushed
+         */
+        public HouseState getPushedState() {
+            return pushedState;
+        }
+
+        /**
+         * Get the user updates, merged in the order they were posted
+         * @return the update, or null if there was none
+         */
+        public HouseState getUserUpdate() {
+            return userUpdate;
+        }
+
+        /**
+         * Check if the away timer fired
+         * @return true if it fired
+         */
+        public boolean isAwayTimerExpired() {
+            return awayTimerExpired;
+        }
+
+        /**
+         * Check if the batch holds no inputs
+         * @return true if nothing was posted
+         */
+        public boolean isEmpty() {
+            return pushedState == null && userUpdate == null && !awayTimerExpired;
+        }
+
+        /**
+         * Tell the posters of user updates that they have been handled
+         * @param result the state evaluated from the whole batch
+         */
+        public void complete(HouseState result) {
+            for (CompletableFuture<HouseState> done : waiting) {
+                done.complete(result);
+            }
+        }
+
+        /**
+         * Tell the posters of user updates that they could not be handled
+         * @param cause the reason
+         */
+        public void fail(Throwable cause) {
+            for (CompletableFuture<HouseState> done : waiting) {
+                done.completeExceptionally(cause);
+            }
+        }
+    }
+}
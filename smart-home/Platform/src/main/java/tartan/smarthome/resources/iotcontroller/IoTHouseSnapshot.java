@@ -0,0 +1,94 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * What the platform knows about a house at one moment: the last known state, including the user
+ * settings, and the user settings on their own. Snapshots never change; each change makes a new
+ * snapshot with the next version number, so a reader can tell whether it has seen the latest.
+ * It also records when the house last reported its state, so a reader can tell how old it is.
+ */
+public final class IoTHouseSnapshot {
+
+    /** the snapshot of a house nothing is known about yet */
+    public static final IoTHouseSnapshot EMPTY = new IoTHouseSnapshot(HouseState.EMPTY, HouseState.EMPTY, 0, 0);
+
+    private final HouseState state;
+    private final HouseState settings;
+    private final long version;
+    private final long reportedAt;
+
+    private IoTHouseSnapshot(HouseState state, HouseState settings, long version, long reportedAt) {
+        this.state = state;
+        this.settings = settings;
+        this.version = version;
+        this.reportedAt = reportedAt;
+    }
+
+    /**
+     * Get the last known state of the house, including the user settings
+     * @return the state
+     */
+    public HouseState getState() {
+        return state;
+    }
+
+    /**
+     * Get the user settings as a partial state
+     * @return the settings
+     */
+    public HouseState getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get the version; each change to a house's snapshot increments it
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get when the house last reported its state
+     * @return the time in milliseconds since the epoch, or 0 if the house never has
+     */
+    public long getReportedAt() {
+        return reportedAt;
+    }
+
+    /**
+     * Get how long ago the house last reported its state
+     * @param now the current time in milliseconds since the epoch
+     * @return the age in milliseconds, or Long.MAX_VALUE if the house never reported
+     */
+    public long getAge(long now) {
+        return reportedAt == 0 ? Long.MAX_VALUE : Math.max(0, now - reportedAt);
+    }
+
+    /**
+     * Replace the state, keeping the time it was last reported
+     * @param newState the new state
+     * @return the next snapshot
+     */
+    public IoTHouseSnapshot withState(HouseState newState) {
+        return new IoTHouseSnapshot(newState, settings, version + 1, reportedAt);
+    }
+
+    /**
+     * Replace the state with one the house just reported
+     * @param newState the new state
+     * @param time when it was reported, in milliseconds since the epoch
+     * @return the next snapshot
+     */
+    public IoTHouseSnapshot withReport(HouseState newState, long time) {
+        return new IoTHouseSnapshot(newState, settings, version + 1, time);
+    }
+
+    /**
+     * Change some of the user settings
+     * @param changed the settings that changed
+     * @return the next snapshot
+     */
+    public IoTHouseSnapshot withSettings(HouseState changed) {
+        return new IoTHouseSnapshot(state, settings.merge(changed), version + 1, reportedAt);
+    }
+}
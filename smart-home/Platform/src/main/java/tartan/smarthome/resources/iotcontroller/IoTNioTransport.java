@@ -0,0 +1,614 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A non-blocking transport for one house. The channel is owned by an {@link IoTEventLoop} that
+ * multiplexes many houses; callers only queue messages and wait on the response.
+ *
+ * Framing: requests are written exactly as given (they carry their own '.' terminator) and every
+ * newline-terminated line read from the house is one response. Requests are copied straight into one
+ * outbound buffer per house, so sending allocates nothing beyond the response future. Once the
+ * capability handshake has switched the link to binary framing, each message is instead wrapped in a
+ * length-prefixed frame carrying its sequence number (see {@link IoTBinaryCodec}).
+ *
+ * Any number of requests may be in flight. Responses are matched to requests in order, or, when
+ * sequence tagging is on, by a tag inserted after the command ("GS#12." is answered by "SU#12:...").
+ * An untagged response always goes to the oldest outstanding request. States the house pushes on its
+ * own (PU frames) are never matched to a request; they go to the push listener.
+ *
+ * Deadlines are checked by the event loop tick. A connect, write or response that misses its
+ * deadline means the link is dead or half-open: the channel is closed, waiting callers fail and
+ * the listener is told the link is down.
+ */
+public class IoTNioTransport implements IoTTransport {
+
+    /** initial size of the inbound and outbound buffers; a state update is well under this */
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /** a line longer than this is a protocol error */
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    /** sequence numbers run from 1 to MAX_SEQUENCE; 0 means untagged */
+    private static final int MAX_SEQUENCE = 0xFFFF;
+
+    /** connection settings */
+    private final String address;
+    private final Integer port;
+
+    /** the loop that owns the channel */
+    private final IoTEventLoop loop;
+
+    /** channel state, only touched on the loop thread */
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private CompletableFuture<Boolean> connectFuture = null;
+    private long connectStarted = 0;
+    private long writeStalledSince = 0;
+    private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private volatile boolean isConnected = false;
+
+    /** deadlines in nanoseconds; 0 waits forever */
+    private volatile long connectTimeout = 0;
+    private volatile long readTimeout = 0;
+    private volatile long writeTimeout = 0;
+
+    private volatile IoTConnectionListener listener = null;
+    private volatile Consumer<ByteBuffer> pushListener = null;
+
+    /** bytes waiting to be written (in write mode) and callers waiting for a response keyed by sequence, in send order */
+    private ByteBuffer outbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<>();
+    private int sequence = 0;
+    private volatile boolean sequenceTagging = false;
+    private volatile boolean binaryFraming = false;
+
+    /**
+     * A request waiting for its response
+     */
+    private static class Pending {
+        final CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        final long sent = System.nanoTime();
+    }
+
+    /**
+     * Create a transport on one of the loops in a group
+     * @param addr the house address
+     * @param port the house port
+     * @param group the loops to share
+     */
+    public IoTNioTransport(String addr, Integer port, IoTEventLoopGroup group) {
+        this.address = addr;
+        this.port = port;
+        this.loop = group.next();
+    }
+
+    @Override
+    public Boolean isConnected() {
+        return isConnected;
+    }
+
+    @Override
+    public void setSequenceTagging(boolean enabled) {
+        this.sequenceTagging = enabled;
+    }
+
+    @Override
+    public boolean supportsBinaryFraming() {
+        return true;
+    }
+
+    @Override
+    public void setBinaryFraming(boolean enabled) {
+        // the switch is ordered with the requests around it
+        synchronized (this) {
+            this.binaryFraming = enabled;
+        }
+    }
+
+    @Override
+    public boolean supportsPush() {
+        return true;
+    }
+
+    @Override
+    public void setPushListener(Consumer<ByteBuffer> listener) {
+        this.pushListener = listener;
+    }
+
+    @Override
+    public void setDeadlines(long connectMillis, long readMillis, long writeMillis) {
+        this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(connectMillis);
+        this.readTimeout = TimeUnit.MILLISECONDS.toNanos(readMillis);
+        this.writeTimeout = TimeUnit.MILLISECONDS.toNanos(writeMillis);
+    }
+
+    @Override
+    public void setConnectionListener(IoTConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the number of requests waiting for a response
+     * @return the pipeline depth
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public Boolean connect() {
+        try {
+            return connectAsync().get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // fall through
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> connectAsync() {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        loop.execute(() -> openChannel(result));
+        return result;
+    }
+
+    @Override
+    public void disconnect() {
+        isConnected = false;
+        loop.execute(() -> close(IoTConnectionState.CLOSED));
+    }
+
+    @Override
+    public String sendMessageToHouse(String msg) {
+        try {
+            return send(msg).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // the connection failed while waiting
+        }
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> sendFrame(ByteBuffer request) {
+        if (!isConnected) {
+            return CompletableFuture.failedFuture(new IOException("Not connected to " + address + ":" + port));
+        }
+        Pending waiting = new Pending();
+        synchronized (this) {
+            // the tag and the queue position are assigned together so order and tag always agree
+            sequence = (sequence % MAX_SEQUENCE) + 1;
+            pending.put(sequence, waiting);
+            if (binaryFraming) {
+                appendFrame(request, sequence);
+            } else {
+                append(request, sequenceTagging ? sequence : 0);
+            }
+        }
+        loop.execute(this::flush);
+        return waiting.response;
+    }
+
+    /**
+     * Copy a request onto the outbound buffer, inserting a sequence tag after the command
+     * ("SS:LS=1." is written as "SS#7:LS=1."). Called with the lock held
+     * @param request the request between position and limit; not modified
+     * @param seq the sequence number, or 0 for an untagged request
+     */
+    private void append(ByteBuffer request, int seq) {
+        int start = request.position();
+        int length = request.remaining();
+        ensureOutbound(length + 6);
+
+        int cmdEnd = seq == 0 ? start + length : commandEnd(request, start, start + length);
+        outbound.put(outbound.position(), request, start, cmdEnd - start);
+        outbound.position(outbound.position() + cmdEnd - start);
+        if (seq != 0) {
+            outbound.put((byte) IoTValues.SEQ_TAG.charAt(0));
+            // at most five digits
+            int div = 10000;
+            while (div > 1 && seq / div == 0) {
+                div /= 10;
+            }
+            for (; div > 0; div /= 10) {
+                outbound.put((byte) ('0' + (seq / div) % 10));
+            }
+            outbound.put(outbound.position(), request, cmdEnd, start + length - cmdEnd);
+            outbound.position(outbound.position() + start + length - cmdEnd);
+        }
+    }
+
+    /**
+     * Copy a binary message onto the outbound buffer as a frame: the length, the message type, the
+     * sequence number and the body. Called with the lock held
+     * @param request the message between position and limit; not modified
+     * @param seq the sequence number
+     */
+    private void appendFrame(ByteBuffer request, int seq) {
+        int start = request.position();
+        int length = request.remaining();
+        ensureOutbound(length + IoTBinaryCodec.HEADER_SIZE);
+
+        outbound.putShort((short) (length + 2));
+        outbound.put(request.get(start));
+        outbound.putShort((short) seq);
+        outbound.put(outbound.position(), request, start + 1, length - 1);
+        outbound.position(outbound.position() + length - 1);
+    }
+
+    private void ensureOutbound(int needed) {
+        if (outbound.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(outbound.capacity() * 2, outbound.position() + needed));
+            outbound.flip();
+            bigger.put(outbound);
+            outbound = bigger;
+        }
+    }
+
+    /**
+     * Find the end of the command token in a message
+     * @return the index of the first ':' or '.', or the end if there is none
+     */
+    private static int commandEnd(ByteBuffer msg, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte c = msg.get(i);
+            if (c == ':' || c == '.') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private void openChannel(CompletableFuture<Boolean> result) {
+        if (channel != null) {
+            // already connected or connecting
+            result.complete(isConnected);
+            return;
+        }
+        connectFuture = result;
+        try {
+            InetSocketAddress houseAddress = new InetSocketAddress(address, port);
+            if (houseAddress.isUnresolved()) {
+                EvaluationListener listener = EvaluationListeners.getDefault();
+                if (listener.isEnabled(EvaluationListener.Level.WARN)) {
+                    listener.report(EvaluationListener.Level.WARN, "Unknown host: " + address);
+                }
+                result.complete(false);
+                return;
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            inbound.clear();
+            // every connection starts on text until the handshake says otherwise
+            binaryFraming = false;
+            connectStarted = System.nanoTime();
+
+            if (channel.connect(houseAddress)) {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException ioe) {
+            close(IoTConnectionState.DISCONNECTED);
+        }
+    }
+
+    private void connected() {
+        isConnected = true;
+        // listeners hear about the link before the connecting caller resumes
+        notifyListener(IoTConnectionState.CONNECTED);
+        connectFuture.complete(true);
+    }
+
+    private void notifyListener(IoTConnectionState state) {
+        IoTConnectionListener l = listener;
+        if (l != null) {
+            l.connectionStateChanged(state);
+        }
+    }
+
+    /**
+     * The channel finished (or failed) connecting. Called on the loop thread
+     */
+    void onConnectable() {
+        try {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+        } catch (IOException ioe) {
+            close(IoTConnectionState.DISCONNECTED);
+        }
+    }
+
+    /**
+     * The channel can take more output. Called on the loop thread
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Input is available. Called on the loop thread
+     */
+    void onReadable() {
+        try {
+            if (channel.read(inbound) < 0) {
+                close(IoTConnectionState.DISCONNECTED);
+                return;
+            }
+        } catch (IOException ioe) {
+            close(IoTConnectionState.DISCONNECTED);
+            return;
+        }
+
+        inbound.flip();
+        byte[] data = inbound.array();
+        int start = inbound.position();
+        int limit = inbound.limit();
+        // the framing is checked per message, since a handshake reply switches it mid-buffer
+        while (start < limit) {
+            int next = binaryFraming ? readFrame(data, start, limit) : readLine(data, start, limit);
+            if (next < 0) {
+                break;
+            }
+            start = next;
+        }
+        inbound.position(start);
+        inbound.compact();
+
+        if (!inbound.hasRemaining()) {
+            if (inbound.capacity() >= MAX_FRAME_SIZE) {
+                close(IoTConnectionState.DISCONNECTED);
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(inbound.capacity() * 2);
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+    }
+
+    /**
+     * Deliver one newline-terminated line, if a whole one has arrived
+     * @return the start of the next message, or -1 if the line is incomplete
+     */
+    private int readLine(byte[] data, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (data[i] == '\n') {
+                int end = i;
+                if (end > start && data[end - 1] == '\r') {
+                    end--;
+                }
+                if (IoTProtocolCodec.isPush(data, start, end)) {
+                    push(Arrays.copyOfRange(data, start, end));
+                } else {
+                    deliver(data, start, end);
+                }
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Deliver one length-prefixed frame, if a whole one has arrived. The caller gets its own copy
+     * of the message (type and body) without the length and sequence number
+     * @return the start of the next message, or -1 if the frame is incomplete
+     */
+    private int readFrame(byte[] data, int start, int limit) {
+        if (limit - start < 2) {
+            return -1;
+        }
+        int length = ((data[start] & 0xFF) << 8) | (data[start + 1] & 0xFF);
+        int end = start + 2 + length;
+        if (end > limit) {
+            return -1;
+        }
+        if (length < 3) {
+            // too short to hold a type and a sequence number; skip it
+            return end;
+        }
+        int seq = ((data[start + 3] & 0xFF) << 8) | (data[start + 4] & 0xFF);
+        byte[] message = new byte[length - 2];
+        message[0] = data[start + 2];
+        System.arraycopy(data, start + 5, message, 1, message.length - 1);
+        if (message[0] == IoTBinaryCodec.PUSH_UPDATE) {
+            push(message);
+        } else {
+            complete(seq, message);
+        }
+        return end;
+    }
+
+    /**
+     * Hand a state the house pushed to the push listener, if there is one
+     * @param message the pushed frame
+     */
+    private void push(byte[] message) {
+        Consumer<ByteBuffer> l = pushListener;
+        if (l != null) {
+            l.accept(ByteBuffer.wrap(message));
+        }
+    }
+
+    /**
+     * Check the connect, write and read deadlines. Called on the loop thread every tick
+     * @param now the current System.nanoTime()
+     */
+    void checkDeadlines(long now) {
+        if (!isConnected) {
+            if (channel != null && connectTimeout > 0 && now - connectStarted > connectTimeout) {
+                close(IoTConnectionState.DISCONNECTED);
+            }
+            return;
+        }
+        if (writeTimeout > 0 && writeStalledSince != 0 && now - writeStalledSince > writeTimeout) {
+            close(IoTConnectionState.DISCONNECTED);
+            return;
+        }
+        if (readTimeout > 0) {
+            long oldest;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // requests are sent in order, so the oldest one has the earliest deadline
+                oldest = pending.values().iterator().next().sent;
+            }
+            if (now - oldest > readTimeout) {
+                close(IoTConnectionState.DISCONNECTED);
+            }
+        }
+    }
+
+    /**
+     * Hand a response line to the caller it answers: the one with a matching tag, otherwise the
+     * oldest waiting caller. The caller gets its own copy of the line with the tag removed
+     * @param data the inbound bytes
+     * @param start the start of the line
+     * @param end the end of the line, without its terminator
+     */
+    private void deliver(byte[] data, int start, int end) {
+        int seq = 0;
+        int cmdEnd = start;
+        while (cmdEnd < end && data[cmdEnd] != ':' && data[cmdEnd] != '.') {
+            cmdEnd++;
+        }
+        int tagStart = cmdEnd - 1;
+        while (tagStart > start && data[tagStart] >= '0' && data[tagStart] <= '9') {
+            tagStart--;
+        }
+        byte[] line;
+        if (tagStart > start && tagStart < cmdEnd - 1 && data[tagStart] == IoTValues.SEQ_TAG.charAt(0)) {
+            for (int i = tagStart + 1; i < cmdEnd; i++) {
+                seq = seq * 10 + (data[i] - '0');
+            }
+            line = new byte[(end - start) - (cmdEnd - tagStart)];
+            System.arraycopy(data, start, line, 0, tagStart - start);
+            System.arraycopy(data, cmdEnd, line, tagStart - start, end - cmdEnd);
+        } else {
+            line = Arrays.copyOfRange(data, start, end);
+        }
+        complete(seq, line);
+    }
+
+    /**
+     * Complete the caller waiting on a response
+     * @param seq the response's sequence number, or 0 if it had none
+     * @param response the response bytes
+     */
+    private void complete(int seq, byte[] response) {
+        Pending waiting = null;
+        synchronized (this) {
+            if (seq != 0) {
+                waiting = pending.remove(seq);
+            }
+            if (waiting == null) {
+                Iterator<Pending> oldest = pending.values().iterator();
+                if (oldest.hasNext()) {
+                    waiting = oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+        if (waiting != null) {
+            waiting.response.complete(ByteBuffer.wrap(response));
+        }
+    }
+
+    /**
+     * Write as much queued output as the socket accepts. Called on the loop thread
+     */
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            close(IoTConnectionState.DISCONNECTED);
+            return;
+        }
+        try {
+            synchronized (this) {
+                outbound.flip();
+                channel.write(outbound);
+                boolean drained = !outbound.hasRemaining();
+                outbound.compact();
+                if (drained) {
+                    writeStalledSince = 0;
+                    key.interestOps(SelectionKey.OP_READ);
+                } else {
+                    if (writeStalledSince == 0) {
+                        writeStalledSince = System.nanoTime();
+                    }
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException ioe) {
+            // broken pipe
+            close(IoTConnectionState.DISCONNECTED);
+        }
+    }
+
+    /**
+     * Tear the channel down, fail anyone still waiting and tell the listener. Called on the loop thread
+     * @param reason DISCONNECTED if the link failed, CLOSED if it was closed on purpose
+     */
+    void close(IoTConnectionState reason) {
+        boolean wasConnected = isConnected;
+        boolean wasOpen = channel != null;
+        isConnected = false;
+        writeStalledSince = 0;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+
+            }
+            channel = null;
+        }
+        if (connectFuture != null) {
+            connectFuture.complete(false);
+        }
+
+        // a failed connect attempt is reported through its future, not as a state change;
+        // listeners hear about a lost link before waiting callers resume
+        if (wasConnected || (wasOpen && reason == IoTConnectionState.CLOSED)) {
+            notifyListener(reason);
+        }
+
+        List<Pending> failed;
+        synchronized (this) {
+            outbound.clear();
+            failed = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        IOException closed = new IOException("Connection to " + address + ":" + port + " closed");
+        for (Pending waiting : failed) {
+            waiting.response.completeExceptionally(closed);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Decides how long a polled house waits before its next update. The controller asks after every
+ * successful poll; a house that pushes its state is polled on its heartbeat instead
+ */
+public interface IoTPollPolicy {
+
+    /**
+     * Get the interval before the first poll, and after a poll that failed
+     * @return the interval in milliseconds
+     */
+    long getInitialInterval();
+
+    /**
+     * Get the interval before the next poll
+     * @param previous the state seen by the previous poll, or null if there was none
+     * @param current the state seen by this poll
+     * @param awayTimerRunning true if the away timer is counting down
+     * @param interval the interval that led to this poll, in milliseconds
+     * @return the next interval in milliseconds
+     */
+    long nextInterval(HouseState previous, HouseState current, boolean awayTimerRunning, long interval);
+}
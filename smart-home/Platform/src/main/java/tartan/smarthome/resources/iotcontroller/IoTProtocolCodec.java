@@ -0,0 +1,330 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the text house protocol directly on bytes. State updates (SU:K=V;...) are
+ * parsed in place from a ByteBuffer and state changes (SS:K=V;...) are written into a caller-owned
+ * buffer, so a poll creates no intermediate Strings, token arrays or boxed values.
+ *
+ * Keys are at most four ASCII characters, so each key is packed into an int and matched against a
+ * table built from the {@link IoTValues} constants. Frames decode straight into a {@link HouseState}.
+ *
+ * A house that pushes its state sends unsolicited PU:K=V;... lines with the same body as a state
+ * update. The platform subscribes with "GS:SUB=1."; a house that will push answers with a state
+ * update carrying "SUB=1", any other house answers the GS as usual.
+ */
+public final class IoTProtocolCodec {
+
+    private static final byte MSG_DELIM = ':';
+    private static final byte PARAM_DELIM = ';';
+    private static final byte PARAM_EQ = '=';
+    private static final byte MSG_END = '.';
+    private static final byte SEQ_TAG = '#';
+    private static final byte ON = '1';
+    private static final byte OFF = '0';
+
+    private static final int STATE_UPDATE = pack(IoTValues.STATE_UPDATE);
+    private static final int PUSH_UPDATE = pack(IoTValues.PUSH_UPDATE);
+    private static final byte[] SET_STATE = ascii(IoTValues.SET_STATE + IoTValues.MSG_DELIM);
+    private static final byte[] OK = ascii(IoTValues.OK);
+
+    /** the largest SET_STATE frame: every device key with a one digit value */
+    public static final int MAX_SET_STATE_SIZE = 64;
+
+    /** the devices a house reports */
+    private static final HouseState.Device[] UPDATE_DEVICES = {
+            HouseState.Device.LIGHT, HouseState.Device.ALARM, HouseState.Device.DOOR_LOCK, HouseState.Device.DOOR,
+            HouseState.Device.HUMIDIFIER, HouseState.Device.INTRUDER, HouseState.Device.PROXIMITY,
+            HouseState.Device.PHONE_PROXIMITY, HouseState.Device.ALARM_ACTIVE, HouseState.Device.HEATER,
+            HouseState.Device.CHILLER
+    };
+    private static final int[] DEVICE_CODES = new int[UPDATE_DEVICES.length];
+
+    /** the devices a house accepts in a state change, in the order they are written */
+    private static final HouseState.Device[] SET_DEVICES = {
+            HouseState.Device.DOOR, HouseState.Device.PHONE_PROXIMITY, HouseState.Device.INTRUDER,
+            HouseState.Device.DOOR_LOCK, HouseState.Device.LIGHT, HouseState.Device.ALARM,
+            HouseState.Device.ALARM_ACTIVE, HouseState.Device.HUMIDIFIER, HouseState.Device.CHILLER,
+            HouseState.Device.HEATER
+    };
+    private static final byte[][] SET_KEYS = new byte[SET_DEVICES.length][];
+
+    /** the devices a house accepts in a state change, one bit per {@link HouseState.Device} */
+    public static final int SET_DEVICE_MASK;
+
+    private static final int TEMP_READING = pack(IoTValues.TEMP_READING);
+    private static final int HUMIDITY_READING = pack(IoTValues.HUMIDITY_READING);
+    private static final int HVAC_MODE = pack(IoTValues.HVAC_MODE);
+
+    static {
+        for (int i = 0; i < UPDATE_DEVICES.length; i++) {
+            DEVICE_CODES[i] = pack(UPDATE_DEVICES[i].getKey());
+        }
+        int mask = 0;
+        for (int i = 0; i < SET_DEVICES.length; i++) {
+            SET_KEYS[i] = ascii(SET_DEVICES[i].getKey());
+            mask |= SET_DEVICES[i].getBit();
+        }
+        SET_DEVICE_MASK = mask;
+    }
+
+    /** the GET_STATE request; never modified */
+    public static final ByteBuffer GET_STATE = ByteBuffer.wrap(ascii(IoTValues.GET_STATE + IoTValues.MSG_END)).asReadOnlyBuffer();
+
+    /** the subscription request; never modified */
+    public static final ByteBuffer SUBSCRIBE = ByteBuffer.wrap(ascii(IoTValues.GET_STATE + IoTValues.MSG_DELIM
+            + IoTValues.SUBSCRIBE + IoTValues.PARAM_EQ + "1" + IoTValues.MSG_END)).asReadOnlyBuffer();
+
+    private static final byte[] SUBSCRIBED = ascii(IoTValues.SUBSCRIBE + IoTValues.PARAM_EQ + "1");
+
+    private IoTProtocolCodec() {
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int pack(String key) {
+        byte[] b = ascii(key);
+        return pack(ByteBuffer.wrap(b), 0, b.length);
+    }
+
+    /**
+     * Pack up to four bytes into an int
+     * @return the packed key, or -1 if the key is empty or too long to be a protocol key
+     */
+    private static int pack(ByteBuffer buf, int from, int to) {
+        if (to <= from || to - from > 4) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = from; i < to; i++) {
+            code = (code << 8) | (buf.get(i) & 0xFF);
+        }
+        return code;
+    }
+
+    private static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a state update or pushed state frame. The buffer's position and limit are not changed
+     * @param frame the frame between position and limit, e.g. "SU:TR=70;LS=1."
+     * @return the reported state, or null if the frame is not a valid state update
+     */
+    public static HouseState decodeStateUpdate(ByteBuffer frame) {
+        if (frame == null) {
+            return null;
+        }
+        int start = frame.position();
+        int end = frame.limit();
+
+        int delim = indexOf(frame, start, end, MSG_DELIM);
+        if (delim < 0) {
+            return null;
+        }
+        int cmd = pack(frame, start, delim);
+        if (cmd != STATE_UPDATE && cmd != PUSH_UPDATE) {
+            return null;
+        }
+        int bodyStart = delim + 1;
+        if (bodyStart == end || indexOf(frame, bodyStart, end, MSG_DELIM) >= 0) {
+            return null;
+        }
+        if (frame.get(end - 1) == MSG_END) {
+            end--;
+        }
+
+        HouseState.Builder state = HouseState.builder();
+        int paramStart = bodyStart;
+        while (paramStart < end) {
+            int paramEnd = indexOf(frame, paramStart, end, PARAM_DELIM);
+            if (paramEnd < 0) {
+                paramEnd = end;
+            }
+            if (paramEnd > paramStart) {
+                int eq = indexOf(frame, paramStart, paramEnd, PARAM_EQ);
+                if (eq < 0 || !decodeParam(frame, paramStart, eq, paramEnd, state)) {
+                    return null;
+                }
+            }
+            paramStart = paramEnd + 1;
+        }
+        return state.build();
+    }
+
+    private static boolean decodeParam(ByteBuffer frame, int keyStart, int eq, int paramEnd, HouseState.Builder state) {
+        // parse the value as a signed decimal
+        int i = eq + 1;
+        boolean negative = i < paramEnd && frame.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == paramEnd) {
+            return false;
+        }
+        int val = 0;
+        for (; i < paramEnd; i++) {
+            int digit = frame.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            val = val * 10 + digit;
+        }
+        if (negative) {
+            val = -val;
+        }
+
+        int code = pack(frame, keyStart, eq);
+        if (code == TEMP_READING) {
+            state.set(HouseState.Reading.TEMPERATURE, val);
+        } else if (code == HUMIDITY_READING) {
+            state.set(HouseState.Reading.HUMIDITY, val);
+        } else if (code == HVAC_MODE) {
+            state.set(HouseState.Text.HVAC_MODE, val == 1 ? HouseState.HVAC_HEATER : HouseState.HVAC_CHILLER);
+        } else {
+            for (int k = 0; k < DEVICE_CODES.length; k++) {
+                if (DEVICE_CODES[k] == code) {
+                    state.set(UPDATE_DEVICES[k], val == 1);
+                    break;
+                }
+            }
+        }
+        // unknown keys are ignored
+        return true;
+    }
+
+    /**
+     * Encode a state change request. Only the device states a house accepts are written; other
+     * values (readings, settings, passcodes) are skipped
+     * @param state the new state
+     * @param out the buffer to write at its position; at least {@link #MAX_SET_STATE_SIZE} bytes must remain
+     * @return the number of bytes written
+     */
+    public static int encodeSetState(HouseState state, ByteBuffer out) {
+        int start = out.position();
+        out.put(SET_STATE);
+        boolean first = true;
+        for (int i = 0; i < SET_DEVICES.length; i++) {
+            HouseState.Device device = SET_DEVICES[i];
+            if (!state.has(device)) {
+                continue;
+            }
+            if (!first) {
+                out.put(PARAM_DELIM);
+            }
+            first = false;
+            out.put(SET_KEYS[i]);
+            out.put(PARAM_EQ);
+            out.put(state.is(device) ? ON : OFF);
+        }
+        out.put(MSG_END);
+        return out.position() - start;
+    }
+
+    /**
+     * Check if a frame is a state pushed by the house rather than a response
+     * @param data the inbound bytes
+     * @param start the start of the line
+     * @param end the end of the line
+     * @return true if the line is a PU frame
+     */
+    public static boolean isPush(byte[] data, int start, int end) {
+        return end - start > 2 && data[start] == 'P' && data[start + 1] == 'U'
+                && (data[start + 2] == MSG_DELIM || data[start + 2] == MSG_END);
+    }
+
+    /**
+     * Check if a house agreed to push its state
+     * @param reply the reply to {@link #SUBSCRIBE}, or null
+     * @return true if the house will push
+     */
+    public static boolean acceptsPush(ByteBuffer reply) {
+        return leadsWith(reply, SUBSCRIBED);
+    }
+
+    /**
+     * Check if the first parameter of a message is exactly the given one, e.g. "CAP=1" in "SU:CAP=1;TR=70."
+     * @param message the message between position and limit, or null
+     * @param param the parameter
+     * @return true if the message leads with the parameter
+     */
+    static boolean leadsWith(ByteBuffer message, byte[] param) {
+        if (message == null) {
+            return false;
+        }
+        int end = message.limit();
+        int delim = indexOf(message, message.position(), end, MSG_DELIM);
+        if (delim < 0) {
+            return false;
+        }
+        int paramEnd = delim + 1 + param.length;
+        if (paramEnd > end) {
+            return false;
+        }
+        for (int k = 0; k < param.length; k++) {
+            if (message.get(delim + 1 + k) != param[k]) {
+                return false;
+            }
+        }
+        return paramEnd == end || message.get(paramEnd) == PARAM_DELIM || message.get(paramEnd) == MSG_END;
+    }
+
+    /**
+     * Check if a response acknowledges a state change. Houses answer "OK", "OK." or, when the
+     * transport leaves a sequence tag in place, "OK#n."
+     * @param response the response between position and limit, or null
+     * @return true if the house answered OK
+     */
+    public static boolean isOk(ByteBuffer response) {
+        if (response == null || response.remaining() < OK.length) {
+            return false;
+        }
+        int i = response.position();
+        int end = response.limit();
+        for (int k = 0; k < OK.length; k++, i++) {
+            if (response.get(i) != OK[k]) {
+                return false;
+            }
+        }
+        if (i < end && response.get(i) == SEQ_TAG) {
+            int digits = ++i;
+            while (i < end && response.get(i) >= '0' && response.get(i) <= '9') {
+                i++;
+            }
+            if (i == digits) {
+                return false;
+            }
+        }
+        if (i < end && response.get(i) == MSG_END) {
+            i++;
+        }
+        return i == end;
+    }
+
+    /**
+     * Render a frame as text, for logging and for the String-based API. The buffer is not changed
+     * @param frame the frame between position and limit
+     * @return the frame as a String
+     */
+    public static String toText(ByteBuffer frame) {
+        return StandardCharsets.US_ASCII.decode(frame.duplicate()).toString();
+    }
+
+    /**
+     * Wrap a text message as a frame
+     * @param msg the message
+     * @return a buffer holding the message
+     */
+    public static ByteBuffer fromText(String msg) {
+        return ByteBuffer.wrap(ascii(msg));
+    }
+}
@@ -0,0 +1,161 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The original blocking transport: one java.net.Socket per house with a blocking readLine() for
+ * each response. Kept as a fallback for environments where the selector-based transport cannot be used.
+ * Blocking sockets cannot bound a write, so only the connect and read deadlines apply.
+ */
+public class IoTSocketTransport implements IoTTransport {
+    private volatile Boolean isConnected = false;
+
+    /** connection settings */
+    private String address;
+    private Integer port;
+
+    /** deadlines; 0 waits forever */
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+
+    private IoTConnectionListener listener = null;
+
+    /** The connection is private so it can be controlled */
+    private Socket houseSocket = null;
+    private BufferedWriter out = null;
+    private BufferedReader in = null;
+
+    /**
+     * Create a blocking transport for a house
+     * @param addr the house address
+     * @param port the house port
+     */
+    public IoTSocketTransport(String addr, Integer port) {
+        this.address = addr;
+        this.port = port;
+    }
+
+    @Override
+    public Boolean isConnected() {
+        return isConnected;
+    }
+
+    @Override
+    public void setDeadlines(long connectMillis, long readMillis, long writeMillis) {
+        this.connectTimeout = (int) connectMillis;
+        this.readTimeout = (int) readMillis;
+    }
+
+    @Override
+    public void setConnectionListener(IoTConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The blocking transport cannot pipeline, so the round trip happens on the calling thread
+     */
+    @Override
+    public synchronized CompletableFuture<String> send(String msg) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        String line = sendMessageToHouse(msg);
+        if (line == null) {
+            response.completeExceptionally(new IOException("No response from " + address + ":" + port));
+        } else {
+            response.complete(line);
+        }
+        return response;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> sendFrame(ByteBuffer request) {
+        return send(IoTProtocolCodec.toText(request)).thenApply(IoTProtocolCodec::fromText);
+    }
+
+    @Override
+    public synchronized String sendMessageToHouse(String msg) {
+        if (!isConnected) {
+            return null;
+        }
+        try {
+
+            out.write(msg, 0, msg.length());
+            out.flush();
+
+            String line = in.readLine();
+            if (line == null) {
+                // the house hung up
+                lost();
+            }
+            return line;
+
+        } catch (IOException ioe) {
+            // broken pipe or read deadline missed
+            lost();
+        }
+        return null;
+    }
+
+    /**
+     * The link failed underneath us
+     */
+    private void lost() {
+        close();
+        if (listener != null) {
+            listener.connectionStateChanged(IoTConnectionState.DISCONNECTED);
+        }
+    }
+
+    private void close() {
+        if (houseSocket != null) {
+            if (houseSocket.isConnected()) {
+                try {
+                    houseSocket.close();
+                } catch (IOException e) {
+
+                }
+            }
+        }
+        isConnected = false;
+    }
+
+    @Override
+    public void disconnect() {
+        close();
+        if (listener != null) {
+            listener.connectionStateChanged(IoTConnectionState.CLOSED);
+        }
+    }
+
+    @Override
+    public synchronized Boolean connect() {
+
+        try {
+            houseSocket = new Socket();
+            houseSocket.setKeepAlive(true);
+            houseSocket.setSoTimeout(readTimeout);
+            houseSocket.connect(new InetSocketAddress(this.address, this.port), connectTimeout);
+
+            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
+            in = new BufferedReader(new InputStreamReader(houseSocket.getInputStream()));
+
+        } catch (UnknownHostException uhe) {
+            EvaluationListener listener = EvaluationListeners.getDefault();
+            if (listener.isEnabled(EvaluationListener.Level.WARN)) {
+                listener.report(EvaluationListener.Level.WARN, "Unknown host: " + address);
+            }
+            return false;
+        } catch (IOException ioe) {
+            return false;
+        }
+        isConnected = true;
+        if (listener != null) {
+            listener.connectionStateChanged(IoTConnectionState.CONNECTED);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,11 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Exception to indicate the house did not accept a new state, or could not be reached to send it
+ */
+public class IoTStateRejectedException extends Exception {
+
+    public IoTStateRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,294 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel for the platform's one-shot timers, such as a house's away timer. Timers
+ * are kept in a ring of buckets, one bucket per tick; a timer further away than one turn of the
+ * ring counts down the turns it still has to wait. Scheduling and cancelling are constant time and
+ * a single thread drives any number of timers, at the cost of firing up to one tick late.
+ *
+ * Timers are handed to the wheel thread through a queue, so schedule and cancel never block. An
+ * expired timer's task runs on the task executor, never on the wheel thread.
+ */
+public class IoTTimingWheel {
+
+    /**
+     * A scheduled timer
+     */
+    public interface Timeout {
+        /**
+         * Cancel the timer
+         * @return true if it was cancelled, false if it had already fired or been cancelled
+         */
+        boolean cancel();
+
+        /**
+         * Check if the timer is still waiting
+         * @return true until the timer fires or is cancelled
+         */
+        boolean isPending();
+    }
+
+    public static final long DEFAULT_TICK = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /** timers moved onto the wheel per tick, so a burst of schedules cannot stall the wheel */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static IoTTimingWheel defaultWheel = null;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a wheel with the default tick and size whose tasks run on virtual threads
+     */
+    public IoTTimingWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, null);
+    }
+
+    /**
+     * Create a wheel
+     * @param tickMillis the tick length in milliseconds; timers fire up to one tick late
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param executor runs expired tasks; null for a virtual thread per task
+     */
+    public IoTTimingWheel(long tickMillis, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        if (executor == null) {
+            this.ownedExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("iot-timer-", 0).factory());
+            this.executor = ownedExecutor;
+        } else {
+            this.ownedExecutor = null;
+            this.executor = executor;
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "iot-timing-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Get the process-wide wheel
+     * @return the default wheel
+     */
+    public static synchronized IoTTimingWheel getDefault() {
+        if (defaultWheel == null || defaultWheel.stopped) {
+            defaultWheel = new IoTTimingWheel();
+        }
+        return defaultWheel;
+    }
+
+    /**
+     * Run a task once after a delay
+     * @param task the task
+     * @param delay the delay
+     * @param unit the delay unit
+     * @return the timer, to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        Entry entry = new Entry(task, deadline);
+        if (stopped) {
+            entry.state.set(Entry.CANCELLED);
+            return entry;
+        }
+        pendingCount.incrementAndGet();
+        scheduled.add(entry);
+        return entry;
+    }
+
+    /**
+     * Get the number of timers waiting to fire
+     * @return the count
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stop the wheel. Pending timers never fire; tasks already running finish
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Entry entry;
+        while ((entry = cancelled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Entry entry = scheduled.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.state.get() != Entry.PENDING) {
+                continue;
+            }
+            long due = entry.deadline / tickNanos;
+            entry.remainingRounds = (due - tick) / wheel.length;
+            // a timer whose tick has passed goes in the current bucket
+            wheel[(int) (Math.max(due, tick) & mask)].add(entry);
+        }
+    }
+
+    private void fire(Entry entry) {
+        if (!entry.state.compareAndSet(Entry.PENDING, Entry.EXPIRED)) {
+            return;
+        }
+        pendingCount.decrementAndGet();
+        try {
+            executor.execute(entry.task);
+        } catch (RejectedExecutionException ree) {
+            // the wheel is stopping
+        }
+    }
+
+    /**
+     * A timer
+     */
+    private final class Entry implements Timeout {
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // owned by the wheel thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Entry prev;
+        private Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            pendingCount.decrementAndGet();
+            // the wheel thread unlinks it on the next tick
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isPending() {
+            return state.get() == PENDING;
+        }
+    }
+
+    /**
+     * The timers that fall on one tick of the ring, as a doubly linked list. Only touched by the
+     * wheel thread
+     */
+    private final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            if (head == null) {
+                head = tail = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            } else {
+                tail = entry.prev;
+            }
+            entry.prev = entry.next = null;
+            entry.bucket = null;
+        }
+
+        /**
+         * Fire the timers due by the deadline and count down the others
+         */
+        void expire(long deadline) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.state.get() != Entry.PENDING) {
+                    remove(entry);
+                } else if (entry.remainingRounds <= 0 && entry.deadline <= deadline) {
+                    remove(entry);
+                    fire(entry);
+                } else {
+                    entry.remainingRounds--;
+                }
+                entry = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Limits how often something happens: a bucket holds up to a burst of tokens and refills at a
+ * steady rate; each use takes a token, and when the bucket is empty the use has to wait.
+ */
+public class IoTTokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+
+    /** guarded by this */
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Create a bucket that starts full
+     * @param burst the most tokens the bucket holds
+     * @param perSecond the tokens added each second
+     */
+    public IoTTokenBucket(int burst, double perSecond) {
+        this.capacity = Math.max(1, burst);
+        this.tokensPerNano = Math.max(0, perSecond) / 1e9;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Take a token if there is one
+     * @return true if a token was taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get how long until a token is available
+     * @return the delay in milliseconds; 0 if one is available now, Long.MAX_VALUE if the bucket
+     *         never refills
+     */
+    public synchronized long getDelay() {
+        refill();
+        if (tokens >= 1) {
+            return 0;
+        }
+        if (tokensPerNano == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerNano / 1e6);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
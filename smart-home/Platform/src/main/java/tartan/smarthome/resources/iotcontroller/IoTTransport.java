@@ -0,0 +1,124 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The network transport underneath an {@link IoTConnection}. A transport moves protocol messages
+ * (GS. / SS:... / SU:...) to and from a single house. Two implementations exist: a multiplexed,
+ * non-blocking transport that shares a few selector threads across every house, and the original
+ * blocking socket transport kept as a fallback.
+ */
+public interface IoTTransport {
+
+    /**
+     * Connect to the house
+     * @return true if connection successful, false otherwise
+     */
+    Boolean connect();
+
+    /**
+     * Disconnect from the house
+     */
+    void disconnect();
+
+    /**
+     * Get connection state
+     * @return true if connected, false otherwise
+     */
+    Boolean isConnected();
+
+    /**
+     * Send a message to the house and wait for the response
+     * @param msg the message to send
+     * @return the response line without its terminator, or null on failure
+     */
+    String sendMessageToHouse(String msg);
+
+    /**
+     * Queue a message for the house without waiting. Transports that support pipelining may have
+     * several messages in flight at once; responses are matched back to the right future
+     * @param msg the message to send
+     * @return a future completed with the response line, or completed exceptionally on failure
+     */
+    default CompletableFuture<String> send(String msg) {
+        return sendFrame(IoTProtocolCodec.fromText(msg)).thenApply(IoTProtocolCodec::toText);
+    }
+
+    /**
+     * Queue an encoded message for the house without waiting. The request bytes between position
+     * and limit are copied before this returns and the buffer is not modified, so the caller may
+     * reuse it straight away
+     * @param request the encoded message
+     * @return a future completed with the response line without its terminator, or completed
+     *         exceptionally on failure
+     */
+    CompletableFuture<ByteBuffer> sendFrame(ByteBuffer request);
+
+    /**
+     * Tag each request with a sequence number so responses can be matched by tag rather than by
+     * order. Transports that cannot tag ignore this
+     * @param enabled true to tag requests
+     */
+    default void setSequenceTagging(boolean enabled) {
+        // untagged by default
+    }
+
+    /**
+     * Check if this transport can carry binary frames
+     * @return true if {@link #setBinaryFraming(boolean)} is supported
+     */
+    default boolean supportsBinaryFraming() {
+        return false;
+    }
+
+    /**
+     * Switch the link between text lines and binary frames (see {@link IoTBinaryCodec}). Both sides
+     * switch once the capability handshake succeeds; a new connection always starts on text
+     * @param enabled true for binary frames
+     */
+    default void setBinaryFraming(boolean enabled) {
+        // text only by default
+    }
+
+    /**
+     * Check if this transport can receive states the house pushes without being asked
+     * @return true if {@link #setPushListener(Consumer)} is supported
+     */
+    default boolean supportsPush() {
+        return false;
+    }
+
+    /**
+     * Register the listener for states the house pushes (PU frames). Pushed frames are not matched
+     * to requests. The listener runs on a network thread and must not block
+     * @param listener given each pushed frame; null to stop listening
+     */
+    default void setPushListener(Consumer<ByteBuffer> listener) {
+        // nothing is pushed by default
+    }
+
+    /**
+     * Connect to the house without blocking the caller
+     * @return a future completed with true if the connection was made
+     */
+    default CompletableFuture<Boolean> connectAsync() {
+        return CompletableFuture.supplyAsync(this::connect);
+    }
+
+    /**
+     * Set the deadlines for this link. A connect, write or response that takes longer than its
+     * deadline is treated as a dead link: the connection is closed and outstanding requests fail
+     * @param connectMillis connect deadline
+     * @param readMillis time allowed for the house to answer a request
+     * @param writeMillis time allowed for a request to be written
+     */
+    void setDeadlines(long connectMillis, long readMillis, long writeMillis);
+
+    /**
+     * Register the listener told about link state changes
+     * @param listener the listener
+     */
+    void setConnectionListener(IoTConnectionListener listener);
+}
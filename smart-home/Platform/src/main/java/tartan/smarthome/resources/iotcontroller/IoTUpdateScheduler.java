@@ -0,0 +1,282 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the poll-evaluate-write cycle of every house. One timer thread decides when each house is
+ * due and hands its cycle to a worker: a new virtual thread per cycle by default, or a bounded pool
+ * of platform threads. A house therefore costs a timer entry rather than a thread of its own, and
+ * a cycle that blocks on the house link only parks its virtual thread.
+ *
+ * Each house starts at a random offset within its first interval, so a fleet connected together
+ * does not poll together. A house never runs two cycles at once; a wake-up that arrives while a
+ * cycle runs makes the next one start as soon as it finishes.
+ */
+public class IoTUpdateScheduler {
+
+    /**
+     * One house's update cycle
+     */
+    @FunctionalInterface
+    public interface Cycle {
+        /**
+         * Run one cycle
+         * @return the delay before the next cycle, in milliseconds
+         */
+        long run();
+    }
+
+    private static IoTUpdateScheduler defaultScheduler = null;
+
+    /** the delay after a cycle that failed, in milliseconds */
+    private static final long RETRY_DELAY = 5000;
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final Set<Job> jobs = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a scheduler
+     * @param executor {@link IoTValues#UPDATES_VIRTUAL} to run each cycle on a virtual thread, or
+     *                 {@link IoTValues#UPDATES_POOL} for a bounded pool of platform threads
+     * @param poolSize the pool size, if a pool is used
+     */
+    public IoTUpdateScheduler(String executor, int poolSize) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "iot-update-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        if (IoTValues.UPDATES_POOL.equalsIgnoreCase(executor)) {
+            AtomicInteger count = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(Math.max(1, poolSize), r -> {
+                Thread t = new Thread(r, "iot-update-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("iot-update-", 0).factory());
+        }
+    }
+
+    /**
+     * Get the process-wide scheduler used by houses that are not given their own
+     * @return the default scheduler
+     */
+    public static synchronized IoTUpdateScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new IoTUpdateScheduler(IoTValues.UPDATES_VIRTUAL, 0);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Replace the process-wide scheduler. Call before any house connects
+     * @param executor {@link IoTValues#UPDATES_VIRTUAL} or {@link IoTValues#UPDATES_POOL}
+     * @param poolSize the pool size, if a pool is used
+     * @return the new default scheduler
+     */
+    public static synchronized IoTUpdateScheduler configureDefault(String executor, int poolSize) {
+        if (defaultScheduler != null) {
+            defaultScheduler.stop();
+        }
+        defaultScheduler = new IoTUpdateScheduler(executor, poolSize);
+        return defaultScheduler;
+    }
+
+    /**
+     * Start running a house's cycle
+     * @param name the house, for thread names and logs
+     * @param cycle the cycle
+     * @param interval the expected interval; the first cycle runs at a random offset within it
+     * @return the job, to wake or cancel it
+     */
+    public Job schedule(String name, Cycle cycle, long interval) {
+        Job job = new Job(name, cycle);
+        if (stopped) {
+            job.cancel();
+            return job;
+        }
+        jobs.add(job);
+        job.runAfter(ThreadLocalRandom.current().nextLong(Math.max(1, interval)));
+        return job;
+    }
+
+    /**
+     * Get the number of houses being updated
+     * @return the job count
+     */
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * The start hook. Threads are created on demand, so there is nothing to do
+     */
+    public void start() {
+        // nothing to do
+    }
+
+    /**
+     * The stop hook: cancel every house's cycle and stop the threads. Running cycles finish
+     */
+    public void stop() {
+        stopped = true;
+        for (Job job : jobs) {
+            job.cancel();
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * A house's place in the schedule
+     */
+    public class Job {
+        private final String name;
+        private final Cycle cycle;
+
+        /** the pending timer, guarded by this */
+        private ScheduledFuture<?> pending = null;
+        private boolean running = false;
+        private boolean again = false;
+        private boolean cancelled = false;
+
+        private Job(String name, Cycle cycle) {
+            this.name = name;
+            this.cycle = cycle;
+        }
+
+        /**
+         * Run the cycle now instead of waiting for the timer, e.g. because the house pushed a state
+         */
+        public synchronized void wakeUp() {
+            if (cancelled) {
+                return;
+            }
+            if (running) {
+                again = true;
+                return;
+            }
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+            dispatch();
+        }
+
+        /**
+         * Run the cycle within the given delay, or sooner if it was due anyway. Wake-ups that
+         * arrive while waiting share the one run
+         *
+         * @param delay the longest wait, in milliseconds
+         */
+        public synchronized void wakeUpWithin(long delay) {
+            if (delay <= 0) {
+                wakeUp();
+                return;
+            }
+            if (cancelled) {
+                return;
+            }
+            if (running) {
+                again = true;
+                return;
+            }
+            if (pending != null) {
+                if (pending.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                    return;
+                }
+                pending.cancel(false);
+                pending = null;
+            }
+            runAfter(delay);
+        }
+
+        /**
+         * Stop running the cycle. A cycle that is running finishes
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+            jobs.remove(this);
+        }
+
+        /**
+         * Check if the job was cancelled
+         * @return true once cancelled
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void runAfter(long delay) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                pending = timer.schedule(this::due, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // the scheduler stopped
+                cancelled = true;
+            }
+        }
+
+        private synchronized void due() {
+            pending = null;
+            if (!cancelled && !running) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Hand the cycle to a worker. Called with the lock held
+         */
+        private void dispatch() {
+            running = true;
+            try {
+                workers.execute(this::runCycle);
+            } catch (RejectedExecutionException ree) {
+                running = false;
+                cancelled = true;
+            }
+        }
+
+        private void runCycle() {
+            long delay;
+            try {
+                delay = cycle.run();
+            } catch (RuntimeException e) {
+                EvaluationListener listener = EvaluationListeners.getDefault();
+                if (listener.isEnabled(EvaluationListener.Level.WARN)) {
+                    listener.report(EvaluationListener.Level.WARN, "Update cycle for " + name + " failed", e);
+                }
+                delay = RETRY_DELAY;
+            }
+            synchronized (this) {
+                running = false;
+                if (again) {
+                    again = false;
+                    if (!cancelled) {
+                        dispatch();
+                    }
+                    return;
+                }
+            }
+            runAfter(delay);
+        }
+    }
+}
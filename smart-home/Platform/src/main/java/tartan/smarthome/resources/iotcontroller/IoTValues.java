@@ -31,6 +31,8 @@ public abstract class IoTValues {
     public static final String MSG_DELIM = ":";
     public static final String PARAM_EQ = "=";
     public static final String MSG_END = ".";
+    public static final String SEQ_TAG = "#";
+    public static final String CAPABILITY = "CAP";
 
     // target temperature
     public static final String TARGET_TEMP = "TT";
@@ -80,8 +82,27 @@ public abstract class IoTValues {
     public static final String GET_STATE = "GS";
     public static final String SET_STATE = "SS";
     public static final String STATE_UPDATE = "SU";
+    public static final String PUSH_UPDATE = "PU";
+    public static final String SUBSCRIBE = "SUB";
 
     public static final String SETTINGS_FILE = "settings.txt";
     public static final String USERS_DB = "users.txt";
 	public static final String AWAY_TIMER = "AW";
+
+    // house transports
+    public static final String TRANSPORT_NIO = "nio";
+    public static final String TRANSPORT_SOCKET = "socket";
+
+    // pipelining modes for the house link
+    public static final String PIPELINE_OFF = "off";
+    public static final String PIPELINE_ORDERED = "ordered";
+    public static final String PIPELINE_TAGGED = "tagged";
+
+    // framing on the house link
+    public static final String FRAMING_AUTO = "auto";
+    public static final String FRAMING_TEXT = "text";
+
+    // executors for the house update cycles
+    public static final String UPDATES_VIRTUAL = "virtual";
+    public static final String UPDATES_POOL = "pool";
 }
@@ -0,0 +1,131 @@
+package tartan.smarthome.resources;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.Random;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+class CachingTartanStateEvaluatorTest {
+
+    private static HouseState house(int temp, boolean proximity) {
+        return HouseState.builder()
+                .set(HouseState.Reading.TEMPERATURE, temp)
+                .set(HouseState.Reading.TARGET_TEMP, 70)
+                .set(HouseState.Reading.NIGHT_START, 2200)
+                .set(HouseState.Reading.NIGHT_END, 700)
+                .set(HouseState.Device.PROXIMITY, proximity)
+                .set(HouseState.Device.DOOR, false)
+                .set(HouseState.Text.ALARM_PASSCODE, "1234")
+                .build();
+    }
+
+    private static String withoutTimes(IoTEvents events) {
+        return events.toString().replaceAll("(?m)^\\[[^]]*]: ", "");
+    }
+
+    @Test
+    @DisplayName("Test: a state one house presented is answered from the cache for another, with the same events")
+    void testShared() {
+        TartanEvaluationCache cache = new TartanEvaluationCache(16);
+        CachingTartanStateEvaluator first = new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), cache);
+        CachingTartanStateEvaluator second = new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), cache);
+
+        IoTEvents firstEvents = new IoTEvents();
+        firstEvents.record(IoTEventType.DOOR_OPEN);
+        HouseState out = first.evaluateState(house(65, true), firstEvents, LocalTime.NOON);
+        IoTEvents secondEvents = new IoTEvents();
+        assertSame(out, second.evaluateState(house(65, true), secondEvents, LocalTime.NOON));
+        assertEquals(withoutTimes(firstEvents.copy(1)), withoutTimes(secondEvents),
+                "Only the evaluation's own events are kept");
+
+        assertEquals(0.0, first.getHitRate());
+        assertEquals(1, second.getHits());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    @DisplayName("Test: the clock only changes the answer across a night lock boundary")
+    void testClock() {
+        TartanEvaluationCache cache = new TartanEvaluationCache(16);
+        CachingTartanStateEvaluator evaluator = new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), cache);
+        HouseState in = house(70, true);
+
+        assertFalse(evaluator.evaluateState(in, new IoTEvents(), LocalTime.NOON).is(HouseState.Device.DOOR_LOCK));
+        assertFalse(evaluator.evaluateState(in, new IoTEvents(), LocalTime.of(21, 59)).is(HouseState.Device.DOOR_LOCK));
+        assertTrue(evaluator.evaluateState(in, new IoTEvents(), LocalTime.of(22, 1)).is(HouseState.Device.DOOR_LOCK));
+        assertTrue(evaluator.evaluateState(in, new IoTEvents(), LocalTime.of(3, 0)).is(HouseState.Device.DOOR_LOCK));
+        assertEquals(2, evaluator.getHits());
+        assertEquals(2, cache.size());
+        assertEquals(60001, evaluator.getTimeToNextChange(in, LocalTime.of(21, 59)));
+    }
+
+    @Test
+    @DisplayName("Test: the cache keeps at most its capacity, dropping the state used least recently")
+    void testBound() {
+        TartanEvaluationCache cache = new TartanEvaluationCache(2);
+        CachingTartanStateEvaluator evaluator = new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), cache);
+        evaluator.evaluateState(house(65, true), new IoTEvents(), LocalTime.NOON);
+        evaluator.evaluateState(house(66, true), new IoTEvents(), LocalTime.NOON);
+        evaluator.evaluateState(house(65, true), new IoTEvents(), LocalTime.NOON);
+        evaluator.evaluateState(house(67, true), new IoTEvents(), LocalTime.NOON);
+        assertEquals(2, cache.size());
+        assertEquals(1, evaluator.getHits());
+
+        evaluator.evaluateState(house(65, true), new IoTEvents(), LocalTime.NOON);
+        assertEquals(2, evaluator.getHits(), "Used recently, so kept");
+        evaluator.evaluateState(house(66, true), new IoTEvents(), LocalTime.NOON);
+        assertEquals(2, evaluator.getHits(), "Dropped");
+
+        TartanEvaluationCache none = new TartanEvaluationCache(0);
+        CachingTartanStateEvaluator uncached = new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), none);
+        uncached.evaluateState(house(65, true), new IoTEvents(), LocalTime.NOON);
+        uncached.evaluateState(house(65, true), new IoTEvents(), LocalTime.NOON);
+        assertEquals(0, none.size());
+        assertEquals(0, uncached.getHits());
+    }
+
+    @Test
+    @DisplayName("Test: houses sharing a small cache get what the static rules give")
+    void testSameAsStatic() {
+        StaticTartanStateEvaluator reference = new StaticTartanStateEvaluator();
+        TartanEvaluationCache cache = new TartanEvaluationCache(64);
+        CachingTartanStateEvaluator[] houses = {
+                new CachingTartanStateEvaluator(new IncrementalTartanStateEvaluator(), cache),
+                new CachingTartanStateEvaluator(new CompiledTartanStateEvaluator(), cache),
+                new CachingTartanStateEvaluator(new StaticTartanStateEvaluator(), cache) };
+        HouseState.Device[] devices = HouseState.Device.values();
+        Random random = new Random(11);
+
+        HouseState state = house(70, true);
+        LocalTime time = LocalTime.of(21, 0);
+        for (int i = 0; i < 20000; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    state = state.with(HouseState.Reading.TEMPERATURE, 67 + random.nextInt(7));
+                    break;
+                case 1:
+                    time = time.plusMinutes(random.nextInt(120));
+                    break;
+                default:
+                    HouseState.Device device = devices[random.nextInt(devices.length)];
+                    state = state.with(device, !state.is(device));
+            }
+            IoTEvents expectedEvents = new IoTEvents();
+            IoTEvents actualEvents = new IoTEvents();
+            HouseState expected = reference.evaluateState(state, expectedEvents, time);
+            HouseState actual = houses[random.nextInt(houses.length)].evaluateState(state, actualEvents, time);
+            assertEquals(expected, actual, "State for " + state + " at " + time);
+            assertEquals(withoutTimes(expectedEvents), withoutTimes(actualEvents));
+        }
+        assertTrue(cache.getHits() > 0);
+    }
+}
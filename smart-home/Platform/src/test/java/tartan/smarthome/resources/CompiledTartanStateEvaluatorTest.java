@@ -0,0 +1,101 @@
+package tartan.smarthome.resources;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEventType;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Runs every static evaluator test against the compiled rules, and compares the two on many states
+ */
+class CompiledTartanStateEvaluatorTest extends StaticTartanStateEvaluatorTest {
+
+    @Override
+    StaticTartanStateEvaluator newEvaluator() {
+        return new CompiledTartanStateEvaluator();
+    }
+
+    @Test
+    @DisplayName("Test: the compiled rules give the same state and events as the static rules")
+    void testSameAsStatic() {
+        StaticTartanStateEvaluator reference = new StaticTartanStateEvaluator();
+        CompiledTartanStateEvaluator compiled = new CompiledTartanStateEvaluator();
+        String[] passcodes = { null, "", "1234", "0000", "9999" };
+        String[] modes = { null, "Off", HouseState.HVAC_HEATER, HouseState.HVAC_CHILLER };
+        int[] nights = { 0, 2200, 700, 2500, -100, 1261 };
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            HouseState.Builder b = HouseState.builder()
+                    .set(HouseState.Reading.TEMPERATURE, 68 + random.nextInt(5))
+                    .set(HouseState.Reading.TARGET_TEMP, 70)
+                    .set(HouseState.Reading.NIGHT_START, nights[random.nextInt(nights.length)])
+                    .set(HouseState.Reading.NIGHT_END, nights[random.nextInt(nights.length)])
+                    .set(HouseState.Text.HVAC_MODE, modes[random.nextInt(modes.length)])
+                    .set(HouseState.Text.ALARM_PASSCODE, random.nextInt(10) == 0 ? null : "1234")
+                    .set(HouseState.Text.GIVEN_PASSCODE, passcodes[random.nextInt(passcodes.length)])
+                    .set(HouseState.Text.DOOR_LOCK_PASSCODE, passcodes[random.nextInt(passcodes.length)])
+                    .set(HouseState.Text.GIVEN_DOOR_LOCK_PASSCODE, passcodes[random.nextInt(passcodes.length)]);
+            for (HouseState.Device device : HouseState.Device.values()) {
+                if (random.nextInt(4) > 0) {
+                    b.set(device, random.nextBoolean());
+                }
+            }
+            HouseState in = b.build();
+            LocalTime time = LocalTime.of(random.nextInt(24), random.nextInt(60));
+
+            IoTEvents expectedEvents = new IoTEvents();
+            IoTEvents actualEvents = new IoTEvents();
+            HouseState expected;
+            try {
+                expected = reference.evaluateState(in, expectedEvents, time);
+            } catch (NullPointerException e) {
+                assertThrows(NullPointerException.class, () -> compiled.evaluateState(in, new IoTEvents(), time));
+                continue;
+            }
+            HouseState actual = compiled.evaluateState(in, actualEvents, time);
+            assertEquals(expected, actual, "State for " + in + " at " + time);
+            assertEquals(types(expectedEvents), types(actualEvents), "Events for " + in + " at " + time);
+            assertEquals(text(expectedEvents), text(actualEvents));
+        }
+    }
+
+    @Test
+    @DisplayName("Test: rules sharing few enough bits compile into one table")
+    void testStages() {
+        int a = 1, b = 2, c = 4;
+        TartanRuleEngine engine = TartanRuleEngine.compile(List.of(
+                TartanRule.named("a-sets-b").when(a).set(b).emit(IoTEventType.LIGHT_ON).build(),
+                TartanRule.named("b-clears-c").when(b).clear(c).otherwise().emit(IoTEventType.LIGHT_OFF).build()));
+        assertEquals(1, engine.getStageCount());
+
+        IoTEvents events = new IoTEvents();
+        assertEquals(a | b, engine.evaluate(a | c, 0, 0, events));
+        assertEquals(List.of(IoTEventType.LIGHT_ON), types(events));
+        events.reset();
+        assertEquals(c | 8, engine.evaluate(c | 8, 0, 0, events), "Other bits are left alone");
+        assertEquals(List.of(IoTEventType.LIGHT_OFF), types(events));
+        assertThrows(IllegalArgumentException.class, () -> TartanRule.named("bad").when(a).set(b).clear(b).build());
+    }
+
+    /** the events' text without their timestamps */
+    private static String text(IoTEvents events) {
+        return events.toString().replaceAll("(?m)^\\[[^]]*]: ", "");
+    }
+
+    private static List<IoTEventType> types(IoTEvents events) {
+        List<IoTEventType> types = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            types.add(events.getType(i));
+        }
+        return types;
+    }
+}
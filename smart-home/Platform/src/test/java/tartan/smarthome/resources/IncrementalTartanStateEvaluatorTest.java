@@ -0,0 +1,115 @@
+package tartan.smarthome.resources;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.Random;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+/**
+ * Runs every static evaluator test against the incremental evaluator, and follows one house through
+ * many small changes
+ */
+class IncrementalTartanStateEvaluatorTest extends StaticTartanStateEvaluatorTest {
+
+    @Override
+    StaticTartanStateEvaluator newEvaluator() {
+        return new IncrementalTartanStateEvaluator();
+    }
+
+    private static HouseState house(int temp, boolean proximity, int nightStart, int nightEnd) {
+        return HouseState.builder()
+                .set(HouseState.Reading.TEMPERATURE, temp)
+                .set(HouseState.Reading.TARGET_TEMP, 70)
+                .set(HouseState.Reading.NIGHT_START, nightStart)
+                .set(HouseState.Reading.NIGHT_END, nightEnd)
+                .set(HouseState.Device.PROXIMITY, proximity)
+                .set(HouseState.Device.DOOR, false)
+                .set(HouseState.Text.ALARM_PASSCODE, "1234")
+                .build();
+    }
+
+    @Test
+    @DisplayName("Test: the same state again re-fires no rule but gives the same state and events")
+    void testUnchanged() {
+        IncrementalTartanStateEvaluator evaluator = new IncrementalTartanStateEvaluator();
+        LocalTime noon = LocalTime.NOON;
+        IoTEvents first = new IoTEvents();
+        HouseState out = evaluator.evaluateState(house(68, true, 2200, 700), first, noon);
+        assertTrue(evaluator.getFiredCount() > 0);
+
+        IoTEvents again = new IoTEvents();
+        assertSame(out, evaluator.evaluateState(house(68, true, 2200, 700), again, noon));
+        assertEquals(0, evaluator.getFiredCount());
+        assertEquals(first.size(), again.size(), "The events are recorded again");
+
+        // one degree warmer but still below target: no rule sees a change
+        HouseState warmer = evaluator.evaluateState(house(69, true, 2200, 700), new IoTEvents(), noon);
+        assertEquals(0, evaluator.getFiredCount());
+        assertEquals(69, warmer.get(HouseState.Reading.TEMPERATURE));
+    }
+
+    @Test
+    @DisplayName("Test: the night lock engages when the clock says so, with the state unchanged")
+    void testClock() {
+        IncrementalTartanStateEvaluator evaluator = new IncrementalTartanStateEvaluator();
+        HouseState in = house(70, true, 2200, 700);
+        assertFalse(evaluator.evaluateState(in, new IoTEvents(), LocalTime.of(21, 59)).is(HouseState.Device.DOOR_LOCK));
+        assertTrue(evaluator.evaluateState(in, new IoTEvents(), LocalTime.of(22, 1)).is(HouseState.Device.DOOR_LOCK));
+        assertEquals(1, evaluator.getFiredCount(), "Only the stage with the night lock re-fires");
+
+        assertEquals(60001, evaluator.getTimeToNextChange(in, LocalTime.of(21, 59)));
+        assertEquals(1, evaluator.getTimeToNextChange(in, LocalTime.of(22, 0)), "The night starts just after 22:00");
+        assertEquals((8 * 60 + 59) * 60000L + 1, evaluator.getTimeToNextChange(in, LocalTime.of(22, 1)),
+                "Next is the end of the night");
+        assertEquals(Long.MAX_VALUE, evaluator.getTimeToNextChange(house(70, true, 0, 0), LocalTime.NOON));
+        assertEquals(Long.MAX_VALUE, evaluator.getTimeToNextChange(house(70, true, 2500, 700), LocalTime.NOON));
+    }
+
+    @Test
+    @DisplayName("Test: a house followed through many small changes gets what the static rules give")
+    void testSameAsStatic() {
+        StaticTartanStateEvaluator reference = new StaticTartanStateEvaluator();
+        IncrementalTartanStateEvaluator incremental = new IncrementalTartanStateEvaluator();
+        HouseState.Device[] devices = HouseState.Device.values();
+        String[] passcodes = { "", "1234", "0000" };
+        Random random = new Random(7);
+
+        HouseState state = house(70, true, 2200, 700);
+        LocalTime time = LocalTime.of(21, 0);
+        for (int i = 0; i < 20000; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    state = state.with(HouseState.Reading.TEMPERATURE, 67 + random.nextInt(7));
+                    break;
+                case 1:
+                    time = time.plusMinutes(random.nextInt(120));
+                    break;
+                case 2:
+                    state = state.with(HouseState.Text.GIVEN_PASSCODE, passcodes[random.nextInt(passcodes.length)]);
+                    break;
+                case 3:
+                    // the house reports the same again
+                    break;
+                default:
+                    HouseState.Device device = devices[random.nextInt(devices.length)];
+                    state = state.with(device, !state.is(device));
+            }
+            IoTEvents expectedEvents = new IoTEvents();
+            IoTEvents actualEvents = new IoTEvents();
+            HouseState expected = reference.evaluateState(state, expectedEvents, time);
+            HouseState actual = incremental.evaluateState(state, actualEvents, time);
+            assertEquals(expected, actual, "State for " + state + " at " + time);
+            assertEquals(expectedEvents.toString().replaceAll("(?m)^\\[[^]]*]: ", ""),
+                    actualEvents.toString().replaceAll("(?m)^\\[[^]]*]: ", ""));
+            if (random.nextInt(3) == 0) {
+                // follow the house as the controller does: the evaluated state comes back
+                state = expected;
+            }
+        }
+    }
+}
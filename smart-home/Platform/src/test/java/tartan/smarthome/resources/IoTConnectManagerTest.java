@@ -5,8 +5,11 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 class IoTConnectManagerTest {
 
@@ -18,6 +21,9 @@ class IoTConnectManagerTest {
 
         private boolean isConnected = true;
         private String lastMessageSent = "";
+        private IoTCommandLane lastLane = null;
+        private int setStateCount = 0;
+        private String acknowledgement = IoTValues.OK;
         private final Map<String, Object> simulatedState = new HashMap<>();
 
         public StubIoTConnection() {
@@ -35,12 +41,21 @@ class IoTConnectManagerTest {
                         + "AS=1" + IoTValues.MSG_END; // Use "1" for true, "0" for false
             }
             if (msg.contains(IoTValues.SET_STATE)) {
-                return IoTValues.OK;
+                setStateCount++;
+                return acknowledgement;
             }
             return null;
         }
 
-
+        @Override
+        public CompletableFuture<ByteBuffer> sendFrameAsync(ByteBuffer request, IoTCommandLane lane) {
+            lastLane = lane;
+            String response = sendMessageToHouse(IoTProtocolCodec.toText(request));
+            if (response == null) {
+                return CompletableFuture.failedFuture(new IOException("No response"));
+            }
+            return CompletableFuture.completedFuture(IoTProtocolCodec.fromText(response));
+        }
 
         @Override
         public Boolean isConnected() {
@@ -80,6 +95,101 @@ class IoTConnectManagerTest {
         assertTrue(success, "State change should return true");
     }
 
+    @Test
+    @DisplayName("Test: IoTConnectManager should send only the devices that differ from the house state")
+    void testSetStateDelta() {
+        connectManager.getState(); // DS=1, LS=0, AS=1
+
+        Map<String, Object> newState = new HashMap<>();
+        newState.put(IoTValues.DOOR_STATE, true);
+        newState.put(IoTValues.LIGHT_STATE, true);
+        newState.put(IoTValues.ALARM_STATE, true);
+        newState.put(IoTValues.TEMP_READING, 70);
+
+        assertTrue(connectManager.setState(newState));
+        assertEquals("SS:LS=1.", stubConnection.lastMessageSent, "Only the light changed");
+    }
+
+    @Test
+    @DisplayName("Test: IoTConnectManager should skip the round trip when nothing changed")
+    void testSetStateUnchanged() {
+        Map<String, Object> newState = new HashMap<>();
+        newState.put(IoTValues.LIGHT_STATE, true);
+
+        assertTrue(connectManager.setState(newState));
+        assertEquals(1, stubConnection.setStateCount);
+
+        // the change was acknowledged, so sending it again is a no-op
+        assertTrue(connectManager.setState(newState));
+        assertEquals(1, stubConnection.setStateCount, "An unchanged state should not be sent");
+
+        newState.put(IoTValues.LIGHT_STATE, false);
+        assertTrue(connectManager.setState(newState));
+        assertEquals(2, stubConnection.setStateCount);
+    }
+
+    @Test
+    @DisplayName("Test: IoTConnectManager should take the simulator's OK. as an acknowledgement")
+    void testSetStateAcknowledgedWithEnd() {
+        stubConnection.acknowledgement = IoTValues.OK + IoTValues.MSG_END;
+        Map<String, Object> newState = new HashMap<>();
+        newState.put(IoTValues.LIGHT_STATE, true);
+
+        assertTrue(connectManager.setState(newState));
+        assertTrue(connectManager.setState(newState));
+        assertEquals(1, stubConnection.setStateCount, "An acknowledged state should not be sent again");
+    }
+
+    @Test
+    @DisplayName("Test: IoTConnectManager should send security changes in their lane, past the routine rate limit")
+    void testSetStateLanes() {
+        connectManager.setRoutineRate(1, 0.001);
+        Map<String, Object> newState = new HashMap<>();
+        newState.put(IoTValues.LIGHT_STATE, true);
+        assertTrue(connectManager.setState(newState));
+        assertEquals(IoTCommandLane.ROUTINE, stubConnection.lastLane);
+        assertEquals(0, connectManager.getDeferredDelay());
+
+        // the limit is used up: the light waits, the alarm goes at once
+        newState.put(IoTValues.LIGHT_STATE, false);
+        newState.put(IoTValues.ALARM_STATE, true);
+        assertTrue(connectManager.setState(newState));
+        assertEquals("SS:AS=1.", stubConnection.lastMessageSent);
+        assertEquals(IoTCommandLane.SECURITY, stubConnection.lastLane);
+        assertTrue(connectManager.getDeferredDelay() > 0, "The light change is held back");
+
+        // the held back light is still pending, so it goes with the next change once allowed
+        connectManager.setRoutineRate(1, 0);
+        newState.put(IoTValues.DOOR_LOCK_STATE, true);
+        assertTrue(connectManager.setState(newState));
+        assertEquals(IoTCommandLane.SECURITY, stubConnection.lastLane);
+        assertTrue(stubConnection.lastMessageSent.contains("LS=0"));
+        assertTrue(stubConnection.lastMessageSent.contains("DLS=1"));
+        assertEquals(0, connectManager.getDeferredDelay());
+    }
+
+    @Test
+    @DisplayName("Test: IoTConnectManager should drop a held back device that a later state sets back to the house's value")
+    void testSetStateDeferredOverridden() {
+        connectManager.getState(); // DS=1, LS=0, AS=1
+        connectManager.setRoutineRate(1, 0.001);
+        Map<String, Object> newState = new HashMap<>();
+        newState.put(IoTValues.HEATER_STATE, true);
+        assertTrue(connectManager.setState(newState));
+
+        // the limit is used up, so the light is held back
+        newState.put(IoTValues.LIGHT_STATE, true);
+        assertTrue(connectManager.setState(newState));
+        assertTrue(connectManager.getDeferred().is(HouseState.Device.LIGHT));
+
+        // the light is wanted off again, as the house has it, while the door locks
+        newState.put(IoTValues.LIGHT_STATE, false);
+        newState.put(IoTValues.DOOR_LOCK_STATE, true);
+        assertTrue(connectManager.setState(newState));
+        assertEquals("SS:DLS=1.", stubConnection.lastMessageSent, "The held back light must not be sent");
+        assertEquals(HouseState.EMPTY, connectManager.getDeferred());
+    }
+
     @Test
     @DisplayName("Test: IoTConnectManager should return false for failed setState")
     void testSetStateFailure() {
@@ -18,10 +18,15 @@ class StaticTartanStateEvaluatorTest {
     private Map<String, Object> inState;
     private StringBuffer log;
 
+    /** the evaluator under test; subclasses run the same rules against another implementation */
+    StaticTartanStateEvaluator newEvaluator() {
+        return new StaticTartanStateEvaluator();
+    }
+
     @BeforeEach
     void setUp() {
         // Common setup for all tests
-        evaluator = new StaticTartanStateEvaluator();
+        evaluator = newEvaluator();
         inState = new HashMap<>();
         log = new StringBuffer();
 
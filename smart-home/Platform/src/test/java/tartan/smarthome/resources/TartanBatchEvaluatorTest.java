@@ -0,0 +1,92 @@
+package tartan.smarthome.resources;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.IoTEvents;
+
+class TartanBatchEvaluatorTest {
+
+    private static HouseState[] fleet(int size, Random random) {
+        HouseState.Device[] devices = HouseState.Device.values();
+        String[] passcodes = { "", "1234", "0000" };
+        HouseState[] states = new HouseState[size];
+        for (int i = 0; i < size; i++) {
+            HouseState.Builder state = HouseState.builder()
+                    .set(HouseState.Reading.TEMPERATURE, 67 + random.nextInt(7))
+                    .set(HouseState.Reading.TARGET_TEMP, 70)
+                    .set(HouseState.Reading.NIGHT_START, 2200)
+                    .set(HouseState.Reading.NIGHT_END, 700);
+            if (random.nextInt(10) > 0) {
+                state.set(HouseState.Text.ALARM_PASSCODE, "1234")
+                        .set(HouseState.Text.GIVEN_PASSCODE, passcodes[random.nextInt(passcodes.length)]);
+            }
+            for (HouseState.Device device : devices) {
+                state.set(device, random.nextBoolean());
+            }
+            states[i] = state.build();
+        }
+        return states;
+    }
+
+    @Test
+    @DisplayName("Test: a batch split across threads gives each house what evaluating it alone gives")
+    void testSameAsSingle() {
+        HouseState[] states = fleet(5 * TartanBatchEvaluator.SPLIT_THRESHOLD + 7, new Random(3));
+        IoTEvents[] events = new IoTEvents[states.length];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new IoTEvents();
+        }
+        LocalTime time = LocalTime.of(23, 30);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            TartanBatchEvaluator.Result result = new TartanBatchEvaluator(pool).evaluate(states, events, time);
+            TartanBatchEvaluator.Result quiet = new TartanBatchEvaluator(pool).evaluate(states, time);
+            assertEquals(states.length, result.size());
+
+            CompiledTartanStateEvaluator single = new CompiledTartanStateEvaluator();
+            int changed = 0;
+            for (int i = 0; i < states.length; i++) {
+                IoTEvents expectedEvents = new IoTEvents();
+                HouseState expected = single.evaluateState(states[i], expectedEvents, time);
+                assertEquals(expected, result.getStates()[i], "State for " + states[i]);
+                assertEquals(expected, quiet.getStates()[i]);
+                assertEquals(expectedEvents.toString().replaceAll("(?m)^\\[[^]]*]: ", ""),
+                        events[i].toString().replaceAll("(?m)^\\[[^]]*]: ", ""));
+
+                int change = 0;
+                for (HouseState.Device device : HouseState.Device.values()) {
+                    if (states[i].is(device) != expected.is(device)) {
+                        change |= device.getBit();
+                    }
+                }
+                assertEquals(Integer.valueOf(change), Integer.valueOf(result.getChanges()[i]));
+                if (change != 0) {
+                    changed++;
+                }
+            }
+            assertEquals(Integer.valueOf(changed), Integer.valueOf(result.getChangedCount()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Test: a batch needs one event recorder per house, and every reading the rules use")
+    void testInvalid() {
+        HouseState[] states = fleet(3, new Random(5));
+        TartanBatchEvaluator evaluator = new TartanBatchEvaluator();
+        assertThrows(IllegalArgumentException.class,
+                () -> evaluator.evaluate(states, new IoTEvents[2], LocalTime.NOON));
+
+        HouseState[] missing = { states[0], HouseState.builder().set(HouseState.Reading.TEMPERATURE, 70).build() };
+        assertThrows(NullPointerException.class, () -> evaluator.evaluate(missing, LocalTime.NOON));
+        assertEquals(0, evaluator.evaluate(new HouseState[0], LocalTime.NOON).size());
+    }
+}
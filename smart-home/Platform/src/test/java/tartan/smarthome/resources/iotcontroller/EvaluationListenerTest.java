@@ -0,0 +1,94 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+
+class EvaluationListenerTest {
+
+    /** keeps what it hears at or above a level, and counts every report it is given */
+    private static final class Recorder implements EvaluationListener {
+        final Level threshold;
+        final List<String> heard = new ArrayList<>();
+        int reports = 0;
+
+        Recorder(Level threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return threshold != null && level.compareTo(threshold) >= 0;
+        }
+
+        @Override
+        public synchronized void report(Level level, String message, Throwable error) {
+            reports++;
+            heard.add(level + " " + message);
+        }
+    }
+
+    private static HouseState house() {
+        return HouseState.builder()
+                .set(HouseState.Reading.TEMPERATURE, 70)
+                .set(HouseState.Reading.TARGET_TEMP, 70)
+                .set(HouseState.Reading.NIGHT_START, 0)
+                .set(HouseState.Reading.NIGHT_END, 0)
+                .set(HouseState.Text.ALARM_PASSCODE, "1234")
+                .build();
+    }
+
+    @Test
+    @DisplayName("Test: the evaluator reports only at the levels its listener hears")
+    void testLevels() {
+        StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator();
+        Recorder debug = new Recorder(EvaluationListener.Level.DEBUG);
+        evaluator.setListener(debug);
+        evaluator.evaluateState(house(), new IoTEvents());
+        assertEquals(List.of("DEBUG Evaluating new state statically"), debug.heard);
+
+        Recorder quiet = new Recorder(EvaluationListener.Level.INFO);
+        evaluator.setListener(quiet);
+        evaluator.evaluateState(house(), new IoTEvents());
+        assertEquals(0, quiet.reports, "A level that is off is never reported");
+    }
+
+    @Test
+    @DisplayName("Test: the house controller's problems go to its event log, from the level chosen")
+    void testEventLog() {
+        IoTControlManager controller = new IoTControlManager("user", "pass", new StaticTartanStateEvaluator());
+        controller.setListener(new EventLogEvaluationListener(controller, EvaluationListener.Level.INFO));
+        controller.loadUsers();
+        List<String> log = controller.getLogMessages();
+        assertEquals(1, log.size());
+        assertTrue(log.get(0).contains("Could not load the registered users: java.io."), log.get(0));
+
+        EvaluationListener events = new EventLogEvaluationListener(controller, EvaluationListener.Level.INFO);
+        assertFalse(events.isEnabled(EvaluationListener.Level.DEBUG));
+        events.report(EvaluationListener.Level.DEBUG, "Requesting state");
+        assertEquals(1, controller.getLogMessages().size());
+    }
+
+    @Test
+    @DisplayName("Test: until one is configured the process-wide listener hears nothing")
+    void testDefault() {
+        EvaluationListener previous = EvaluationListeners.getDefault();
+        try {
+            Recorder recorder = new Recorder(EvaluationListener.Level.WARN);
+            EvaluationListeners.setDefault(recorder);
+            assertSame(recorder, EvaluationListeners.getDefault());
+            EvaluationListeners.setDefault(null);
+            assertSame(EvaluationListeners.none(), EvaluationListeners.getDefault());
+            for (EvaluationListener.Level level : EvaluationListener.Level.values()) {
+                assertFalse(EvaluationListeners.none().isEnabled(level));
+            }
+        } finally {
+            EvaluationListeners.setDefault(previous);
+        }
+    }
+}
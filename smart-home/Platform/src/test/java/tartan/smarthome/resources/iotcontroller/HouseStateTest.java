@@ -0,0 +1,110 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class HouseStateTest {
+
+    @Test
+    @DisplayName("Test: with() returns a new state and leaves the original unchanged")
+    void testWithIsImmutable() {
+        HouseState off = HouseState.EMPTY.with(HouseState.Device.LIGHT, false);
+        HouseState on = off.with(HouseState.Device.LIGHT, true).with(HouseState.Reading.TEMPERATURE, 70);
+
+        assertFalse(off.is(HouseState.Device.LIGHT));
+        assertFalse(off.has(HouseState.Reading.TEMPERATURE));
+        assertTrue(on.is(HouseState.Device.LIGHT));
+        assertEquals(70, on.get(HouseState.Reading.TEMPERATURE));
+        assertSame(on, on.with(HouseState.Device.LIGHT, true), "An unchanged value should not copy the state");
+    }
+
+    @Test
+    @DisplayName("Test: unset values are distinguished from false and zero")
+    void testUnsetValues() {
+        HouseState state = HouseState.EMPTY.with(HouseState.Device.DOOR, false);
+        assertTrue(state.has(HouseState.Device.DOOR));
+        assertFalse(state.has(HouseState.Device.LIGHT));
+        assertFalse(state.is(HouseState.Device.LIGHT));
+        assertNull(state.get(HouseState.Text.ALARM_PASSCODE));
+        assertFalse(state.toMap().containsKey(IoTValues.LIGHT_STATE));
+    }
+
+    @Test
+    @DisplayName("Test: merge() overlays only the values the other state sets, like Map.putAll")
+    void testMerge() {
+        HouseState house = HouseState.builder()
+                .set(HouseState.Device.LIGHT, true)
+                .set(HouseState.Device.DOOR, true)
+                .set(HouseState.Reading.TEMPERATURE, 68)
+                .set(HouseState.Text.HVAC_MODE, HouseState.HVAC_HEATER)
+                .build();
+        HouseState update = HouseState.EMPTY.with(HouseState.Device.LIGHT, false).with(HouseState.Reading.TARGET_TEMP, 72);
+
+        HouseState merged = house.merge(update);
+        assertFalse(merged.is(HouseState.Device.LIGHT));
+        assertTrue(merged.is(HouseState.Device.DOOR));
+        assertEquals(68, merged.get(HouseState.Reading.TEMPERATURE));
+        assertEquals(72, merged.get(HouseState.Reading.TARGET_TEMP));
+        assertEquals(HouseState.HVAC_HEATER, merged.get(HouseState.Text.HVAC_MODE));
+
+        Map<String, Object> expected = house.toMap();
+        expected.putAll(update.toMap());
+        assertEquals(expected, merged.toMap());
+    }
+
+    @Test
+    @DisplayName("Test: the Map form round trips; unknown keys and null values are dropped")
+    void testMapRoundTrip() {
+        Map<String, Object> map = new HashMap<>();
+        map.put(IoTValues.TEMP_READING, 70);
+        map.put(IoTValues.HUMIDITY_READING, 40);
+        map.put(IoTValues.ALARM_DELAY, 30);
+        map.put(IoTValues.DOOR_STATE, true);
+        map.put(IoTValues.AWAY_TIMER, false);
+        map.put(IoTValues.HVAC_MODE, "Off");
+        map.put(IoTValues.ALARM_PASSCODE, "1234");
+        map.put(IoTValues.LIGHT_STATE, null);
+        map.put("UNKNOWN_KEY", true);
+
+        HouseState state = HouseState.fromMap(map);
+        map.remove(IoTValues.LIGHT_STATE);
+        map.remove("UNKNOWN_KEY");
+        assertEquals(map, state.toMap());
+        assertEquals(state, HouseState.fromMap(state.toMap()));
+        assertEquals(state.hashCode(), HouseState.fromMap(state.toMap()).hashCode());
+    }
+
+    @Test
+    @DisplayName("Test: each device owns one bit of the flags")
+    void testDeviceFlags() {
+        HouseState state = HouseState.EMPTY
+                .with(HouseState.Device.DOOR, true)
+                .with(HouseState.Device.AWAY_TIMER, true)
+                .with(HouseState.Device.LIGHT, false);
+        assertEquals(HouseState.Device.DOOR.getBit() | HouseState.Device.AWAY_TIMER.getBit(), state.getDeviceFlags());
+        assertEquals(state.getDeviceFlags() | HouseState.Device.LIGHT.getBit(), state.getDevicesSet());
+    }
+
+    @Test
+    @DisplayName("Test: deviceChanges() keeps only the masked devices that are new or different")
+    void testDeviceChanges() {
+        HouseState house = HouseState.EMPTY
+                .with(HouseState.Device.DOOR, true)
+                .with(HouseState.Device.LIGHT, false);
+        HouseState target = house
+                .with(HouseState.Device.LIGHT, true)
+                .with(HouseState.Device.ALARM, false)
+                .with(HouseState.Device.AWAY_TIMER, true)
+                .with(HouseState.Reading.TARGET_TEMP, 70);
+        int mask = ~HouseState.Device.AWAY_TIMER.getBit();
+
+        HouseState delta = target.deviceChanges(house, mask);
+        assertEquals(HouseState.EMPTY.with(HouseState.Device.LIGHT, true).with(HouseState.Device.ALARM, false), delta);
+        assertSame(HouseState.EMPTY, house.deviceChanges(house, mask));
+        assertSame(HouseState.EMPTY, house.merge(delta).deviceChanges(house.merge(delta), mask));
+    }
+}
@@ -0,0 +1,48 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class IoTAdaptivePollPolicyTest {
+
+    private final IoTAdaptivePollPolicy policy = new IoTAdaptivePollPolicy(1000, 5000, 60000);
+
+    private static HouseState quiet() {
+        return IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText(
+                "SU:TR=70;HR=40;DS=0;LS=1;PS=1;AS=1;AA=0;HES=0;CHS=0;HUS=0;IS=0;PP=1;DLS=1."));
+    }
+
+    @Test
+    @DisplayName("Test: an unchanged house is polled less and less often, up to the ceiling")
+    void testBackoff() {
+        HouseState state = quiet();
+        long interval = policy.getInitialInterval();
+        assertEquals(5000, interval);
+
+        interval = policy.nextInterval(null, state, false, interval);
+        assertEquals(5000, interval, "The first poll has nothing to compare with");
+
+        long[] expected = { 10000, 20000, 40000, 60000, 60000 };
+        for (long e : expected) {
+            interval = policy.nextInterval(state, quiet(), false, interval);
+            assertEquals(e, interval);
+        }
+
+        HouseState changed = state.with(HouseState.Device.LIGHT, false);
+        assertEquals(5000, policy.nextInterval(state, changed, false, interval), "A change resets the backoff");
+    }
+
+    @Test
+    @DisplayName("Test: an open door, a sounding alarm, an intruder or the away timer shorten the interval")
+    void testActive() {
+        HouseState state = quiet();
+        assertEquals(1000, policy.nextInterval(state, state.with(HouseState.Device.DOOR, true), false, 60000));
+        assertEquals(1000, policy.nextInterval(state, state.with(HouseState.Device.ALARM_ACTIVE, true), false, 60000));
+        assertEquals(1000, policy.nextInterval(state, state.with(HouseState.Device.INTRUDER, true), false, 60000));
+        assertEquals(1000, policy.nextInterval(state, state, true, 60000));
+
+        // once things calm down, polling starts again from the base interval
+        assertEquals(5000, policy.nextInterval(state, state, false, 1000));
+    }
+}
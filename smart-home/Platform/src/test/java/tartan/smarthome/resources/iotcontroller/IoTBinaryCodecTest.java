@@ -0,0 +1,67 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+class IoTBinaryCodecTest {
+
+    private static HouseState fullState() {
+        return IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText(
+                "SU:TR=65;HR=-3;DS=1;LS=0;PS=1;AS=0;AA=0;HES=0;CHS=1;HM=1;HUS=0;IS=0;PP=1;DLS=1."));
+    }
+
+    @Test
+    @DisplayName("Test: a state update survives a binary round trip and is far smaller than the text form")
+    void testStateUpdateRoundTrip() {
+        HouseState state = fullState();
+        ByteBuffer out = ByteBuffer.allocate(IoTBinaryCodec.MAX_MESSAGE_SIZE);
+        int size = IoTBinaryCodec.encodeStateUpdate(state, out);
+        out.flip();
+
+        assertEquals(IoTBinaryCodec.STATE_UPDATE, out.get(0));
+        assertTrue(size <= 12, "A full state update should take about a dozen bytes, not " + size);
+        assertEquals(state, IoTBinaryCodec.decodeStateUpdate(out));
+        assertEquals(0, out.position(), "Decoding must not move the buffer");
+    }
+
+    @Test
+    @DisplayName("Test: a state change carries only the devices a house accepts and no readings")
+    void testSetState() {
+        ByteBuffer out = ByteBuffer.allocate(IoTBinaryCodec.MAX_MESSAGE_SIZE);
+        IoTBinaryCodec.encodeSetState(fullState(), out);
+        out.flip();
+
+        assertEquals(IoTBinaryCodec.SET_STATE, out.get(0));
+        Map<String, Object> decoded = IoTBinaryCodec.decodeState(out).toMap();
+        assertFalse(decoded.containsKey(IoTValues.TEMP_READING));
+        assertFalse(decoded.containsKey(IoTValues.PROXIMITY_STATE));
+        assertEquals(true, decoded.get(IoTValues.DOOR_LOCK_STATE));
+        assertEquals(false, decoded.get(IoTValues.LIGHT_STATE));
+        assertNull(IoTBinaryCodec.decodeStateUpdate(out), "A state change is not a state update");
+    }
+
+    @Test
+    @DisplayName("Test: truncated and unknown messages are rejected")
+    void testMalformed() {
+        assertNull(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.wrap(new byte[] { IoTBinaryCodec.STATE_UPDATE, (byte) 0x81 })));
+        assertNull(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.wrap(new byte[] { 0x7F, 0, 0, 0 })));
+        assertNull(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.allocate(0)));
+        assertTrue(IoTBinaryCodec.isOk(ByteBuffer.wrap(new byte[] { IoTBinaryCodec.OK })));
+        assertFalse(IoTBinaryCodec.isOk(ByteBuffer.wrap(new byte[] { IoTBinaryCodec.OK, 0 })));
+    }
+
+    @Test
+    @DisplayName("Test: only a house that echoes the capability accepts binary framing")
+    void testAcceptsBinary() {
+        assertEquals("GS:CAP=1.", IoTProtocolCodec.toText(IoTBinaryCodec.CAPABILITY_OFFER));
+        assertTrue(IoTBinaryCodec.acceptsBinary(IoTProtocolCodec.fromText("SU:CAP=1;TR=70.")));
+        assertTrue(IoTBinaryCodec.acceptsBinary(IoTProtocolCodec.fromText("SU:CAP=1")));
+        assertFalse(IoTBinaryCodec.acceptsBinary(IoTProtocolCodec.fromText("SU:TR=70;HR=50.")));
+        assertFalse(IoTBinaryCodec.acceptsBinary(IoTProtocolCodec.fromText("SU:CAP=12.")));
+        assertFalse(IoTBinaryCodec.acceptsBinary(null));
+    }
+}
@@ -0,0 +1,65 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class IoTCircuitBreakerTest {
+
+    @Test
+    @DisplayName("Test: the breaker opens after enough failures in a row, and a success resets the count")
+    void testOpen() {
+        IoTCircuitBreaker breaker = new IoTCircuitBreaker(3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(IoTCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getProbeDelay() > 0);
+    }
+
+    @Test
+    @DisplayName("Test: once the open time passes one probe goes through; its outcome closes or reopens the breaker")
+    void testProbe() throws Exception {
+        IoTCircuitBreaker breaker = new IoTCircuitBreaker(1, 50);
+        breaker.recordFailure();
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest(), "The probe goes through");
+        assertEquals(IoTCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(), "Only one probe at a time");
+
+        breaker.recordFailure();
+        assertEquals(IoTCircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertTrue(breaker.isClosed());
+        assertEquals(0, breaker.getProbeDelay());
+    }
+
+    @Test
+    @DisplayName("Test: while a probe is out the caller waits, and a probe that never comes back reopens the breaker")
+    void testLostProbe() throws Exception {
+        IoTCircuitBreaker breaker = new IoTCircuitBreaker(1, 50);
+        breaker.recordFailure();
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.getProbeDelay() > 0, "Waiting on a probe must not spin");
+
+        Thread.sleep(100);
+        assertFalse(breaker.allowRequest());
+        assertEquals(IoTCircuitBreaker.State.OPEN, breaker.getState(), "The lost probe counts as failed");
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest(), "The next round gets a probe of its own");
+    }
+}
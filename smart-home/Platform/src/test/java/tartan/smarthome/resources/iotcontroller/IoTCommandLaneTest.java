@@ -0,0 +1,101 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+class IoTCommandLaneTest {
+
+    /** a transport that records requests and answers them when the test says so */
+    private static class HeldTransport implements IoTTransport {
+        final List<String> sent = new ArrayList<>();
+        final List<CompletableFuture<ByteBuffer>> pending = new ArrayList<>();
+
+        @Override
+        public Boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public Boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public String sendMessageToHouse(String msg) {
+            return null;
+        }
+
+        @Override
+        public synchronized CompletableFuture<ByteBuffer> sendFrame(ByteBuffer request) {
+            sent.add(IoTProtocolCodec.toText(request));
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        }
+
+        @Override
+        public void setDeadlines(long connectMillis, long readMillis, long writeMillis) {
+        }
+
+        @Override
+        public void setConnectionListener(IoTConnectionListener listener) {
+        }
+
+        void answer(int i) {
+            CompletableFuture<ByteBuffer> response;
+            synchronized (this) {
+                response = pending.get(i);
+            }
+            response.complete(IoTProtocolCodec.fromText(IoTValues.OK));
+        }
+    }
+
+    @Test
+    @DisplayName("Test: a change goes in the security lane if it touches the alarm, the door lock or the intruder flag")
+    void testOf() {
+        assertEquals(IoTCommandLane.ROUTINE, IoTCommandLane.of(HouseState.EMPTY.with(HouseState.Device.LIGHT, true)));
+        assertEquals(IoTCommandLane.SECURITY, IoTCommandLane.of(HouseState.EMPTY
+                .with(HouseState.Device.LIGHT, true)
+                .with(HouseState.Device.DOOR_LOCK, false)));
+        assertEquals(IoTCommandLane.SECURITY, IoTCommandLane.of(HouseState.EMPTY.with(HouseState.Device.ALARM_ACTIVE, true)));
+    }
+
+    @Test
+    @DisplayName("Test: while the link is busy, a waiting security request goes before earlier routine ones")
+    void testSecurityFirst() {
+        HeldTransport transport = new HeldTransport();
+        IoTConnection conn = new IoTConnection("127.0.0.1", 5050, transport);
+
+        CompletableFuture<ByteBuffer> first = conn.sendFrameAsync(IoTProtocolCodec.fromText("SS:LS=1."));
+        CompletableFuture<ByteBuffer> routine = conn.sendFrameAsync(IoTProtocolCodec.fromText("SS:HES=1."));
+        CompletableFuture<ByteBuffer> security = conn.sendFrameAsync(IoTProtocolCodec.fromText("SS:AS=1."),
+                IoTCommandLane.SECURITY);
+        assertEquals(List.of("SS:LS=1."), transport.sent, "One request at a time");
+        assertEquals(1, conn.getQueueDepth(IoTCommandLane.ROUTINE));
+        assertEquals(1, conn.getQueueDepth(IoTCommandLane.SECURITY));
+
+        transport.answer(0);
+        assertTrue(first.isDone());
+        assertEquals(List.of("SS:LS=1.", "SS:AS=1."), transport.sent);
+        assertEquals(0, conn.getQueueDepth(IoTCommandLane.SECURITY));
+
+        transport.answer(1);
+        assertTrue(security.isDone());
+        assertFalse(routine.isDone());
+        transport.answer(2);
+        assertTrue(routine.isDone());
+        assertEquals(List.of("SS:LS=1.", "SS:AS=1.", "SS:HES=1."), transport.sent);
+        assertEquals(0, conn.getQueueDepth(IoTCommandLane.ROUTINE));
+        assertTrue(conn.getQueueWait(IoTCommandLane.ROUTINE) >= 0);
+    }
+}
@@ -0,0 +1,120 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class IoTConnectionSupervisorTest {
+
+    private ServerSocket server;
+    private IoTEventLoopGroup group;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0);
+        group = new IoTEventLoopGroup(1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+        group.shutdown();
+    }
+
+    @Test
+    @DisplayName("Test: backoff delays stay under a doubling cap and never exceed the maximum")
+    void testBackoff() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long cap = Math.min(1000, 100L << Math.min(attempt, 30));
+            for (int i = 0; i < 50; i++) {
+                long delay = IoTConnectionSupervisor.backoff(attempt, 100, 1000);
+                assertTrue(delay >= 0 && delay <= cap, "Delay " + delay + " outside [0, " + cap + "]");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test: houses started together make their first connects spread over the base delay")
+    void testFirstConnectSpread() throws Exception {
+        int houses = 20;
+        List<Long> attempts = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch made = new CountDownLatch(houses);
+        IoTConnectionSupervisor[] supervisors = new IoTConnectionSupervisor[houses];
+        for (int i = 0; i < houses; i++) {
+            IoTConnection conn = new IoTConnection("127.0.0.1", server.getLocalPort(),
+                    new IoTNioTransport("127.0.0.1", server.getLocalPort(), group)) {
+                @Override
+                public CompletableFuture<Boolean> connectAsync() {
+                    attempts.add(System.nanoTime());
+                    made.countDown();
+                    return CompletableFuture.completedFuture(true);
+                }
+            };
+            supervisors[i] = new IoTConnectionSupervisor(conn, 400, 1000, null);
+            assertFalse(supervisors[i].start());
+        }
+        assertTrue(made.await(5, TimeUnit.SECONDS));
+        long spread = Collections.max(attempts) - Collections.min(attempts);
+        assertTrue(spread > TimeUnit.MILLISECONDS.toNanos(100), "First connects within " + spread + " ns");
+        for (IoTConnectionSupervisor supervisor : supervisors) {
+            supervisor.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Test: the supervisor reconnects after the house drops the link")
+    void testReconnect() throws Exception {
+        BlockingQueue<IoTConnectionState> states = new LinkedBlockingQueue<>();
+        IoTConnection conn = new IoTConnection("127.0.0.1", server.getLocalPort(),
+                new IoTNioTransport("127.0.0.1", server.getLocalPort(), group));
+        IoTConnectionSupervisor supervisor = new IoTConnectionSupervisor(conn, 50, 200, states::add);
+
+        assertFalse(supervisor.start(), "The first connect is made in the background");
+        Socket first = server.accept();
+        assertEquals(IoTConnectionState.CONNECTED, states.poll(5, TimeUnit.SECONDS));
+
+        first.close();
+        assertEquals(IoTConnectionState.DISCONNECTED, states.poll(5, TimeUnit.SECONDS));
+
+        Socket second = server.accept();
+        assertEquals(IoTConnectionState.CONNECTED, states.poll(5, TimeUnit.SECONDS));
+        assertTrue(conn.isConnected());
+
+        supervisor.stop();
+        assertEquals(IoTConnectionState.CLOSED, states.poll(5, TimeUnit.SECONDS));
+        second.close();
+    }
+
+    @Test
+    @DisplayName("Test: a house that is down at startup is connected once it comes up")
+    void testInitialConnectRetried() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+
+        BlockingQueue<IoTConnectionState> states = new LinkedBlockingQueue<>();
+        IoTConnection conn = new IoTConnection("127.0.0.1", port, new IoTNioTransport("127.0.0.1", port, group));
+        IoTConnectionSupervisor supervisor = new IoTConnectionSupervisor(conn, 50, 200, states::add);
+
+        assertFalse(supervisor.start());
+        server = new ServerSocket(port);
+        Socket s = server.accept();
+        assertEquals(IoTConnectionState.CONNECTED, states.poll(5, TimeUnit.SECONDS));
+
+        supervisor.stop();
+        s.close();
+    }
+}
@@ -0,0 +1,126 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+
+class IoTControlManagerTest {
+
+    private ServerSocket server;
+    private Thread house;
+    private IoTControlManager controller;
+
+    // the state changes the house was sent, in order
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    /**
+     * A house that answers like the simulator: an occupied house with the light on, the door closed
+     * and the temperature at its target, which the rules leave alone
+     */
+    private void serve() {
+        Map<String, String> state = new LinkedHashMap<>();
+        for (String key : new String[] { IoTValues.DOOR_STATE, IoTValues.DOOR_LOCK_STATE, IoTValues.ALARM_STATE,
+                IoTValues.ALARM_ACTIVE, IoTValues.HUMIDIFIER_STATE, IoTValues.HEATER_STATE,
+                IoTValues.CHILLER_STATE, IoTValues.INTRUDER_STATE, IoTValues.PHONE_PROXIMITY }) {
+            state.put(key, "0");
+        }
+        state.put(IoTValues.LIGHT_STATE, "1");
+        state.put(IoTValues.PROXIMITY_STATE, "1");
+        state.put(IoTValues.TEMP_READING, "70");
+        state.put(IoTValues.HUMIDITY_READING, "40");
+
+        try (Socket s = server.accept()) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            StringBuilder msg = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                if (c != IoTValues.MSG_END.charAt(0)) {
+                    msg.append((char) c);
+                    continue;
+                }
+                String request = msg.toString();
+                msg.setLength(0);
+                String reply;
+                if (request.startsWith(IoTValues.SET_STATE)) {
+                    changes.add(request + IoTValues.MSG_END);
+                    for (String param : request.substring(3).split(IoTValues.PARAM_DELIM)) {
+                        String[] kv = param.split(IoTValues.PARAM_EQ);
+                        state.put(kv[0], kv[1]);
+                    }
+                    reply = IoTValues.OK + IoTValues.MSG_END;
+                } else {
+                    StringBuilder su = new StringBuilder(IoTValues.STATE_UPDATE + IoTValues.MSG_DELIM);
+                    state.forEach((k, v) -> su.append(k).append(IoTValues.PARAM_EQ).append(v).append(IoTValues.PARAM_DELIM));
+                    su.setLength(su.length() - 1);
+                    reply = su + IoTValues.MSG_END;
+                }
+                out.write((reply + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the test is over
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0);
+        house = new Thread(this::serve);
+        house.start();
+        controller = new IoTControlManager("user", "pass", new StaticTartanStateEvaluator());
+        controller.updateSettings(Map.of(IoTValues.TARGET_TEMP, 70, IoTValues.NIGHT_START, 0, IoTValues.NIGHT_END, 0));
+        controller.setPushUpdates(false, 0);
+        controller.setFraming(IoTValues.FRAMING_TEXT);
+        controller.setUpdateWindow(0);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        controller.disconnectFromHouse();
+        server.close();
+        house.join(5000);
+    }
+
+    @Test
+    @DisplayName("Test: a routine change held back by the rate limit is not reported as accepted, and a later cycle sends it")
+    void testDeferredRoutineChange() throws Exception {
+        controller.setRoutineRate(1, 0.5);
+        controller.connectToHouse("127.0.0.1", server.getLocalPort(), "user", "pass");
+        for (int i = 0; i < 100 && !controller.isConnected(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(controller.isConnected());
+
+        HouseState opened = controller.submitStateUpdate(Map.of(IoTValues.DOOR_STATE, true)).get(10, TimeUnit.SECONDS);
+        assertTrue(opened.is(HouseState.Device.DOOR));
+        assertEquals("SS:DS=1.", changes.poll(5, TimeUnit.SECONDS));
+
+        // the limit is used up, so closing the door waits
+        HouseState closed = controller.submitStateUpdate(Map.of(IoTValues.DOOR_STATE, false)).get(10, TimeUnit.SECONDS);
+        assertTrue(closed.is(HouseState.Device.DOOR), "The house has not accepted the door closing yet");
+
+        // no one asks again, but a later cycle closes the door once the limit allows
+        assertEquals("SS:DS=0.", changes.poll(10, TimeUnit.SECONDS));
+        assertNull(changes.poll(500, TimeUnit.MILLISECONDS), "The door is closed only once");
+    }
+}
@@ -0,0 +1,65 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+class IoTEventLogTest {
+
+    @Test
+    @DisplayName("Test: a full log keeps only the newest entries, oldest first")
+    void testWrap() {
+        IoTEventLog log = new IoTEventLog(3);
+        assertEquals(-1, log.getSequence());
+        assertTrue(log.snapshot().isEmpty());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, log.add("e" + i));
+        }
+        assertEquals(4, log.getSequence());
+        assertEquals(Arrays.asList("e2", "e3", "e4"), log.snapshot());
+    }
+
+    @Test
+    @DisplayName("Test: a reader gets only the entries it has not seen")
+    void testSince() {
+        IoTEventLog log = new IoTEventLog(4);
+        log.add("a");
+        long seen = log.add("b");
+        log.add("c");
+
+        assertEquals(Arrays.asList("c"), log.since(seen));
+        assertTrue(log.since(log.getSequence()).isEmpty());
+
+        // entries that were replaced before the reader got to them are gone
+        for (int i = 0; i < 10; i++) {
+            log.add("x" + i);
+        }
+        assertEquals(4, log.since(seen).size());
+    }
+
+    @Test
+    @DisplayName("Test: concurrent writers never lose the newest entries")
+    void testConcurrentWriters() throws Exception {
+        IoTEventLog log = new IoTEventLog(64);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    log.add("entry");
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+
+        assertEquals(40000 - 1, log.getSequence());
+        List<String> entries = log.snapshot();
+        assertEquals(64, entries.size());
+    }
+}
@@ -0,0 +1,73 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class IoTEventsTest {
+
+    @Test
+    @DisplayName("Test: events format as timestamped lines with their arguments")
+    void testFormat() {
+        IoTEvents events = new IoTEvents();
+        events.record(IoTEventType.LIGHT_ON);
+        events.record(IoTEventType.HEATER_ON, 70, 65);
+        events.record(IoTEventType.UNKNOWN_KEY, "XX");
+
+        String[] lines = events.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].matches("\\[[A-Za-z]{3} \\d{2},\\d{4} \\d{2}:\\d{2}\\]: Light on"), lines[0]);
+        assertTrue(lines[1].endsWith("]: Turning on heater, target temperature = 70F, current temperature = 65F"), lines[1]);
+        assertTrue(lines[2].endsWith("]: Warning: Unrecognized key in input state - XX"), lines[2]);
+    }
+
+    @Test
+    @DisplayName("Test: a recorder is reused, and its copies are unaffected")
+    void testReuse() {
+        IoTEvents recorder = new IoTEvents();
+        for (int i = 0; i < 40; i++) {
+            recorder.record(IoTEventType.ALL_CLEAR);
+        }
+        IoTEvents copy = recorder.copy();
+        recorder.reset();
+        recorder.record(IoTEventType.DOOR_OPEN);
+
+        assertEquals(40, copy.size());
+        assertEquals(IoTEventType.ALL_CLEAR, copy.getType(39));
+        assertTrue(copy.contains(IoTEventType.ALL_CLEAR));
+        assertFalse(copy.contains(IoTEventType.DOOR_OPEN));
+        assertEquals(1, recorder.size());
+        assertEquals(IoTEventType.DOOR_OPEN, recorder.getType(0));
+        assertThrows(IllegalStateException.class, () -> copy.record(IoTEventType.LIGHT_ON));
+        assertSame(copy.toString(), copy.toString(), "A copy is formatted once");
+    }
+
+    @Test
+    @DisplayName("Test: the events since some point are copied, and recorded again elsewhere as happening now")
+    void testCopyFrom() {
+        IoTEvents recorder = new IoTEvents();
+        recorder.record(IoTEventType.DOOR_OPEN);
+        recorder.record(IoTEventType.HEATER_ON, 70, 65, 0);
+        recorder.record(IoTEventType.UNKNOWN_KEY, "XX");
+        IoTEvents copy = recorder.copy(1);
+        assertEquals(2, copy.size());
+        assertEquals(IoTEventType.HEATER_ON, copy.getType(0));
+
+        IoTEvents other = new IoTEvents();
+        other.record(IoTEventType.LIGHT_ON);
+        other.recordAll(copy);
+        assertEquals(3, other.size());
+        assertEquals(IoTEventType.UNKNOWN_KEY, other.getType(2));
+        assertTrue(other.getTime(1) > 0, "Recorded again as happening now");
+        assertTrue(other.toString().contains("target temperature = 70F, current temperature = 65F"));
+    }
+
+    @Test
+    @DisplayName("Test: text from an evaluator that formats its own log is kept as is")
+    void testText() {
+        IoTEvents events = new IoTEvents();
+        events.record(IoTEventType.TEXT, "[Jan 01,2024 00:00]: Custom\n");
+        assertEquals("[Jan 01,2024 00:00]: Custom\n", events.toString());
+        assertEquals("Door open", IoTEvents.message("Door open").toString().replaceFirst("^\\[[^]]*\\]: ", "").trim());
+    }
+}
@@ -0,0 +1,80 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+
+class IoTHouseMailboxTest {
+
+    @Test
+    @DisplayName("Test: one drain takes every pending input, merged in the order posted")
+    void testDrain() {
+        IoTHouseMailbox mailbox = new IoTHouseMailbox();
+        mailbox.postPushedState(HouseState.EMPTY.with(HouseState.Device.DOOR, true).with(HouseState.Device.LIGHT, true));
+        mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Device.LIGHT, true));
+        mailbox.postPushedState(HouseState.EMPTY.with(HouseState.Device.DOOR, false));
+        mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Device.LIGHT, false));
+        mailbox.postAwayTimerExpired();
+
+        IoTHouseMailbox.Batch batch = mailbox.drain();
+        assertTrue(mailbox.isEmpty());
+        assertFalse(batch.isEmpty());
+        assertFalse(batch.getPushedState().is(HouseState.Device.DOOR));
+        assertTrue(batch.getPushedState().is(HouseState.Device.LIGHT));
+        assertFalse(batch.getUserUpdate().is(HouseState.Device.LIGHT));
+        assertTrue(batch.isAwayTimerExpired());
+
+        assertTrue(mailbox.drain().isEmpty(), "Nothing is left for the next drain");
+    }
+
+    @Test
+    @DisplayName("Test: user updates complete with the drain that handled them")
+    void testCompletion() {
+        IoTHouseMailbox mailbox = new IoTHouseMailbox();
+        CompletableFuture<HouseState> first = mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Device.DOOR_LOCK, true));
+        HouseState result = HouseState.EMPTY.with(HouseState.Device.DOOR_LOCK, true);
+        mailbox.drain().complete(result);
+        CompletableFuture<HouseState> second = mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Device.DOOR_LOCK, false));
+
+        assertSame(result, first.join());
+        assertFalse(second.isDone());
+        mailbox.drain().fail(new IllegalStateException("Disconnected"));
+        assertTrue(second.isCompletedExceptionally());
+    }
+
+    @Test
+    @DisplayName("Test: a later update wins field by field but does not clear a passcode already given")
+    void testMergeUpdates() {
+        IoTHouseMailbox mailbox = new IoTHouseMailbox();
+        mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Text.GIVEN_PASSCODE, "1234")
+                .with(HouseState.Device.ALARM, false).with(HouseState.Device.LIGHT, true));
+        mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Text.GIVEN_PASSCODE, "")
+                .with(HouseState.Device.LIGHT, false));
+        mailbox.postUserUpdate(HouseState.EMPTY.with(HouseState.Device.HUMIDIFIER, true));
+
+        HouseState update = mailbox.drain().getUserUpdate();
+        assertEquals("1234", update.get(HouseState.Text.GIVEN_PASSCODE));
+        assertFalse(update.is(HouseState.Device.ALARM));
+        assertFalse(update.is(HouseState.Device.LIGHT));
+        assertTrue(update.is(HouseState.Device.HUMIDIFIER));
+
+        HouseState changed = IoTHouseMailbox.mergeUpdates(update, HouseState.EMPTY.with(HouseState.Text.GIVEN_PASSCODE, "9999"));
+        assertEquals("9999", changed.get(HouseState.Text.GIVEN_PASSCODE));
+    }
+
+    @Test
+    @DisplayName("Test: a user update made before the house is connected does not wait")
+    void testNotConnected() {
+        IoTControlManager controller = new IoTControlManager("user", "pass", new StaticTartanStateEvaluator());
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> controller.processStateUpdate(Map.of(IoTValues.LIGHT_STATE, true)));
+        CompletableFuture<HouseState> accepted = controller.submitStateUpdate(Map.of(IoTValues.LIGHT_STATE, false));
+        assertFalse(accepted.isDone(), "Only the house can accept the update");
+    }
+}
@@ -0,0 +1,81 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+
+class IoTHouseSnapshotTest {
+
+    @Test
+    @DisplayName("Test: each change makes a new snapshot with the next version and leaves the old one alone")
+    void testVersions() {
+        IoTHouseSnapshot first = IoTHouseSnapshot.EMPTY;
+        IoTHouseSnapshot second = first.withSettings(HouseState.fromMap(Map.of(IoTValues.ALARM_DELAY, 30)));
+        IoTHouseSnapshot third = second.withState(HouseState.EMPTY.with(HouseState.Device.DOOR, true));
+
+        assertEquals(0, first.getVersion());
+        assertEquals(1, second.getVersion());
+        assertEquals(2, third.getVersion());
+        assertFalse(first.getSettings().has(HouseState.Reading.ALARM_DELAY));
+        assertEquals(30, third.getSettings().get(HouseState.Reading.ALARM_DELAY));
+        assertTrue(third.getState().is(HouseState.Device.DOOR));
+        assertFalse(second.getState().is(HouseState.Device.DOOR));
+    }
+
+    @Test
+    @DisplayName("Test: a snapshot is as old as the house's last report, not its last change")
+    void testAge() {
+        IoTHouseSnapshot never = IoTHouseSnapshot.EMPTY.withState(HouseState.EMPTY.with(HouseState.Device.LIGHT, true));
+        assertEquals(Long.MAX_VALUE, never.getAge(5000));
+
+        IoTHouseSnapshot reported = never.withReport(HouseState.EMPTY.with(HouseState.Device.DOOR, true), 1000);
+        IoTHouseSnapshot evaluated = reported.withState(reported.getState().with(HouseState.Device.LIGHT, false))
+                .withSettings(HouseState.fromMap(Map.of(IoTValues.ALARM_DELAY, 30)));
+        assertEquals(1000, evaluated.getReportedAt());
+        assertEquals(4000, evaluated.getAge(5000));
+        assertEquals(0, evaluated.getAge(500), "A clock step back must not give a negative age");
+    }
+
+    @Test
+    @DisplayName("Test: reading a house that cannot be asked gives the latest snapshot at once")
+    void testReadUnconnected() {
+        IoTControlManager controller = new IoTControlManager("user", "pass", new StaticTartanStateEvaluator());
+        controller.updateSettings(Map.of(IoTValues.ALARM_DELAY, 30));
+        IoTHouseSnapshot snapshot = controller.readState(0);
+        assertSame(controller.getHouseSnapshot(), snapshot);
+        assertEquals(0, snapshot.getReportedAt());
+    }
+
+    @Test
+    @DisplayName("Test: settings changed from many threads at once are all kept")
+    void testConcurrentSettings() throws Exception {
+        IoTControlManager controller = new IoTControlManager("user", "pass", new StaticTartanStateEvaluator());
+        String[] keys = { IoTValues.ALARM_DELAY, IoTValues.TARGET_TEMP, IoTValues.NIGHT_START, IoTValues.NIGHT_END };
+        int rounds = 1000;
+
+        Thread[] writers = new Thread[keys.length];
+        for (int t = 0; t < keys.length; t++) {
+            String key = keys[t];
+            writers[t] = new Thread(() -> {
+                for (int i = 1; i <= rounds; i++) {
+                    controller.updateSettings(Map.of(key, i));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+
+        IoTHouseSnapshot snapshot = controller.getHouseSnapshot();
+        assertEquals(keys.length * rounds, snapshot.getVersion(), "No update may be lost");
+        Map<String, Object> settings = snapshot.getSettings().toMap();
+        for (String key : keys) {
+            assertEquals(rounds, settings.get(key));
+        }
+    }
+}
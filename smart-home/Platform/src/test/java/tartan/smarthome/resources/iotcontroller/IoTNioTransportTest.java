@@ -0,0 +1,298 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+class IoTNioTransportTest {
+
+    private ServerSocket server;
+    private IoTEventLoopGroup group;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0);
+        group = new IoTEventLoopGroup(1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+        group.shutdown();
+    }
+
+    /**
+     * Accept one connection, read the given number of '.'-terminated requests, then hand them
+     * to the responder which writes the replies
+     */
+    private CompletableFuture<List<String>> house(int requests, Responder responder) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> received = new ArrayList<>();
+            try (Socket s = server.accept()) {
+                InputStream in = s.getInputStream();
+                StringBuilder current = new StringBuilder();
+                while (received.size() < requests) {
+                    int c = in.read();
+                    if (c < 0) break;
+                    current.append((char) c);
+                    if (c == '.') {
+                        received.add(current.toString());
+                        current.setLength(0);
+                    }
+                }
+                responder.respond(received, s.getOutputStream());
+                s.getOutputStream().flush();
+                Thread.sleep(200);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return received;
+        });
+    }
+
+    private interface Responder {
+        void respond(List<String> requests, OutputStream out) throws IOException;
+    }
+
+    @Test
+    @DisplayName("Test: pipelined requests are matched to responses in order")
+    void testOrderedPipelining() throws Exception {
+        CompletableFuture<List<String>> house = house(2, (requests, out) ->
+                out.write("SU:TR=70;LS=1.\nOK\n".getBytes(StandardCharsets.US_ASCII)));
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        assertTrue(transport.connect());
+
+        CompletableFuture<String> get = transport.send("GS.");
+        CompletableFuture<String> set = transport.send("SS:LS=1.");
+        assertEquals(2, house.get(5, TimeUnit.SECONDS).size(), "Both requests should be on the wire before any reply");
+
+        assertEquals("SU:TR=70;LS=1.", get.get(5, TimeUnit.SECONDS));
+        assertEquals("OK", set.get(5, TimeUnit.SECONDS));
+        transport.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: tagged responses are matched by sequence even when out of order")
+    void testTaggedPipelining() throws Exception {
+        CompletableFuture<List<String>> house = house(2, (requests, out) -> {
+            // answer the second request first
+            String secondTag = requests.get(1).substring(requests.get(1).indexOf('#'), requests.get(1).indexOf(':'));
+            String firstTag = requests.get(0).substring(requests.get(0).indexOf('#'), requests.get(0).indexOf('.'));
+            out.write(("OK" + secondTag + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(("SU" + firstTag + ":TR=70.\n").getBytes(StandardCharsets.US_ASCII));
+        });
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        transport.setSequenceTagging(true);
+        assertTrue(transport.connect());
+
+        CompletableFuture<String> get = transport.send("GS.");
+        CompletableFuture<String> set = transport.send("SS:LS=1.");
+
+        List<String> received = house.get(5, TimeUnit.SECONDS);
+        assertTrue(received.get(0).matches("GS#\\d+\\."), "Request should carry a tag: " + received.get(0));
+        assertEquals("SU:TR=70.", get.get(5, TimeUnit.SECONDS));
+        assertEquals("OK", set.get(5, TimeUnit.SECONDS));
+        transport.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: outstanding requests fail when the house hangs up")
+    void testPendingFailOnClose() throws Exception {
+        house(1, (requests, out) -> { /* hang up without answering */ });
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        assertTrue(transport.connect());
+
+        assertNull(transport.sendMessageToHouse("GS."), "No response should be returned after the house hangs up");
+        assertFalse(transport.isConnected());
+    }
+
+    @Test
+    @DisplayName("Test: a request the house never answers fails at its deadline and drops the link")
+    void testReadDeadline() throws Exception {
+        house(1, (requests, out) -> {
+            // stay silent but keep the socket open past the deadline
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException ie) {
+            }
+        });
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        transport.setDeadlines(1000, 300, 1000);
+        List<IoTConnectionState> states = new ArrayList<>();
+        transport.setConnectionListener(states::add);
+        assertTrue(transport.connect());
+
+        long start = System.nanoTime();
+        assertNull(transport.sendMessageToHouse("GS."), "An unanswered request should fail");
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "The request should fail at its deadline");
+        assertFalse(transport.isConnected());
+        assertEquals(List.of(IoTConnectionState.CONNECTED, IoTConnectionState.DISCONNECTED), states);
+    }
+
+    /**
+     * Read one '.'-terminated text request
+     */
+    private static String readText(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            request.append((char) c);
+            if (c == '.') {
+                break;
+            }
+        }
+        return request.toString();
+    }
+
+    @Test
+    @DisplayName("Test: a house that accepts the capability offer is spoken to in binary frames")
+    void testBinaryHandshake() throws Exception {
+        CompletableFuture<byte[]> house = CompletableFuture.supplyAsync(() -> {
+            try (Socket s = server.accept()) {
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                assertEquals("GS:CAP=1.", readText(in));
+                out.write("SU:CAP=1;TR=70.\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                // length, then type, sequence and body
+                byte[] request = new byte[in.readUnsignedShort()];
+                in.readFully(request);
+
+                ByteBuffer update = ByteBuffer.allocate(IoTBinaryCodec.MAX_MESSAGE_SIZE);
+                int size = IoTBinaryCodec.encodeStateUpdate(HouseState.builder()
+                        .set(HouseState.Reading.TEMPERATURE, 71).set(HouseState.Device.LIGHT, true).build(), update);
+                out.writeShort(size + 2);
+                out.writeByte(update.get(0));
+                out.write(request, 1, 2);
+                out.write(update.array(), 1, size - 1);
+                out.flush();
+                Thread.sleep(200);
+                return request;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        IoTConnection conn = new IoTConnection("127.0.0.1", server.getLocalPort(),
+                new IoTNioTransport("127.0.0.1", server.getLocalPort(), group));
+        assertTrue(conn.connect());
+        assertTrue(conn.whenReady().get(5, TimeUnit.SECONDS), "The house accepted binary framing");
+
+        HouseState state = new IoTConnectManager(conn).getHouseState();
+        assertEquals(71, state.get(HouseState.Reading.TEMPERATURE));
+        assertTrue(state.is(HouseState.Device.LIGHT));
+
+        byte[] request = house.get(5, TimeUnit.SECONDS);
+        assertEquals(3, request.length, "A binary GET_STATE is a type and a sequence number");
+        assertEquals(IoTBinaryCodec.GET_STATE, request[0]);
+        conn.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: a legacy house that ignores the capability offer stays on text")
+    void testLegacyFallback() throws Exception {
+        CompletableFuture<String> house = CompletableFuture.supplyAsync(() -> {
+            try (Socket s = server.accept()) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                readText(in);
+                out.write("SU:TR=70.\n".getBytes(StandardCharsets.US_ASCII));
+                String request = readText(in);
+                out.write("SU:TR=71;LS=1.\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                Thread.sleep(200);
+                return request;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        IoTConnection conn = new IoTConnection("127.0.0.1", server.getLocalPort(),
+                new IoTNioTransport("127.0.0.1", server.getLocalPort(), group));
+        assertTrue(conn.connect());
+
+        HouseState state = new IoTConnectManager(conn).getHouseState();
+        assertFalse(conn.whenReady().get(5, TimeUnit.SECONDS), "The link should stay on text");
+        assertEquals(71, state.get(HouseState.Reading.TEMPERATURE));
+        assertEquals("GS.", house.get(5, TimeUnit.SECONDS));
+        conn.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: a pushed state goes to the push listener and does not take a pending request's response")
+    void testPushNotMatchedToRequest() throws Exception {
+        CompletableFuture<List<String>> house = house(1, (requests, out) ->
+                out.write("PU:TR=71;DS=0.\nSU:TR=70.\n".getBytes(StandardCharsets.US_ASCII)));
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        CompletableFuture<String> pushed = new CompletableFuture<>();
+        transport.setPushListener(frame -> pushed.complete(IoTProtocolCodec.toText(frame)));
+        assertTrue(transport.connect());
+
+        CompletableFuture<String> get = transport.send("GS.");
+        house.get(5, TimeUnit.SECONDS);
+        assertEquals("SU:TR=70.", get.get(5, TimeUnit.SECONDS));
+        assertEquals("PU:TR=71;DS=0.", pushed.get(5, TimeUnit.SECONDS));
+        transport.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: a listener that throws drops its own link and leaves the loop serving the others")
+    void testFailingListener() throws Exception {
+        house(1, (requests, out) -> out.write("PU:TR=71.\n".getBytes(StandardCharsets.US_ASCII)));
+
+        IoTNioTransport failing = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        failing.setPushListener(frame -> {
+            throw new IllegalStateException("listener bug");
+        });
+        CompletableFuture<IoTConnectionState> dropped = new CompletableFuture<>();
+        failing.setConnectionListener(state -> {
+            if (state == IoTConnectionState.DISCONNECTED) {
+                dropped.complete(state);
+            }
+        });
+        assertTrue(failing.connect());
+        failing.send("GS.");
+        assertEquals(IoTConnectionState.DISCONNECTED, dropped.get(5, TimeUnit.SECONDS));
+        assertFalse(failing.isConnected());
+
+        // the same loop still serves another house
+        house(1, (requests, out) -> out.write("SU:TR=70.\n".getBytes(StandardCharsets.US_ASCII)));
+        IoTNioTransport other = new IoTNioTransport("127.0.0.1", server.getLocalPort(), group);
+        assertTrue(other.connect());
+        assertEquals("SU:TR=70.", other.send("GS.").get(5, TimeUnit.SECONDS));
+        other.disconnect();
+    }
+
+    @Test
+    @DisplayName("Test: connecting to a closed port fails")
+    void testConnectFailure() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+
+        IoTNioTransport transport = new IoTNioTransport("127.0.0.1", port, group);
+        assertFalse(transport.connect());
+        assertFalse(transport.isConnected());
+    }
+}
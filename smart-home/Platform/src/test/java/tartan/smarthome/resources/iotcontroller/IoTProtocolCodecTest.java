@@ -0,0 +1,113 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class IoTProtocolCodecTest {
+
+    @Test
+    @DisplayName("Test: a full state update is decoded with the same types as before")
+    void testDecodeStateUpdate() {
+        ByteBuffer frame = IoTProtocolCodec.fromText("SU:TR=65;HR=-3;DS=1;LS=0;PS=1;AS=0;AA=0;HES=0;CHS=1;HM=1;HUS=0;IS=0;PP=1;DLS=1.");
+        Map<String, Object> state = IoTProtocolCodec.decodeStateUpdate(frame).toMap();
+
+        assertNotNull(state);
+        assertEquals(14, state.size());
+        assertEquals(65, state.get(IoTValues.TEMP_READING));
+        assertEquals(-3, state.get(IoTValues.HUMIDITY_READING));
+        assertEquals(true, state.get(IoTValues.DOOR_STATE));
+        assertEquals(false, state.get(IoTValues.LIGHT_STATE));
+        assertEquals(true, state.get(IoTValues.CHILLER_STATE));
+        assertEquals(true, state.get(IoTValues.PHONE_PROXIMITY));
+        assertEquals(true, state.get(IoTValues.DOOR_LOCK_STATE));
+        assertEquals("Heater", state.get(IoTValues.HVAC_MODE));
+        assertEquals(0, frame.position(), "Decoding must not move the buffer");
+    }
+
+    @Test
+    @DisplayName("Test: an HVAC mode other than 1 decodes as Chiller and unknown keys are ignored")
+    void testDecodeModeAndUnknownKeys() {
+        Map<String, Object> state = IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("SU:HM=2;XYZ=5;;LS=1")).toMap();
+        assertEquals("Chiller", state.get(IoTValues.HVAC_MODE));
+        assertEquals(true, state.get(IoTValues.LIGHT_STATE));
+        assertEquals(2, state.size());
+    }
+
+    @Test
+    @DisplayName("Test: frames that are not valid state updates are rejected")
+    void testDecodeInvalid() {
+        assertNull(IoTProtocolCodec.decodeStateUpdate(null));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("")));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("OK")));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("SS:LS=1.")));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("SU:")));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("SU:LS=1:DS=0.")));
+        assertNull(IoTProtocolCodec.decodeStateUpdate(IoTProtocolCodec.fromText("SU:LS=on.")));
+    }
+
+    @Test
+    @DisplayName("Test: a state change encodes only device states, in a fixed order, without a trailing delimiter")
+    void testEncodeSetState() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put(IoTValues.TEMP_READING, 70);
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_PASSCODE, "stop");
+        state.put(IoTValues.DOOR_LOCK_STATE, false);
+        state.put(IoTValues.HEATER_STATE, true);
+        state.put(IoTValues.PROXIMITY_STATE, true);
+
+        ByteBuffer out = ByteBuffer.allocate(IoTProtocolCodec.MAX_SET_STATE_SIZE);
+        int written = IoTProtocolCodec.encodeSetState(HouseState.fromMap(state), out);
+        out.flip();
+
+        assertEquals("SS:DLS=0;LS=1;HES=1.", IoTProtocolCodec.toText(out));
+        assertEquals(written, out.remaining());
+    }
+
+    @Test
+    @DisplayName("Test: every device state fits in the maximum frame size")
+    void testEncodeAllDevices() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        for (String key : new String[]{IoTValues.DOOR_STATE, IoTValues.PHONE_PROXIMITY, IoTValues.INTRUDER_STATE,
+                IoTValues.DOOR_LOCK_STATE, IoTValues.LIGHT_STATE, IoTValues.ALARM_STATE, IoTValues.ALARM_ACTIVE,
+                IoTValues.HUMIDIFIER_STATE, IoTValues.CHILLER_STATE, IoTValues.HEATER_STATE}) {
+            state.put(key, true);
+        }
+        ByteBuffer out = ByteBuffer.allocate(IoTProtocolCodec.MAX_SET_STATE_SIZE);
+        IoTProtocolCodec.encodeSetState(HouseState.fromMap(state), out);
+        assertTrue(out.position() <= IoTProtocolCodec.MAX_SET_STATE_SIZE);
+    }
+
+    @Test
+    @DisplayName("Test: OK acknowledges a state change, with or without the message end and a sequence tag")
+    void testIsOk() {
+        assertTrue(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK")));
+        assertTrue(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK.")), "The simulator ends its answer");
+        assertTrue(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK#12.")));
+        assertTrue(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK#7")));
+        assertFalse(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK#.")));
+        assertFalse(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OK..")));
+        assertFalse(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("OKAY")));
+        assertFalse(IoTProtocolCodec.isOk(IoTProtocolCodec.fromText("NO")));
+        assertFalse(IoTProtocolCodec.isOk(null));
+    }
+
+    @Test
+    @DisplayName("Test: pushed states decode like state updates and a subscription is accepted only with SUB=1")
+    void testPush() {
+        byte[] line = "PU:TR=71;DS=0".getBytes();
+        assertTrue(IoTProtocolCodec.isPush(line, 0, line.length));
+        assertFalse(IoTProtocolCodec.isPush("PUMP".getBytes(), 0, 4));
+        assertEquals(71, IoTProtocolCodec.decodeStateUpdate(ByteBuffer.wrap(line)).get(HouseState.Reading.TEMPERATURE));
+
+        assertEquals("GS:SUB=1.", IoTProtocolCodec.toText(IoTProtocolCodec.SUBSCRIBE));
+        assertTrue(IoTProtocolCodec.acceptsPush(IoTProtocolCodec.fromText("SU:SUB=1;TR=70.")));
+        assertFalse(IoTProtocolCodec.acceptsPush(IoTProtocolCodec.fromText("SU:TR=70;SUB=1.")));
+        assertFalse(IoTProtocolCodec.acceptsPush(IoTProtocolCodec.fromText("SU:TR=70.")));
+    }
+}
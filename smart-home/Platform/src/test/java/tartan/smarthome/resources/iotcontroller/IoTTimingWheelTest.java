@@ -0,0 +1,84 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class IoTTimingWheelTest {
+
+    private IoTTimingWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        // a small wheel, so the timers below go round it several times
+        wheel = new IoTTimingWheel(10, 8, Runnable::run);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    @DisplayName("Test: timers fire once, in deadline order and not early")
+    void testFire() throws Exception {
+        BlockingQueue<Integer> fired = new LinkedBlockingQueue<>();
+        long start = System.nanoTime();
+        wheel.schedule(() -> fired.add(300), 300, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add(50), 50, TimeUnit.MILLISECONDS);
+        IoTTimingWheel.Timeout timeout = wheel.schedule(() -> fired.add(150), 150, TimeUnit.MILLISECONDS);
+        assertEquals(3, wheel.getPendingCount());
+
+        assertEquals(Integer.valueOf(50), fired.poll(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(150), fired.poll(5, TimeUnit.SECONDS));
+        assertFalse(timeout.isPending());
+        assertFalse(timeout.cancel(), "A fired timer cannot be cancelled");
+        assertEquals(Integer.valueOf(300), fired.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300), "A timer fired early");
+        assertNull(fired.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    @DisplayName("Test: a cancelled timer never fires")
+    void testCancel() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        IoTTimingWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.isPending());
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.isPending());
+        assertEquals(0, wheel.getPendingCount());
+
+        Thread.sleep(250);
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    @DisplayName("Test: one thread drives a hundred thousand timers")
+    void testMany() throws Exception {
+        int count = 100000;
+        CountDownLatch fired = new CountDownLatch(count / 2);
+        AtomicInteger firedCancelled = new AtomicInteger();
+        IoTTimingWheel.Timeout[] timeouts = new IoTTimingWheel.Timeout[count];
+        for (int i = 0; i < count; i++) {
+            Runnable task = i % 2 == 0 ? fired::countDown : firedCancelled::incrementAndGet;
+            timeouts[i] = wheel.schedule(task, 1000 + i % 200, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 1; i < count; i += 2) {
+            assertTrue(timeouts[i].cancel());
+        }
+        assertEquals(count / 2, wheel.getPendingCount());
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        assertEquals(0, firedCancelled.get());
+        assertEquals(0, wheel.getPendingCount());
+    }
+}
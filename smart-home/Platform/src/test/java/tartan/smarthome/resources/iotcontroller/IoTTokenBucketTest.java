@@ -0,0 +1,32 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class IoTTokenBucketTest {
+
+    @Test
+    @DisplayName("Test: a full bucket allows a burst, then one use per refill")
+    void testBurst() throws Exception {
+        IoTTokenBucket bucket = new IoTTokenBucket(2, 20);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire(), "The burst is used up");
+        long delay = bucket.getDelay();
+        assertTrue(delay > 0 && delay <= 50, "One token comes back every 50 ms");
+
+        Thread.sleep(100);
+        assertEquals(0, bucket.getDelay());
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    @DisplayName("Test: a bucket that never refills reports an endless wait once empty")
+    void testNoRefill() {
+        IoTTokenBucket bucket = new IoTTokenBucket(1, 0);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertEquals(Long.MAX_VALUE, bucket.getDelay());
+    }
+}
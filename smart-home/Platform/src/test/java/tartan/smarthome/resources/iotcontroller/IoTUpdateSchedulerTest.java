@@ -0,0 +1,125 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class IoTUpdateSchedulerTest {
+
+    private IoTUpdateScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        scheduler = new IoTUpdateScheduler(IoTValues.UPDATES_VIRTUAL, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    @DisplayName("Test: a cycle runs again after the delay it returns")
+    void testReschedule() throws Exception {
+        CountDownLatch runs = new CountDownLatch(3);
+        scheduler.schedule("house", () -> {
+            runs.countDown();
+            return 10;
+        }, 10);
+
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getJobCount());
+    }
+
+    @Test
+    @DisplayName("Test: a wake-up runs the cycle at once, and never alongside a running cycle")
+    void testWakeUp() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+
+        IoTUpdateScheduler.Job job = scheduler.schedule("house", () -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            int run = runs.incrementAndGet();
+            if (run == 1) {
+                first.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                }
+            } else {
+                second.countDown();
+            }
+            running.decrementAndGet();
+            return 60000;
+        }, 1);
+
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        job.wakeUp();
+        job.wakeUp();
+        assertEquals(1, runs.get(), "A wake-up must wait for the running cycle");
+
+        release.countDown();
+        assertTrue(second.await(5, TimeUnit.SECONDS), "The wake-up must run once the cycle finishes");
+        Thread.sleep(100);
+        assertEquals(2, runs.get(), "Wake-ups during one cycle run the next cycle once");
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    @DisplayName("Test: wake-ups within a window share one run at the end of the window")
+    void testWakeUpWithin() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        IoTUpdateScheduler.Job job = scheduler.schedule("house", () -> {
+            runs.incrementAndGet();
+            first.countDown();
+            return 60000;
+        }, 60000);
+        job.wakeUp();
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        for (int i = 0; i < 5; i++) {
+            job.wakeUpWithin(200);
+        }
+        assertEquals(1, runs.get(), "The run waits for the window");
+        Thread.sleep(600);
+        assertEquals(2, runs.get(), "Wake-ups within the window run the cycle once");
+    }
+
+    @Test
+    @DisplayName("Test: a cancelled or stopped schedule runs no more cycles")
+    void testStop() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        IoTUpdateScheduler.Job job = scheduler.schedule("house", () -> {
+            runs.incrementAndGet();
+            return 10;
+        }, 10);
+        scheduler.schedule("other", () -> 10, 10);
+
+        job.cancel();
+        assertTrue(job.isCancelled());
+        assertEquals(1, scheduler.getJobCount());
+        int seen = runs.get();
+        Thread.sleep(100);
+        assertEquals(seen, runs.get());
+
+        scheduler.stop();
+        assertEquals(0, scheduler.getJobCount());
+        IoTUpdateScheduler.Job late = scheduler.schedule("late", () -> 10, 10);
+        late.wakeUp();
+        assertEquals(0, scheduler.getJobCount());
+    }
+}